@@ -0,0 +1,183 @@
+package com.innoveworkshop.monicom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A multi-pattern byte matcher. Every pattern is compiled into a single
+ * deterministic automaton with a full 256-entry transition table per state,
+ * so matching costs a single array lookup per byte no matter how many
+ * patterns there are. The current state is kept between calls, which means
+ * that patterns split across chunks are still found.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class AhoCorasick {
+    private final int[] transitions;
+    private final int[] matches;
+    private final int[] next_match;
+    private final int[] first_match;
+    private final int[] lengths;
+    private int state;
+    
+    /**
+     * Compiles a set of patterns into an automaton.
+     * 
+     * @param patterns Patterns to be matched. Empty ones never match.
+     */
+    public AhoCorasick(List<byte[]> patterns) {
+        List<int[]> gotos = new ArrayList();
+        List<Integer> outputs = new ArrayList();
+        gotos.add(newState());
+        outputs.add(-1);
+        this.lengths = new int[patterns.size()];
+        
+        // Build the trie.
+        for (int p = 0; p < patterns.size(); p++) {
+            byte[] pattern = patterns.get(p);
+            int s = 0;
+            
+            lengths[p] = pattern.length;
+            if (pattern.length == 0) {
+                continue;
+            }
+            
+            for (byte b : pattern) {
+                int c = b & 0xFF;
+                if (gotos.get(s)[c] < 0) {
+                    gotos.get(s)[c] = gotos.size();
+                    gotos.add(newState());
+                    outputs.add(-1);
+                }
+                
+                s = gotos.get(s)[c];
+            }
+            
+            // The same pattern twice belongs to whoever came first.
+            if (outputs.get(s) < 0) {
+                outputs.set(s, p);
+            }
+        }
+        
+        // Turn it into a DFA breadth-first, following the failure links.
+        int states = gotos.size();
+        int[] fail = new int[states];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        
+        this.transitions = new int[states * 256];
+        this.matches = new int[states];
+        this.next_match = new int[states];
+        this.first_match = new int[states];
+        for (int s = 0; s < states; s++) {
+            matches[s] = outputs.get(s);
+        }
+        
+        for (int c = 0; c < 256; c++) {
+            int s = gotos.get(0)[c];
+            if (s < 0) {
+                transitions[c] = 0;
+            } else {
+                transitions[c] = s;
+                fail[s] = 0;
+                queue[tail++] = s;
+            }
+        }
+        next_match[0] = -1;
+        first_match[0] = -1;
+        
+        while (head < tail) {
+            int r = queue[head++];
+            
+            // Chain the matches that end at the same place.
+            next_match[r] = (matches[fail[r]] >= 0) ? fail[r] : next_match[fail[r]];
+            
+            // The failure state is shallower, so its lowest match is already known.
+            first_match[r] = first_match[fail[r]];
+            if ((matches[r] >= 0) && ((first_match[r] < 0) || (matches[r] < first_match[r]))) {
+                first_match[r] = matches[r];
+            }
+            
+            for (int c = 0; c < 256; c++) {
+                int s = gotos.get(r)[c];
+                if (s < 0) {
+                    transitions[(r * 256) + c] = transitions[(fail[r] * 256) + c];
+                } else {
+                    transitions[(r * 256) + c] = s;
+                    fail[s] = transitions[(fail[r] * 256) + c];
+                    queue[tail++] = s;
+                }
+            }
+        }
+        
+        this.state = 0;
+    }
+    
+    /**
+     * Creates an empty trie state.
+     * 
+     * @return Goto table of the state.
+     */
+    private static int[] newState() {
+        int[] state = new int[256];
+        Arrays.fill(state, -1);
+        return state;
+    }
+    
+    /**
+     * Feeds a single byte to the automaton.
+     * 
+     * @param b Byte to be matched.
+     * @return Index of the longest pattern that ends at this byte or -1 if
+     *         none.
+     */
+    public int next(byte b) {
+        state = transitions[(state * 256) + (b & 0xFF)];
+        if (matches[state] >= 0) {
+            return matches[state];
+        }
+        
+        return (next_match[state] >= 0) ? matches[next_match[state]] : -1;
+    }
+    
+    /**
+     * Feeds a single byte to the automaton, looking at every pattern that
+     * ends at it instead of just the longest one.
+     * 
+     * @param b Byte to be matched.
+     * @return Lowest index of the patterns that end at this byte or -1 if
+     *         none.
+     */
+    public int nextMin(byte b) {
+        state = transitions[(state * 256) + (b & 0xFF)];
+        return first_match[state];
+    }
+    
+    /**
+     * Goes back to the initial state, forgetting any partial match.
+     */
+    public void reset() {
+        this.state = 0;
+    }
+    
+    /**
+     * Gets the length of a pattern.
+     * 
+     * @param pattern Pattern index.
+     * @return Pattern length.
+     */
+    public int getPatternLength(int pattern) {
+        return this.lengths[pattern];
+    }
+    
+    /**
+     * Gets the number of states in the automaton.
+     * 
+     * @return Number of states.
+     */
+    public int getStateCount() {
+        return this.matches.length;
+    }
+}
@@ -0,0 +1,296 @@
+package com.innoveworkshop.monicom;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Answers device prompts automatically. Every trigger is compiled into a
+ * single Aho-Corasick automaton that runs over the received data right on
+ * the reader thread, and the responses are queued for the transmit queue
+ * straight from there, without ever going through the EDT.
+ * 
+ * Triggers and responses can contain the escapes \r, \n, \t, \\ and \xHH.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class AutoResponder {
+    private final List<Rule> rules;
+    private volatile AhoCorasick matcher;
+    private volatile byte[][] responses;
+    private volatile CommsHandler serial;
+    private volatile boolean enabled;
+    private volatile long replies;
+    private volatile long failures;
+    
+    /**
+     * Creates a new auto responder without any rules.
+     * 
+     * @param serial Serial port handler the responses will be sent to.
+     */
+    public AutoResponder(CommsHandler serial) {
+        this.rules = new ArrayList();
+        this.serial = serial;
+        this.enabled = false;
+        this.replies = 0;
+        this.failures = 0;
+        compile(serial.getCharset());
+    }
+    
+    /**
+     * Looks for triggers in received data and answers them. Called from the
+     * serial reader thread.
+     * 
+     * @param data Received data.
+     * @param len Number of valid bytes in the buffer.
+     */
+    public void dataReceived(byte[] data, int len) {
+        AhoCorasick matcher = this.matcher;
+        byte[][] responses = this.responses;
+        if (!enabled || (responses.length == 0)) {
+            return;
+        }
+        
+        for (int i = 0; i < len; i++) {
+            int rule = matcher.next(data[i]);
+            
+            if (rule >= 0) {
+                if (serial.sendBytes(responses[rule])) {
+                    replies++;
+                } else {
+                    failures++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compiles the triggers and encodes the responses of every rule.
+     * 
+     * @param charset Session charset.
+     */
+    public synchronized void compile(Charset charset) {
+        List<byte[]> triggers = new ArrayList();
+        byte[][] encoded = new byte[rules.size()][];
+        
+        for (int i = 0; i < rules.size(); i++) {
+            triggers.add(unescape(rules.get(i).getTrigger(), charset));
+            encoded[i] = unescape(rules.get(i).getResponse(), charset);
+        }
+        
+        this.matcher = new AhoCorasick(triggers);
+        this.responses = encoded;
+        Debug.println("AUTO_RESPONDER", rules.size() + " rules compiled into " +
+                matcher.getStateCount() + " states");
+    }
+    
+    /**
+     * Turns text with escape sequences into bytes.
+     * 
+     * @param text Text to be converted.
+     * @param charset Charset used to encode the text around the escapes.
+     * @return Encoded bytes.
+     */
+    public static byte[] unescape(String text, Charset charset) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StringBuilder plain = new StringBuilder();
+        
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if ((c != '\\') || (i == (text.length() - 1))) {
+                plain.append(c);
+                continue;
+            }
+            
+            // Handle the escape sequence.
+            char e = text.charAt(++i);
+            switch (e) {
+                case 'r':
+                    plain.append('\r');
+                    break;
+                case 'n':
+                    plain.append('\n');
+                    break;
+                case 't':
+                    plain.append('\t');
+                    break;
+                case 'x':
+                    if (isHex(text, i + 1, i + 3)) {
+                        byte[] bytes = plain.toString().getBytes(charset);
+                        out.write(bytes, 0, bytes.length);
+                        plain.setLength(0);
+                        out.write(Integer.parseInt(text.substring(i + 1, i + 3), 16));
+                        i += 2;
+                    } else {
+                        plain.append("\\x");
+                    }
+                    break;
+                default:
+                    plain.append(e);
+                    break;
+            }
+        }
+        
+        byte[] bytes = plain.toString().getBytes(charset);
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+    
+    /**
+     * Checks if a range of a string only has hexadecimal digits.
+     * 
+     * @param text String to be checked.
+     * @param start Start of the range.
+     * @param end End of the range.
+     * @return True if it's all hexadecimal digits.
+     */
+    private static boolean isHex(String text, int start, int end) {
+        if (end > text.length()) {
+            return false;
+        }
+        
+        for (int i = start; i < end; i++) {
+            if (Character.digit(text.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Replaces every rule and compiles them.
+     * 
+     * @param rules New list of rules.
+     * @param charset Session charset.
+     */
+    public synchronized void setRules(List<Rule> rules, Charset charset) {
+        this.rules.clear();
+        this.rules.addAll(rules);
+        compile(charset);
+    }
+    
+    /**
+     * Gets the list of rules.
+     * 
+     * @return Rules.
+     */
+    public synchronized List<Rule> getRules() {
+        return new ArrayList(this.rules);
+    }
+    
+    /**
+     * Sets the serial port handler the responses are sent to.
+     * 
+     * @param serial Serial port handler.
+     */
+    public void setSerial(CommsHandler serial) {
+        this.serial = serial;
+    }
+    
+    /**
+     * Enables or disables the automatic responses.
+     * 
+     * @param enabled Respond automatically.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    /**
+     * Checks if the automatic responses are enabled.
+     * 
+     * @return True if enabled.
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+    
+    /**
+     * Gets the number of responses that were sent.
+     * 
+     * @return Number of replies.
+     */
+    public long getReplyCount() {
+        return this.replies;
+    }
+    
+    /**
+     * Gets the number of responses that couldn't be queued.
+     * 
+     * @return Number of failures.
+     */
+    public long getFailureCount() {
+        return this.failures;
+    }
+    
+    /**
+     * Stores the rules in a setup.
+     * 
+     * @param setup Setup properties.
+     */
+    public synchronized void save(Properties setup) {
+        setup.setProperty("auto_respond", String.valueOf(enabled));
+        for (int i = 0; i < rules.size(); i++) {
+            setup.setProperty("rule." + i + ".trigger", rules.get(i).getTrigger());
+            setup.setProperty("rule." + i + ".response", rules.get(i).getResponse());
+        }
+    }
+    
+    /**
+     * Loads the rules from a setup.
+     * 
+     * @param setup Setup properties.
+     * @param charset Session charset.
+     */
+    public void load(Properties setup, Charset charset) {
+        List<Rule> loaded = new ArrayList();
+        
+        for (int i = 0; setup.getProperty("rule." + i + ".trigger") != null; i++) {
+            loaded.add(new Rule(setup.getProperty("rule." + i + ".trigger"),
+                    setup.getProperty("rule." + i + ".response", "")));
+        }
+        
+        setRules(loaded, charset);
+        setEnabled(Boolean.valueOf(setup.getProperty("auto_respond")));
+    }
+    
+    /**
+     * A trigger pattern and the response it gets.
+     */
+    public static class Rule {
+        private final String trigger;
+        private final String response;
+        
+        /**
+         * Creates a new rule.
+         * 
+         * @param trigger Text that triggers the response.
+         * @param response Text that is sent back.
+         */
+        public Rule(String trigger, String response) {
+            this.trigger = trigger;
+            this.response = response;
+        }
+        
+        /**
+         * Gets the text that triggers the response.
+         * 
+         * @return Trigger with its escapes.
+         */
+        public String getTrigger() {
+            return this.trigger;
+        }
+        
+        /**
+         * Gets the text that is sent back.
+         * 
+         * @return Response with its escapes.
+         */
+        public String getResponse() {
+            return this.response;
+        }
+    }
+}
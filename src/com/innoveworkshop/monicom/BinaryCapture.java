@@ -0,0 +1,462 @@
+package com.innoveworkshop.monicom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * An append-only binary capture of everything that goes through the serial
+ * port in both directions. Each record holds the time elapsed since the
+ * previous one in nanoseconds, the direction of the data and the raw bytes,
+ * so nothing gets lost to charset decoding like in the text output.
+ * 
+ * The capture file starts with a header followed by the records:
+ * 
+ *   header: "MCAP" version(1) reserved(3) start_time(8)
+ *   record: delta_ns(varint) direction(1) length(varint) payload(length)
+ * 
+ * A sparse index is kept alongside it in a file with the same name plus
+ * ".idx", made of a header followed by big endian (time, offset) pairs:
+ * 
+ *   header: "MCIX" version(1) reserved(3)
+ *   entry:  time_ns(8) offset(8)
+ * 
+ * The time of an entry is the one that the delta of the record at its offset
+ * is relative to. An entry is added every INDEX_STRIDE bytes of records, and
+ * only gets written once the records it points to are already in the capture
+ * file. Both files are only ever appended to, so if the process gets killed
+ * the worst that can happen is a truncated record at the end, which the
+ * reader simply ignores.
+ * 
+ * Records are written by a dedicated writer thread using two buffers, the
+ * same way SessionCapture does it: while one is being written and forced to
+ * the disk the other one keeps filling up, so neither the reader nor the
+ * writer thread of the serial port ever waits for the disk unless they get
+ * ahead of it by a whole buffer.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class BinaryCapture implements Runnable {
+    public static final byte[] MAGIC = { 'M', 'C', 'A', 'P' };
+    public static final byte[] INDEX_MAGIC = { 'M', 'C', 'I', 'X' };
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int INDEX_HEADER_SIZE = 8;
+    public static final int INDEX_ENTRY_SIZE = 16;
+    public static final String INDEX_EXTENSION = ".idx";
+    public static final byte RX = 0;
+    public static final byte TX = 1;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+    public static final int MAX_RECORD_HEADER = 21;
+    public static final long INDEX_STRIDE = 64 * 1024;
+    public static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    public static final long FLUSH_INTERVAL = 100;
+    public static final long SYNC_INTERVAL = 2000;
+    
+    private final File file;
+    private final FileChannel writer;
+    private final FileChannel index_writer;
+    private final ByteBuffer index_pending;
+    private final Object lock;
+    private final Thread flusher;
+    private final long start_nanos;
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private ByteBuffer full;
+    private long full_end;
+    private boolean closing;
+    private IOException error;
+    private long[] index;
+    private int index_size;
+    private long last_indexed;
+    private long last_nanos;
+    private long length;
+    private volatile long written;
+    private volatile long records;
+    private long last_sync;
+    
+    /**
+     * Creates a new binary capture. Any existing file with the same name gets
+     * replaced.
+     * 
+     * @param file Capture file. The index is created next to it.
+     * @throws IOException If the capture or index files couldn't be created.
+     */
+    public BinaryCapture(File file) throws IOException {
+        this.file = file;
+        this.writer = new FileOutputStream(file).getChannel();
+        this.index_writer = new FileOutputStream(getIndexFile(file)).getChannel();
+        this.index_pending = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 64);
+        this.start_nanos = System.nanoTime();
+        this.index = new long[128];
+        this.index_size = 0;
+        this.last_indexed = -INDEX_STRIDE;
+        this.last_nanos = start_nanos;
+        this.records = 0;
+        
+        // Write the headers straight away so that even an empty capture is valid.
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC).put(VERSION).put(new byte[3]).putLong(System.currentTimeMillis());
+        header.flip();
+        while (header.hasRemaining()) {
+            writer.write(header);
+        }
+        
+        header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+        header.put(INDEX_MAGIC).put(VERSION).put(new byte[3]);
+        header.flip();
+        while (header.hasRemaining()) {
+            index_writer.write(header);
+        }
+        
+        writer.force(false);
+        index_writer.force(false);
+        this.length = HEADER_SIZE;
+        this.written = HEADER_SIZE;
+        this.last_sync = System.currentTimeMillis();
+        
+        // Start the writer thread.
+        this.lock = new Object();
+        this.pending = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.spare = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.full = null;
+        this.full_end = HEADER_SIZE;
+        this.closing = false;
+        this.error = null;
+        this.flusher = new Thread(this, Constants.APP_NAME + "-binary-capture");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    /**
+     * Gets the index file that goes along with a capture file.
+     * 
+     * @param file Capture file.
+     * @return Index file.
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + INDEX_EXTENSION);
+    }
+    
+    /**
+     * Appends data that went through the serial port to the capture. May be
+     * called from both the reader and the writer threads. Payloads bigger than
+     * MAX_PAYLOAD get split into multiple records. Only blocks if the writer
+     * thread is still busy with the other buffer when this one gets full, and
+     * does nothing once the capture is being closed.
+     * 
+     * @param direction Either RX or TX.
+     * @param data Buffer holding the data.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes to append.
+     * @param nanos When the data went through as given by System.nanoTime().
+     * @throws IOException If the writer thread failed to write to the files.
+     */
+    public void append(byte direction, byte[] data, int off, int len, long nanos) throws IOException {
+        synchronized (lock) {
+            if (error != null) {
+                throw error;
+            }
+            
+            while (len > 0) {
+                // Whatever arrives after closing has nowhere to go.
+                if (closing) {
+                    return;
+                }
+                
+                int count = Math.min(len, MAX_PAYLOAD);
+                
+                // Make sure the whole record fits in the buffer.
+                if (pending.remaining() < (count + MAX_RECORD_HEADER)) {
+                    waitForSpare();
+                    if (closing) {
+                        return;
+                    }
+                    
+                    swapBuffers();
+                }
+                
+                // Keep a sparse index of where the records are.
+                if ((length - last_indexed) >= INDEX_STRIDE) {
+                    addIndexEntry(last_nanos - start_nanos, length);
+                    last_indexed = length;
+                }
+                
+                // Both threads race to get here, so never go back in time.
+                long delta = Math.max(0, nanos - last_nanos);
+                last_nanos += delta;
+                
+                int start = pending.position();
+                putVarint(delta);
+                pending.put(direction);
+                putVarint(count);
+                pending.put(data, off, count);
+                
+                length += pending.position() - start;
+                records++;
+                off += count;
+                len -= count;
+            }
+        }
+    }
+    
+    /**
+     * Waits until the writer thread is done with the other buffer or the
+     * capture is being closed. Must be called while holding the lock.
+     * 
+     * @throws IOException If the writer thread failed to write to the files.
+     */
+    private void waitForSpare() throws IOException {
+        boolean interrupted = false;
+        
+        // The disk will get back to us, so don't give up on the data.
+        while ((spare == null) && (error == null) && !closing) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    /**
+     * Hands the pending buffer over to the writer thread and starts filling
+     * the spare one. Must be called while holding the lock with a spare
+     * buffer available.
+     */
+    private void swapBuffers() {
+        full = pending;
+        full_end = length;
+        pending = spare;
+        spare = null;
+        lock.notifyAll();
+    }
+    
+    /**
+     * Writer thread loop. Writes the buffers that get handed over, or
+     * whatever is pending once FLUSH_INTERVAL goes by without one, followed
+     * by the index entries that point into them.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer buf;
+                long end;
+                
+                // Wait for something to write.
+                synchronized (lock) {
+                    if ((full == null) && !closing) {
+                        lock.wait(FLUSH_INTERVAL);
+                    }
+                    
+                    if ((full == null) && (pending.position() > 0)) {
+                        swapBuffers();
+                    }
+                    
+                    if (full == null) {
+                        if (closing) {
+                            break;
+                        }
+                        
+                        sync(false);
+                        continue;
+                    }
+                    
+                    buf = full;
+                    end = full_end;
+                }
+                
+                // Write it without holding up the serial port threads.
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    writer.write(buf);
+                }
+                
+                buf.clear();
+                
+                long[] entries;
+                synchronized (lock) {
+                    full = null;
+                    spare = buf;
+                    written = end;
+                    entries = takeIndexEntries(end);
+                    lock.notifyAll();
+                }
+                
+                writeIndexEntries(entries);
+                sync(false);
+            }
+            
+            sync(true);
+        } catch (IOException ex) {
+            Debug.println("BINARY_CAPTURE_ERROR", ex.getMessage());
+            synchronized (lock) {
+                error = ex;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            Debug.println("BINARY_CAPTURE_ERROR", "Writer thread interrupted.");
+        }
+    }
+    
+    /**
+     * Forces the written data to the disk if it has been a while since the
+     * last time. The capture file goes first, so that the index never points
+     * past what was synced. Should only be called from the writer thread.
+     * 
+     * @param now Force it regardless of when it was last done.
+     * @throws IOException If the files couldn't be synced.
+     */
+    private void sync(boolean now) throws IOException {
+        if (now || ((System.currentTimeMillis() - last_sync) >= SYNC_INTERVAL)) {
+            writer.force(false);
+            index_writer.force(false);
+            last_sync = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Takes the queued index entries that point to records that are already
+     * in the capture file. Must be called while holding the lock.
+     * 
+     * @param end Number of bytes written to the capture file.
+     * @return Flattened (time, offset) pairs.
+     */
+    private long[] takeIndexEntries(long end) {
+        int i = 0;
+        while ((i < index_size) && (index[i + 1] < end)) {
+            i += 2;
+        }
+        
+        long[] entries = Arrays.copyOf(index, i);
+        System.arraycopy(index, i, index, 0, index_size - i);
+        index_size -= i;
+        
+        return entries;
+    }
+    
+    /**
+     * Writes index entries to the index file. Should only be called from the
+     * writer thread.
+     * 
+     * @param entries Flattened (time, offset) pairs.
+     * @throws IOException If the entries couldn't be written to the file.
+     */
+    private void writeIndexEntries(long[] entries) throws IOException {
+        for (int i = 0; i < entries.length; i += 2) {
+            if (!index_pending.hasRemaining()) {
+                writeIndexPending();
+            }
+            
+            index_pending.putLong(entries[i]).putLong(entries[i + 1]);
+        }
+        
+        writeIndexPending();
+    }
+    
+    /**
+     * Writes the pending index entries to the index file.
+     * 
+     * @throws IOException If the entries couldn't be written to the file.
+     */
+    private void writeIndexPending() throws IOException {
+        index_pending.flip();
+        while (index_pending.hasRemaining()) {
+            index_writer.write(index_pending);
+        }
+        
+        index_pending.clear();
+    }
+    
+    /**
+     * Queues an index entry until the record it points to gets written. Must
+     * be called while holding the lock.
+     * 
+     * @param time Time the delta of the record is relative to.
+     * @param offset Offset of the record in the capture file.
+     */
+    private void addIndexEntry(long time, long offset) {
+        if ((index_size + 2) > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        
+        index[index_size++] = time;
+        index[index_size++] = offset;
+    }
+    
+    /**
+     * Puts an unsigned variable length integer into the pending buffer, 7 bits
+     * at a time starting with the least significant ones.
+     * 
+     * @param value Value to be encoded.
+     */
+    private void putVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            pending.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        
+        pending.put((byte)value);
+    }
+    
+    /**
+     * Gets the number of bytes that were already written to the capture file.
+     * 
+     * @return Capture file size.
+     */
+    public long getLength() {
+        return this.written;
+    }
+    
+    /**
+     * Gets the number of records appended to the capture.
+     * 
+     * @return Number of records.
+     */
+    public long getRecordCount() {
+        return this.records;
+    }
+    
+    /**
+     * Gets the capture file.
+     * 
+     * @return Capture file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Writes everything that is pending and closes the capture. Anything
+     * appended after this was called is thrown away.
+     */
+    public void close() {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try {
+            writer.close();
+            index_writer.close();
+        } catch (IOException ex) {
+            Debug.println("BINARY_CAPTURE_ERROR", ex.getMessage());
+        }
+    }
+}
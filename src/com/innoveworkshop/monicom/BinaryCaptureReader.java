@@ -0,0 +1,353 @@
+package com.innoveworkshop.monicom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads back the records of a binary capture. The sparse index is used to
+ * jump close to any point in time with a binary search, so that only a small
+ * stretch of the capture has to be scanned no matter how big it is.
+ * 
+ * A capture left behind by a process that got killed is read up to its last
+ * complete record. Index entries that point past it are ignored, and so is a
+ * missing or damaged index, in which case seeking falls back to scanning from
+ * the start.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class BinaryCaptureReader implements Closeable {
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    
+    private final FileChannel reader;
+    private final long length;
+    private final long start_time;
+    private final LongBuffer index;
+    private final int index_count;
+    private final ByteBuffer buffer;
+    private long buffer_pos;
+    private long time;
+    private byte direction;
+    private byte[] payload;
+    private int payload_len;
+    
+    /**
+     * Opens a binary capture for reading.
+     * 
+     * @param file Capture file. The index is expected to be next to it.
+     * @throws IOException If the file couldn't be read or isn't a capture.
+     */
+    public BinaryCaptureReader(File file) throws IOException {
+        this.reader = new RandomAccessFile(file, "r").getChannel();
+        this.length = reader.size();
+        this.buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.payload = new byte[1024];
+        this.payload_len = 0;
+        
+        // Check the header.
+        ByteBuffer header = ByteBuffer.allocate(BinaryCapture.HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (reader.read(header, header.position()) <= 0) {
+                break;
+            }
+        }
+        
+        header.flip();
+        byte[] magic = new byte[BinaryCapture.MAGIC.length];
+        if (header.remaining() == BinaryCapture.HEADER_SIZE) {
+            header.get(magic);
+        }
+        
+        if (!Arrays.equals(magic, BinaryCapture.MAGIC) ||
+                (header.get() != BinaryCapture.VERSION)) {
+            reader.close();
+            throw new IOException(file + " isn't a binary capture.");
+        }
+        
+        header.position(header.position() + 3);
+        this.start_time = header.getLong();
+        
+        // Load whatever part of the index can be trusted.
+        this.index = loadIndex(BinaryCapture.getIndexFile(file));
+        this.index_count = (index != null) ? index.limit() / 2 : 0;
+        
+        rewind();
+    }
+    
+    /**
+     * Maps the index file and finds out how many of its entries point to
+     * records that made it to the capture file.
+     * 
+     * @param file Index file.
+     * @return Index entries as (time, offset) pairs or null if there's no
+     *         usable index.
+     */
+    private LongBuffer loadIndex(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            if (size < BinaryCapture.INDEX_HEADER_SIZE) {
+                return null;
+            }
+            
+            // Check the header.
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    BinaryCapture.INDEX_HEADER_SIZE);
+            byte[] magic = new byte[BinaryCapture.INDEX_MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, BinaryCapture.INDEX_MAGIC) ||
+                    (header.get() != BinaryCapture.VERSION)) {
+                return null;
+            }
+            
+            // Ignore a truncated entry at the end.
+            long count = (size - BinaryCapture.INDEX_HEADER_SIZE) / BinaryCapture.INDEX_ENTRY_SIZE;
+            count = Math.min(count, Integer.MAX_VALUE / BinaryCapture.INDEX_ENTRY_SIZE);
+            LongBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY,
+                    BinaryCapture.INDEX_HEADER_SIZE,
+                    count * BinaryCapture.INDEX_ENTRY_SIZE).asLongBuffer();
+            
+            // Ignore the entries that point past the end of the capture.
+            while ((count > 0) && (entries.get((int)(count - 1) * 2 + 1) >= length)) {
+                count--;
+            }
+            
+            entries.limit((int)count * 2);
+            return entries;
+        } catch (IOException ex) {
+            Debug.println("BINARY_CAPTURE_ERROR", ex.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Goes back to the start of the capture.
+     */
+    public void rewind() {
+        position(BinaryCapture.HEADER_SIZE, 0);
+    }
+    
+    /**
+     * Moves to a position in the capture file.
+     * 
+     * @param offset Offset of a record.
+     * @param base Time the delta of the record is relative to.
+     */
+    private void position(long offset, long base) {
+        buffer.clear();
+        buffer.flip();
+        buffer_pos = offset;
+        time = base;
+        payload_len = 0;
+    }
+    
+    /**
+     * Moves to the first record at or after a point in time. The index gets us
+     * to the last indexed record before it and the rest is done by scanning.
+     * 
+     * @param target Time in nanoseconds since the start of the capture.
+     * @return True if there's a record at or after that time, which becomes
+     *         the current one.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    public boolean seek(long target) throws IOException {
+        int low = 0;
+        int high = index_count - 1;
+        int found = -1;
+        
+        // Find the last entry that isn't past the target.
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (index.get(mid * 2) <= target) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        
+        if (found >= 0) {
+            position(index.get(found * 2 + 1), index.get(found * 2));
+        } else {
+            rewind();
+        }
+        
+        // Scan the rest of the way.
+        while (next()) {
+            if (time >= target) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Reads the next record, which becomes the current one.
+     * 
+     * @return True if a record was read, false at the end of the capture or
+     *         at a record that was only partially written.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    public boolean next() throws IOException {
+        fill(BinaryCapture.MAX_RECORD_HEADER);
+        int start = buffer.position();
+        
+        // Decode the record header.
+        long delta = getVarint();
+        if ((delta < 0) || !buffer.hasRemaining()) {
+            buffer.position(start);
+            return false;
+        }
+        
+        byte dir = buffer.get();
+        long len = getVarint();
+        if ((len < 0) || (len > BinaryCapture.MAX_PAYLOAD)) {
+            buffer.position(start);
+            return false;
+        }
+        
+        // Make sure the whole payload is there.
+        int header_len = buffer.position() - start;
+        buffer.position(start);
+        fill(header_len + (int)len);
+        if (buffer.remaining() < (header_len + len)) {
+            return false;
+        }
+        
+        if (payload.length < len) {
+            payload = new byte[Math.max((int)len, payload.length * 2)];
+        }
+        
+        buffer.position(buffer.position() + header_len);
+        buffer.get(payload, 0, (int)len);
+        payload_len = (int)len;
+        direction = dir;
+        time += delta;
+        
+        return true;
+    }
+    
+    /**
+     * Makes sure at least a number of bytes are available in the read buffer,
+     * unless the end of the capture gets in the way.
+     * 
+     * @param count Number of bytes needed.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    private void fill(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        
+        buffer_pos += buffer.position();
+        buffer.compact();
+        
+        long pos = buffer_pos + buffer.position();
+        while (buffer.hasRemaining() && (pos < length)) {
+            int read = reader.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            
+            pos += read;
+        }
+        
+        // Never look past the length that we started with.
+        buffer.flip();
+        buffer.limit((int)Math.min(buffer.limit(), length - buffer_pos));
+    }
+    
+    /**
+     * Gets an unsigned variable length integer from the read buffer.
+     * 
+     * @return Decoded value or -1 if it's incomplete or invalid.
+     */
+    private long getVarint() {
+        long value = 0;
+        
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            
+            byte b = buffer.get();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        
+        return -1;
+    }
+    
+    /**
+     * Gets the time of the current record.
+     * 
+     * @return Nanoseconds since the start of the capture.
+     */
+    public long getTime() {
+        return this.time;
+    }
+    
+    /**
+     * Gets the direction of the current record.
+     * 
+     * @return Either BinaryCapture.RX or BinaryCapture.TX.
+     */
+    public byte getDirection() {
+        return this.direction;
+    }
+    
+    /**
+     * Gets the payload of the current record. The buffer gets reused by the
+     * following reads.
+     * 
+     * @return Buffer holding the payload.
+     */
+    public byte[] getPayload() {
+        return this.payload;
+    }
+    
+    /**
+     * Gets the length of the payload of the current record.
+     * 
+     * @return Number of valid bytes in the payload buffer.
+     */
+    public int getPayloadLength() {
+        return this.payload_len;
+    }
+    
+    /**
+     * Gets when the capture was started.
+     * 
+     * @return Start time in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return this.start_time;
+    }
+    
+    /**
+     * Gets the number of usable entries in the index.
+     * 
+     * @return Number of index entries. 0 if there's no usable index.
+     */
+    public int getIndexSize() {
+        return this.index_count;
+    }
+    
+    /**
+     * Closes the capture file.
+     * 
+     * @throws IOException If the file couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,422 @@
+package com.innoveworkshop.monicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Searches saved capture files for a pattern. Each file is memory-mapped in
+ * CHUNK_SIZE chunks that are searched in parallel on a fork-join pool with a
+ * Boyer-Moore-Horspool scan. Chunks are mapped with enough overlap for the
+ * matches that straddle their boundaries, and each one counts its own
+ * newlines so that the line numbers can be put together with a prefix sum
+ * when the results are joined. Every chunk collects its own hits, so that
+ * when there are too many of them the ones that are kept are the first
+ * MAX_HITS in file order. Previews are only taken for those.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class CaptureSearch {
+    public static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    public static final int MAX_HITS = 100000;
+    private static final int PREVIEW_LENGTH = 160;
+    private static final int PREVIEW_CONTEXT = 60;
+    
+    private final ForkJoinPool pool;
+    private final byte[] pattern;
+    private final byte[] fold;
+    private final int[] skip;
+    private final Charset charset;
+    private final AtomicLong bytes_searched;
+    private int hits;
+    private volatile boolean truncated;
+    private volatile boolean cancelled;
+    
+    /**
+     * Creates a new capture search.
+     * 
+     * @param text Text to look for.
+     * @param match_case Is the search case sensitive? Only applies to ASCII.
+     * @param charset Charset the captures were received in.
+     */
+    public CaptureSearch(String text, boolean match_case, Charset charset) {
+        this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        this.charset = charset;
+        this.bytes_searched = new AtomicLong(0);
+        this.hits = 0;
+        this.truncated = false;
+        this.cancelled = false;
+        
+        // Fold the case of the ASCII letters if needed.
+        this.fold = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            fold[i] = (byte)(((i >= 'A') && (i <= 'Z') && !match_case) ? (i + 32) : i);
+        }
+        
+        this.pattern = text.getBytes(charset);
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = fold[pattern[i] & 0xFF];
+        }
+        
+        // Build the bad character table.
+        this.skip = new int[256];
+        Arrays.fill(skip, Math.max(1, pattern.length));
+        for (int i = 0; i < (pattern.length - 1); i++) {
+            skip[pattern[i] & 0xFF] = pattern.length - 1 - i;
+        }
+    }
+    
+    /**
+     * Searches a capture file. Files are expected to be searched one after
+     * the other, with the MAX_HITS limit shared between them.
+     * 
+     * @param file Capture file.
+     * @return Hits found in the file, in order.
+     * @throws IOException If the file couldn't be read.
+     */
+    public List<Hit> search(File file) throws IOException {
+        List<Hit> found = new ArrayList();
+        int limit = MAX_HITS - hits;
+        if ((pattern.length == 0) || (limit <= 0)) {
+            return found;
+        }
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Result result = pool.invoke(new ChunkTask(channel, 0, channel.size(), limit));
+            
+            // Only keep the first hits in file order.
+            if (result.count > limit) {
+                result.count = limit;
+                truncated = true;
+            }
+            
+            hits += result.count;
+            
+            // Take the previews of the hits, a chunk at a time.
+            MappedByteBuffer buf = null;
+            long map_start = 0;
+            long map_end = 0;
+            for (int i = 0; i < result.count; i++) {
+                long offset = result.offsets[i];
+                if ((buf == null) || (offset >= (map_end - PREVIEW_LENGTH))) {
+                    long chunk = (offset / CHUNK_SIZE) * CHUNK_SIZE;
+                    map_start = Math.max(0, chunk - PREVIEW_CONTEXT);
+                    map_end = Math.min(channel.size(), chunk + CHUNK_SIZE + PREVIEW_LENGTH);
+                    buf = channel.map(FileChannel.MapMode.READ_ONLY, map_start,
+                            map_end - map_start);
+                }
+                
+                found.add(new Hit(file, offset, result.lines[i] + 1,
+                        getPreview(buf, (int)(offset - map_start))));
+            }
+        } catch (RuntimeException ex) {
+            // Mapping errors come back wrapped by the pool.
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            
+            throw ex;
+        }
+        
+        return found;
+    }
+    
+    /**
+     * Searches a single chunk of a file.
+     * 
+     * @param channel File being searched.
+     * @param start Offset where the chunk starts.
+     * @param end Offset where the chunk ends.
+     * @param limit Number of hits after which the chunk stops collecting
+     *              them. One more is collected to tell that there were more.
+     * @return Hits in the chunk and its number of newlines.
+     * @throws IOException If the chunk couldn't be mapped.
+     */
+    private Result searchChunk(FileChannel channel, long start, long end, int limit)
+            throws IOException {
+        Result result = new Result();
+        if (cancelled) {
+            return result;
+        }
+        
+        // Map a bit before the chunk for the previews and a bit after it for
+        // the matches that cross its end.
+        long map_start = Math.max(0, start - PREVIEW_CONTEXT);
+        long map_end = Math.min(channel.size(), end + Math.max(pattern.length - 1, PREVIEW_LENGTH));
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, map_start,
+                map_end - map_start);
+        
+        int m = pattern.length;
+        int i = (int)(start - map_start);
+        int last = (int)(Math.min(end, map_end - m + 1) - map_start);
+        int counted = i;
+        long newlines = 0;
+        
+        while (i < last) {
+            int j = m - 1;
+            while ((j >= 0) && (fold[buf.get(i + j) & 0xFF] == pattern[j])) {
+                j--;
+            }
+            
+            if (j >= 0) {
+                i += skip[fold[buf.get(i + m - 1) & 0xFF]];
+                continue;
+            }
+            
+            // Count the lines up to the match.
+            for (; counted < i; counted++) {
+                if (buf.get(counted) == '\n') {
+                    newlines++;
+                }
+            }
+            
+            result.add(map_start + i, newlines);
+            if (result.count > limit) {
+                break;
+            }
+            
+            i += m;
+        }
+        
+        // Count the rest of the lines in the chunk.
+        int chunk_end = (int)(end - map_start);
+        for (; counted < chunk_end; counted++) {
+            if (buf.get(counted) == '\n') {
+                newlines++;
+            }
+        }
+        
+        result.newlines = newlines;
+        bytes_searched.addAndGet(end - start);
+        
+        return result;
+    }
+    
+    /**
+     * Gets the line around a match.
+     * 
+     * @param buf Mapped chunk.
+     * @param pos Position of the match in the chunk.
+     * @return Line preview.
+     */
+    private String getPreview(MappedByteBuffer buf, int pos) {
+        int from = pos;
+        while ((from > 0) && ((pos - from) < PREVIEW_CONTEXT) && (buf.get(from - 1) != '\n')) {
+            from--;
+        }
+        
+        int to = pos;
+        while ((to < buf.limit()) && ((to - from) < PREVIEW_LENGTH) && (buf.get(to) != '\n')) {
+            to++;
+        }
+        
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        
+        return new String(bytes, charset).replace('\r', ' ');
+    }
+    
+    /**
+     * Stops the search as soon as possible.
+     */
+    public void cancel() {
+        this.cancelled = true;
+    }
+    
+    /**
+     * Checks if the search was cancelled.
+     * 
+     * @return True if cancelled.
+     */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+    
+    /**
+     * Gets the number of bytes that were searched so far.
+     * 
+     * @return Bytes searched.
+     */
+    public long getBytesSearched() {
+        return this.bytes_searched.get();
+    }
+    
+    /**
+     * Checks if the search stopped collecting hits because it found too many.
+     * 
+     * @return True if there were more than MAX_HITS hits.
+     */
+    public boolean isTruncated() {
+        return this.truncated;
+    }
+    
+    /**
+     * Releases the worker threads.
+     */
+    public void close() {
+        pool.shutdownNow();
+    }
+    
+    /**
+     * Splits a range of the file in half until it's small enough to be
+     * searched in one go.
+     */
+    private class ChunkTask extends RecursiveTask<Result> {
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final int limit;
+        
+        /**
+         * Creates a new chunk search task.
+         * 
+         * @param channel File being searched.
+         * @param start Offset where the range starts.
+         * @param end Offset where the range ends.
+         * @param limit Number of hits after which each chunk stops collecting
+         *              them.
+         */
+        public ChunkTask(FileChannel channel, long start, long end, int limit) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.limit = limit;
+        }
+        
+        @Override
+        protected Result compute() {
+            long chunks = (end - start + CHUNK_SIZE - 1) / CHUNK_SIZE;
+            
+            // Search it if it's small enough.
+            if (chunks <= 1) {
+                try {
+                    return searchChunk(channel, start, end, limit);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            
+            // Split it at a chunk boundary.
+            long mid = start + ((chunks / 2) * CHUNK_SIZE);
+            ChunkTask left = new ChunkTask(channel, start, mid, limit);
+            left.fork();
+            Result right = new ChunkTask(channel, mid, end, limit).compute();
+            
+            return left.join().append(right, limit);
+        }
+    }
+    
+    /**
+     * Hits found in a range of a file with their line numbers counted from
+     * the start of the range.
+     */
+    private static class Result {
+        private long[] offsets = new long[16];
+        private long[] lines = new long[16];
+        private int count = 0;
+        private long newlines = 0;
+        
+        /**
+         * Adds a hit.
+         * 
+         * @param offset Byte offset of the hit.
+         * @param line Number of newlines before the hit in the range.
+         */
+        private void add(long offset, long line) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lines = Arrays.copyOf(lines, count * 2);
+            }
+            
+            offsets[count] = offset;
+            lines[count] = line;
+            count++;
+        }
+        
+        /**
+         * Appends the results of the range that comes right after this one,
+         * shifting its line numbers by the lines in this one. Hits past the
+         * limit are left out, apart from one to tell that there were more.
+         * 
+         * @param next Results of the following range.
+         * @param limit Maximum number of hits to keep.
+         * @return This result.
+         */
+        private Result append(Result next, int limit) {
+            for (int i = 0; (i < next.count) && (count <= limit); i++) {
+                add(next.offsets[i], newlines + next.lines[i]);
+            }
+            
+            newlines += next.newlines;
+            return this;
+        }
+    }
+    
+    /**
+     * A single match found in a capture file.
+     */
+    public static class Hit {
+        private final File file;
+        private final long offset;
+        private final long line;
+        private final String preview;
+        
+        /**
+         * Creates a new search hit.
+         * 
+         * @param file File where the match was found.
+         * @param offset Byte offset of the match.
+         * @param line Line number of the match, starting at 1.
+         * @param preview Text of the line around the match.
+         */
+        public Hit(File file, long offset, long line, String preview) {
+            this.file = file;
+            this.offset = offset;
+            this.line = line;
+            this.preview = preview;
+        }
+        
+        /**
+         * Gets the file where the match was found.
+         * 
+         * @return Capture file.
+         */
+        public File getFile() {
+            return this.file;
+        }
+        
+        /**
+         * Gets the byte offset of the match.
+         * 
+         * @return Offset in the file.
+         */
+        public long getOffset() {
+            return this.offset;
+        }
+        
+        /**
+         * Gets the line number of the match.
+         * 
+         * @return Line number, starting at 1.
+         */
+        public long getLine() {
+            return this.line;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("%s:%d [%d]: %s", file.getName(), line, offset, preview);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import javax.swing.*;
+
+/**
+ * A window that searches through saved capture files in the background and
+ * lists every match with its file, line number and byte offset.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class CaptureSearchWindow extends JFrame {
+    private static final int REFRESH_INTERVAL = 250;
+    
+    private final JTextField txtSearch;
+    private final JCheckBox chkMatchCase;
+    private final JButton btSearch;
+    private final JLabel lblFiles;
+    private final DefaultListModel<CaptureSearch.Hit> results;
+    private final JProgressBar prgSearch;
+    private final JLabel lblStatus;
+    private final Timer timer;
+    private File directory;
+    private File[] files;
+    private Charset charset;
+    private CaptureSearch search;
+    private SwingWorker<Void, CaptureSearch.Hit> worker;
+    private long total_bytes;
+    private long start_time;
+    
+    /**
+     * Creates a new capture search window.
+     * 
+     * @param directory Directory where the file chooser starts.
+     */
+    public CaptureSearchWindow(File directory) {
+        this.directory = directory;
+        this.files = new File[0];
+        this.charset = StandardCharsets.UTF_8;
+        this.search = null;
+        this.worker = null;
+        
+        // Setup the search bar.
+        this.txtSearch = new JTextField(25);
+        this.chkMatchCase = new JCheckBox("Match Case");
+        this.btSearch = new JButton("Search");
+        this.lblFiles = new JLabel("No files");
+        JButton btFiles = new JButton("Files...");
+        txtSearch.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                startSearch();
+            }
+        });
+        btSearch.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (worker != null) {
+                    stopSearch();
+                } else {
+                    startSearch();
+                }
+            }
+        });
+        btFiles.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                chooseFiles();
+            }
+        });
+        
+        JPanel pnlSearch = new JPanel(new FlowLayout(FlowLayout.LEADING));
+        pnlSearch.add(btFiles);
+        pnlSearch.add(lblFiles);
+        pnlSearch.add(txtSearch);
+        pnlSearch.add(chkMatchCase);
+        pnlSearch.add(btSearch);
+        
+        // Setup the results.
+        this.results = new DefaultListModel();
+        this.prgSearch = new JProgressBar(0, 100);
+        this.lblStatus = new JLabel(" ");
+        prgSearch.setStringPainted(true);
+        JPanel pnlStatus = new JPanel(new BorderLayout(5, 5));
+        pnlStatus.add(lblStatus, BorderLayout.CENTER);
+        pnlStatus.add(prgSearch, BorderLayout.EAST);
+        
+        // Setup the window.
+        setTitle("Search Captures");
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        getContentPane().add(pnlSearch, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(new JList(results)), BorderLayout.CENTER);
+        getContentPane().add(pnlStatus, BorderLayout.SOUTH);
+        setSize(720, 480);
+        
+        // Keep the progress up to date while searching.
+        this.timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                updateProgress();
+            }
+        });
+    }
+    
+    /**
+     * Lets the user pick which capture files will be searched.
+     */
+    private void chooseFiles() {
+        JFileChooser chooser = new JFileChooser(directory);
+        chooser.setMultiSelectionEnabled(true);
+        chooser.setDialogTitle("Capture Files");
+        
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            files = chooser.getSelectedFiles();
+            directory = chooser.getCurrentDirectory();
+            lblFiles.setText((files.length == 1) ? files[0].getName() : files.length + " files");
+        }
+    }
+    
+    /**
+     * Searches the chosen files in the background.
+     */
+    private void startSearch() {
+        if (txtSearch.getText().isEmpty() || (worker != null)) {
+            return;
+        }
+        
+        // Make sure we have something to search.
+        if (files.length == 0) {
+            chooseFiles();
+            if (files.length == 0) {
+                return;
+            }
+        }
+        
+        results.clear();
+        total_bytes = 0;
+        for (File file : files) {
+            total_bytes += file.length();
+        }
+        
+        search = new CaptureSearch(txtSearch.getText(), chkMatchCase.isSelected(), charset);
+        final CaptureSearch current = search;
+        final File[] targets = files;
+        worker = new SwingWorker<Void, CaptureSearch.Hit>() {
+            @Override
+            protected Void doInBackground() throws IOException {
+                for (File file : targets) {
+                    if (current.isCancelled()) {
+                        break;
+                    }
+                    
+                    List<CaptureSearch.Hit> hits = current.search(file);
+                    publish(hits.toArray(new CaptureSearch.Hit[hits.size()]));
+                }
+                
+                return null;
+            }
+            
+            @Override
+            protected void process(List<CaptureSearch.Hit> hits) {
+                for (CaptureSearch.Hit hit : hits) {
+                    results.addElement(hit);
+                }
+            }
+            
+            @Override
+            protected void done() {
+                searchFinished(this, current);
+            }
+        };
+        
+        start_time = System.nanoTime();
+        btSearch.setText("Stop");
+        prgSearch.setValue(0);
+        timer.start();
+        worker.execute();
+    }
+    
+    /**
+     * Stops the running search.
+     */
+    private void stopSearch() {
+        if (search != null) {
+            search.cancel();
+        }
+    }
+    
+    /**
+     * Cleans up after a search is over and shows how it went.
+     * 
+     * @param finished Worker that just finished.
+     * @param current Search it ran.
+     */
+    private void searchFinished(SwingWorker<Void, CaptureSearch.Hit> finished,
+            CaptureSearch current) {
+        current.close();
+        timer.stop();
+        updateProgress();
+        worker = null;
+        search = null;
+        btSearch.setText("Search");
+        
+        // Report any errors.
+        try {
+            finished.get();
+        } catch (InterruptedException ex) {
+            Debug.println("CAPTURE_SEARCH", "Interrupted");
+        } catch (ExecutionException ex) {
+            Debug.println("CAPTURE_SEARCH", ex.getCause().getMessage());
+            JOptionPane.showMessageDialog(this, "Couldn't search the captures: " +
+                    ex.getCause().getMessage(), "Search Error", JOptionPane.ERROR_MESSAGE);
+        }
+        
+        // Show the throughput.
+        double seconds = (System.nanoTime() - start_time) / 1e9;
+        lblStatus.setText(String.format(" %d hits%s in %.1f MB (%.1f MB/s)%s", results.size(),
+                current.isTruncated() ? " (truncated)" : "",
+                current.getBytesSearched() / 1048576.0,
+                (current.getBytesSearched() / 1048576.0) / Math.max(seconds, 0.001),
+                current.isCancelled() ? ", cancelled" : ""));
+    }
+    
+    /**
+     * Updates the progress bar with the number of bytes searched so far.
+     */
+    private void updateProgress() {
+        if ((search != null) && (total_bytes > 0)) {
+            prgSearch.setValue((int)((search.getBytesSearched() * 100) / total_bytes));
+            lblStatus.setText(String.format(" %d hits so far", results.size()));
+        }
+    }
+    
+    /**
+     * Sets the charset used to encode the search and decode the previews.
+     * 
+     * @param charset Charset the captures were received in.
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+    
+    @Override
+    public void setVisible(boolean visible) {
+        if (!visible) {
+            stopSearch();
+        }
+        
+        super.setVisible(visible);
+    }
+}
@@ -0,0 +1,148 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * A virtualized view of a session capture. Only the lines that are visible
+ * get read from the capture file, which means that scrolling through a huge
+ * session costs the same as scrolling through a small one.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class CaptureView extends JPanel {
+    private SessionCapture capture;
+    private final JComponent canvas;
+    private final JScrollBar scrVertical;
+    private final JScrollBar scrHorizontal;
+    private final List<String> lines;
+    private boolean following;
+    
+    /**
+     * Creates a new capture view.
+     * 
+     * @param capture Session capture to be displayed.
+     * @param font Font used to render the lines.
+     */
+    public CaptureView(SessionCapture capture, Font font) {
+        super(new BorderLayout());
+        this.capture = capture;
+        this.lines = new ArrayList();
+        this.following = true;
+        
+        // Create the area where the lines get drawn.
+        this.canvas = new JComponent() {
+            @Override
+            protected void paintComponent(Graphics g) {
+                paintLines(g);
+            }
+        };
+        canvas.setFont(font);
+        canvas.setOpaque(true);
+        canvas.setBackground(UIManager.getColor("TextArea.background"));
+        canvas.setForeground(UIManager.getColor("TextArea.foreground"));
+        
+        // Setup the scroll bars.
+        this.scrVertical = new JScrollBar(JScrollBar.VERTICAL);
+        this.scrHorizontal = new JScrollBar(JScrollBar.HORIZONTAL);
+        scrVertical.addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent evt) {
+                following = (scrVertical.getValue() + scrVertical.getVisibleAmount()) >=
+                        scrVertical.getMaximum();
+                canvas.repaint();
+            }
+        });
+        scrHorizontal.addAdjustmentListener(new AdjustmentListener() {
+            @Override
+            public void adjustmentValueChanged(AdjustmentEvent evt) {
+                canvas.repaint();
+            }
+        });
+        
+        // Scroll with the mouse wheel.
+        canvas.addMouseWheelListener(new MouseWheelListener() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent evt) {
+                scrVertical.setValue(scrVertical.getValue() +
+                        (evt.getUnitsToScroll() * scrVertical.getUnitIncrement()));
+            }
+        });
+        
+        // Recalculate the visible range when resized.
+        canvas.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent evt) {
+                refresh();
+            }
+        });
+        
+        add(canvas, BorderLayout.CENTER);
+        add(scrVertical, BorderLayout.EAST);
+        add(scrHorizontal, BorderLayout.SOUTH);
+    }
+    
+    /**
+     * Updates the scroll bars to reflect the current size of the capture and
+     * keeps following the end of it if we were already there.
+     */
+    public void refresh() {
+        FontMetrics metrics = canvas.getFontMetrics(canvas.getFont());
+        int rows = Math.max(1, canvas.getHeight() / metrics.getHeight());
+        int cols = Math.max(1, canvas.getWidth() / metrics.charWidth('M'));
+        int total = (int)Math.min(Integer.MAX_VALUE, capture.getLineCount());
+        int value = following ? Math.max(0, total - rows) : scrVertical.getValue();
+        
+        scrVertical.setValues(value, Math.min(rows, total), 0, total);
+        scrVertical.setBlockIncrement(rows);
+        scrHorizontal.setValues(scrHorizontal.getValue(), cols, 0,
+                Math.max(cols, capture.getMaxLineLength()));
+        scrHorizontal.setBlockIncrement(cols);
+        canvas.repaint();
+    }
+    
+    /**
+     * Paints the lines that are currently visible.
+     * 
+     * @param g Graphics context of the canvas.
+     */
+    private void paintLines(Graphics g) {
+        FontMetrics metrics = g.getFontMetrics(canvas.getFont());
+        int height = metrics.getHeight();
+        int rows = (canvas.getHeight() / height) + 1;
+        int x = -scrHorizontal.getValue() * metrics.charWidth('M');
+        
+        g.setColor(canvas.getBackground());
+        g.fillRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        
+        // Page in the visible lines.
+        lines.clear();
+        try {
+            capture.readLines(scrVertical.getValue(), rows, lines);
+        } catch (IOException ex) {
+            Debug.println("CAPTURE_ERROR", ex.getMessage());
+        }
+        
+        // Draw them.
+        g.setColor(canvas.getForeground());
+        g.setFont(canvas.getFont());
+        for (int i = 0; i < lines.size(); i++) {
+            g.drawString(lines.get(i), x, (i * height) + metrics.getAscent());
+        }
+    }
+    
+    /**
+     * Sets the capture that is displayed.
+     * 
+     * @param capture Session capture.
+     */
+    public void setCapture(SessionCapture capture) {
+        this.capture = capture;
+        this.following = true;
+        refresh();
+    }
+}
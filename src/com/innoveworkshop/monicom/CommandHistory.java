@@ -0,0 +1,346 @@
+package com.innoveworkshop.monicom;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent, deduplicated history of the commands sent by the user. The
+ * history file is only loaded the first time it's needed and new commands
+ * are simply appended to it. Completion goes through a sorted array of the
+ * distinct commands, where the ones that start with a prefix form a range
+ * found with a binary search. Each of them knows where it is in the history,
+ * so finding the most recent match only looks at that range.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class CommandHistory {
+    private static final int MIN_COMPACT_HOLES = 1000;
+    
+    private final File file;
+    private final List<String> entries;
+    private String[] sorted;
+    private int[] order;
+    private int count;
+    private int holes;
+    private boolean loaded;
+    private int cursor;
+    private String draft;
+    private String completing;
+    private int completion;
+    
+    /**
+     * Creates a command history backed by the default history file in the
+     * user's home directory.
+     */
+    public CommandHistory() {
+        this(new File(System.getProperty("user.home"), "." + Constants.APP_NAME + "_history"));
+    }
+    
+    /**
+     * Creates a command history backed by a file.
+     * 
+     * @param file History file.
+     */
+    public CommandHistory(File file) {
+        this.file = file;
+        this.entries = new ArrayList();
+        this.sorted = new String[16];
+        this.order = new int[16];
+        this.count = 0;
+        this.holes = 0;
+        this.loaded = false;
+        this.cursor = 0;
+        this.draft = "";
+        this.completing = null;
+        this.completion = -1;
+    }
+    
+    /**
+     * Loads the history file if it wasn't loaded yet. If it has way more
+     * duplicates than commands it gets compacted.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        
+        int lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    entries.add(line);
+                }
+                
+                lines++;
+            }
+        } catch (IOException ex) {
+            Debug.println("HISTORY_ERROR", ex.getMessage());
+        }
+        
+        // Only keep the most recent copy of each command.
+        Map<String, Integer> latest = new HashMap();
+        for (int i = 0; i < entries.size(); i++) {
+            latest.put(entries.get(i), i);
+        }
+        
+        for (int i = 0; i < entries.size(); i++) {
+            if (latest.get(entries.get(i)) != i) {
+                entries.set(i, null);
+                holes++;
+            }
+        }
+        
+        compactEntries();
+        latest.clear();
+        for (int i = 0; i < entries.size(); i++) {
+            latest.put(entries.get(i), i);
+        }
+        
+        // Sort them for completion.
+        count = entries.size();
+        sorted = entries.toArray(new String[Math.max(16, count)]);
+        order = new int[sorted.length];
+        Arrays.sort(sorted, 0, count);
+        for (int i = 0; i < count; i++) {
+            order[i] = latest.get(sorted[i]);
+        }
+        
+        cursor = entries.size();
+        if (lines > (2 * count) + 1000) {
+            compact();
+        }
+        
+        Debug.println("HISTORY_LOADED", count + " commands");
+    }
+    
+    /**
+     * Rewrites the history file without the duplicates.
+     */
+    private void compact() {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (String entry : entries) {
+                if (entry != null) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException ex) {
+            Debug.println("HISTORY_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Gets rid of the holes left in the history by commands that were sent
+     * again, updating where the sorted commands point to.
+     */
+    private void compactEntries() {
+        int[] remap = new int[entries.size()];
+        int size = 0;
+        
+        for (int i = 0; i < entries.size(); i++) {
+            String entry = entries.get(i);
+            if (entry != null) {
+                remap[i] = size;
+                entries.set(size++, entry);
+            }
+        }
+        
+        entries.subList(size, entries.size()).clear();
+        for (int i = 0; i < count; i++) {
+            order[i] = remap[order[i]];
+        }
+        
+        holes = 0;
+    }
+    
+    /**
+     * Adds a command to the history in memory. If it was already there it
+     * becomes the most recent one.
+     * 
+     * @param command Command to be added.
+     */
+    private void insert(String command) {
+        int index = entries.size();
+        int slot = Arrays.binarySearch(sorted, 0, count, command);
+        
+        if (slot >= 0) {
+            // Get rid of the old copy.
+            entries.set(order[slot], null);
+            holes++;
+        } else {
+            // Make room for it in the sorted commands.
+            slot = -slot - 1;
+            if (count == sorted.length) {
+                sorted = Arrays.copyOf(sorted, count * 2);
+                order = Arrays.copyOf(order, count * 2);
+            }
+            
+            System.arraycopy(sorted, slot, sorted, slot + 1, count - slot);
+            System.arraycopy(order, slot, order, slot + 1, count - slot);
+            sorted[slot] = command;
+            count++;
+        }
+        
+        order[slot] = index;
+        entries.add(command);
+        
+        // Don't let the holes pile up.
+        if (holes > Math.max(MIN_COMPACT_HOLES, count)) {
+            compactEntries();
+        }
+    }
+    
+    /**
+     * Adds a command to the history and appends it to the history file.
+     * 
+     * @param command Command to be added.
+     */
+    public void add(String command) {
+        ensureLoaded();
+        if (command.isEmpty() || command.indexOf('\n') >= 0) {
+            return;
+        }
+        
+        // Skip writing it if it's the same as the last one.
+        int slot = Arrays.binarySearch(sorted, 0, count, command);
+        boolean last = (slot >= 0) && (order[slot] == (entries.size() - 1));
+        insert(command);
+        cursor = entries.size();
+        completing = null;
+        
+        if (!last) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true),
+                    StandardCharsets.UTF_8)) {
+                writer.write(command);
+                writer.write('\n');
+            } catch (IOException ex) {
+                Debug.println("HISTORY_ERROR", ex.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Goes back in the history.
+     * 
+     * @param current What is currently typed, kept to come back to later.
+     * @return Previous command or null if there isn't one.
+     */
+    public String previous(String current) {
+        ensureLoaded();
+        if (cursor == entries.size()) {
+            draft = current;
+        }
+        
+        for (int i = cursor - 1; i >= 0; i--) {
+            if (entries.get(i) != null) {
+                cursor = i;
+                return entries.get(i);
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Goes forward in the history.
+     * 
+     * @return Next command or what was being typed before going back.
+     */
+    public String next() {
+        ensureLoaded();
+        
+        for (int i = cursor + 1; i < entries.size(); i++) {
+            if (entries.get(i) != null) {
+                cursor = i;
+                return entries.get(i);
+            }
+        }
+        
+        cursor = entries.size();
+        return draft;
+    }
+    
+    /**
+     * Completes a command. Calling it again with the completion it returned
+     * goes through older commands that start with the same prefix.
+     * 
+     * @param text What is currently typed.
+     * @return Completed command or null if nothing matches.
+     */
+    public String complete(String text) {
+        ensureLoaded();
+        
+        // Cycle through the older matches of the same prefix.
+        boolean cycling = (completing != null) && (completion >= 0) &&
+                text.equals(entries.get(completion));
+        String prefix = cycling ? completing : text;
+        int before = cycling ? completion : Integer.MAX_VALUE;
+        
+        // Find the most recent match in the range of commands with the prefix.
+        int first = Arrays.binarySearch(sorted, 0, count, prefix);
+        if (first < 0) {
+            first = -first - 1;
+        }
+        
+        int best = -1;
+        for (int i = first, end = prefixEnd(prefix, first); i < end; i++) {
+            if ((order[i] < before) && (order[i] > best)) {
+                best = order[i];
+            }
+        }
+        
+        if (best < 0) {
+            return null;
+        }
+        
+        completing = prefix;
+        completion = best;
+        return entries.get(completion);
+    }
+    
+    /**
+     * Finds where the range of sorted commands that start with a prefix ends.
+     * 
+     * @param prefix Prefix of the commands.
+     * @param first Index of the first command that could have the prefix.
+     * @return Index right after the last command with the prefix.
+     */
+    private int prefixEnd(String prefix, int first) {
+        int low = first;
+        int high = count;
+        
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid].startsWith(prefix)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        return low;
+    }
+    
+    /**
+     * Gets the number of commands in the history.
+     * 
+     * @return Number of distinct commands.
+     */
+    public int size() {
+        ensureLoaded();
+        return count;
+    }
+}
@@ -2,6 +2,9 @@ package com.innoveworkshop.monicom;
 
 import gnu.io.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
 import java.util.*;
 
 /**
@@ -11,6 +14,10 @@ import java.util.*;
  * @author Nathan Campos <nathan@innoveworkshop.com>
  */
 public class CommsHandler {
+    public static final int READ_MODE_EVENT = 0;
+    public static final int READ_MODE_THREAD = 1;
+    private static final long READER_JOIN_TIMEOUT = 1000;
+    
     private CommPort comm;
     private SerialPort serial;
     private OutputStream output;
@@ -21,6 +28,17 @@ public class CommsHandler {
     private int data_bits;
     private int stop_bits;
     private boolean connected;
+    private int read_mode;
+    private int receive_threshold;
+    private int receive_timeout;
+    private Thread reader_thread;
+    private Charset charset;
+    private CharsetEncoder encoder;
+    private ByteBuffer encode_buf;
+    private TransmitQueue transmit;
+    private SessionListener listener;
+    private long char_delay;
+    private long line_delay;
 
     /**
      * Creates a new CommsHandler object with the default configuration.
@@ -30,6 +48,10 @@ public class CommsHandler {
      *   - Parity: None
      *   - Data Bits: 8
      *   - Stop Bits: 1
+     *   - Read Mode: Event notification
+     *   - Receive Threshold: 4096 bytes
+     *   - Receive Timeout: 10 ms
+     *   - Charset: UTF-8
      */
     public CommsHandler() {
         this.serial = null;
@@ -39,6 +61,16 @@ public class CommsHandler {
         this.data_bits = SerialPort.DATABITS_8;
         this.stop_bits = SerialPort.STOPBITS_1;
         this.connected = false;
+        this.read_mode = READ_MODE_EVENT;
+        this.receive_threshold = 4096;
+        this.receive_timeout = 10;
+        this.reader_thread = null;
+        this.encode_buf = ByteBuffer.allocate(4096);
+        this.transmit = null;
+        this.listener = null;
+        this.char_delay = 0;
+        this.line_delay = 0;
+        setCharset(StandardCharsets.UTF_8);
     }
     
     /**
@@ -64,10 +96,35 @@ public class CommsHandler {
                 InputStream in = serial.getInputStream();
                 this.output = serial.getOutputStream();
                 
-                // Create the serial reader event.
                 reader.setInputStream(in);
+                
+                // Writes go through their own thread.
+                transmit = new TransmitQueue(output, listener);
+                transmit.setCharDelay(char_delay);
+                transmit.setLineDelay(line_delay);
+                transmit.start();
+                
+                // Get notified about line errors no matter how we read.
                 serial.addEventListener(reader);
-                serial.notifyOnDataAvailable(true);
+                serial.notifyOnOverrunError(true);
+                serial.notifyOnFramingError(true);
+                serial.notifyOnParityError(true);
+                serial.notifyOnBreakInterrupt(true);
+                
+                if (read_mode == READ_MODE_THREAD) {
+                    // Block until we either have a whole batch or the line goes quiet.
+                    serial.enableReceiveThreshold(receive_threshold);
+                    serial.enableReceiveTimeout(receive_timeout);
+                    
+                    // Start our own reader thread.
+                    reader_thread = new Thread(reader, Constants.APP_NAME + "-reader");
+                    reader_thread.setPriority(Thread.MAX_PRIORITY);
+                    reader_thread.setDaemon(true);
+                    reader_thread.start();
+                } else {
+                    // Read from the serial reader event.
+                    serial.notifyOnDataAvailable(true);
+                }
                 
                 Debug.println("CONNECT", "Connected to " + port + " and everything is setup.");
                 this.connected = true;
@@ -84,7 +141,8 @@ public class CommsHandler {
             }
         }
         
-        this.connected = false;
+        // Don't leave the port open or the threads running if we failed halfway.
+        close();
         return false;
     }
     
@@ -92,8 +150,32 @@ public class CommsHandler {
      * Closes the serial port connection.
      */
     public void close() {
+        // Let the reader thread know that it should stop and give it a chance
+        // to get out of its read before the port goes away under it.
+        if (this.reader_thread != null) {
+            this.reader_thread.interrupt();
+            
+            try {
+                this.reader_thread.join(READER_JOIN_TIMEOUT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            
+            if (this.reader_thread.isAlive()) {
+                Debug.println("DISCONNECT", "Reader thread didn't stop in time.");
+            }
+            
+            this.reader_thread = null;
+        }
+        
+        // Stop the writer thread.
+        if (this.transmit != null) {
+            this.transmit.close();
+        }
+        
         if (this.comm != null) {
             this.comm.close();
+            this.comm = null;
             Debug.println("DISCONNECT", "Port closed.");
         }
         
@@ -101,31 +183,157 @@ public class CommsHandler {
     }
     
     /**
-     * Writes a string to the serial port.
-     * Default encoding: UTF-8
+     * Queues a string to be written to the serial port using the session
+     * charset.
      * 
      * @param str String to be written.
+     * @return False if not connected or the transmit queue doesn't have room
+     *         for all of it, in which case nothing gets queued.
      */
-    public void sendString(String str) {
-        sendString(str, "UTF-8");
+    public boolean sendString(String str) {
+        if (!connected) {
+            return false;
+        }
+        
+        CharBuffer chars = CharBuffer.wrap(str);
+        encoder.reset();
+        encode_buf.clear();
+        
+        // Encode the whole thing first, so that it either gets queued in full
+        // or not at all.
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, encode_buf, true);
+            if (result.isOverflow() && !growEncodeBuffer()) {
+                return false;
+            }
+        } while (result.isOverflow());
+        
+        do {
+            result = encoder.flush(encode_buf);
+            if (result.isOverflow() && !growEncodeBuffer()) {
+                return false;
+            }
+        } while (result.isOverflow());
+        
+        return transmit.offer(encode_buf.array(), 0, encode_buf.position());
+    }
+    
+    /**
+     * Doubles the size of the reusable encoding buffer, keeping what was
+     * already encoded into it.
+     * 
+     * @return False if the buffer would get bigger than the transmit queue,
+     *         in which case the data could never be queued anyway.
+     */
+    private boolean growEncodeBuffer() {
+        if (encode_buf.capacity() >= TransmitQueue.DEFAULT_CAPACITY) {
+            return false;
+        }
+        
+        ByteBuffer buf = ByteBuffer.allocate(encode_buf.capacity() * 2);
+        encode_buf.flip();
+        buf.put(encode_buf);
+        encode_buf = buf;
+        
+        return true;
     }
     
     /**
-     * Writes a string to the serial port with a given encoding.
+     * Queues a string to be written to the serial port with a given encoding.
      * 
      * @param str String to be written.
      * @param encoding Encoding to be used.
+     * @return False if not connected, the encoding isn't supported or the
+     *         transmit queue is full.
      */
-    public void sendString(String str, String encoding) {
-        if (connected) {
-            try {
-                output.write(str.getBytes(encoding));
-            } catch (IOException ex) {
-                System.out.println(ex.getMessage());
-                ex.printStackTrace();
-                System.exit(-1);
-            }
+    public boolean sendString(String str, String encoding) {
+        if (!connected) {
+            return false;
         }
+        
+        try {
+            byte[] data = str.getBytes(encoding);
+            return transmit.offer(data, 0, data.length);
+        } catch (UnsupportedEncodingException ex) {
+            Debug.println("ENCODING_ERROR", ex.getMessage());
+            return false;
+        }
+    }
+    
+    /**
+     * Queues raw bytes to be written to the serial port. Safe to call from
+     * any thread.
+     * 
+     * @param data Data to be written.
+     * @return False if not connected or the transmit queue is full.
+     */
+    public boolean sendBytes(byte[] data) {
+        TransmitQueue transmit = this.transmit;
+        if (!connected || (transmit == null)) {
+            return false;
+        }
+        
+        return transmit.offer(data, 0, data.length);
+    }
+    
+    /**
+     * Sets who gets notified when the connection fails in the background.
+     * 
+     * @param listener Session listener.
+     */
+    public void setSessionListener(SessionListener listener) {
+        this.listener = listener;
+    }
+    
+    /**
+     * Sets the transmit pacing. Can be changed while connected.
+     * 
+     * @param char_delay Gap between characters in microseconds. 0 for none.
+     * @param line_delay Gap after each newline in microseconds. 0 for none.
+     * @return True if the delays are valid.
+     */
+    public boolean setPacing(long char_delay, long line_delay) {
+        if ((char_delay < 0) || (line_delay < 0)) {
+            return false;
+        }
+        
+        this.char_delay = char_delay;
+        this.line_delay = line_delay;
+        
+        if (transmit != null) {
+            transmit.setCharDelay(char_delay);
+            transmit.setLineDelay(line_delay);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Gets the gap between characters when pacing the transmission.
+     * 
+     * @return Delay in microseconds.
+     */
+    public long getCharDelay() {
+        return this.char_delay;
+    }
+    
+    /**
+     * Gets the gap after each newline when pacing the transmission.
+     * 
+     * @return Delay in microseconds.
+     */
+    public long getLineDelay() {
+        return this.line_delay;
+    }
+    
+    /**
+     * Gets the queue of data waiting to be written to the port.
+     * 
+     * @return Transmit queue or null if the port was never opened.
+     */
+    public TransmitQueue getTransmitQueue() {
+        return this.transmit;
     }
     
     /**
@@ -365,6 +573,102 @@ public class CommsHandler {
         return 0.0f;
     }
     
+    /**
+     * Sets how the incoming data is going to be read if you're not connected.
+     * 
+     * @param mode READ_MODE_EVENT to rely on RXTX event notification or
+     *             READ_MODE_THREAD to use a dedicated blocking reader thread.
+     * @return True if the read mode was able to be set.
+     */
+    public boolean setReadMode(int mode) {
+        if (!this.connected && ((mode == READ_MODE_EVENT) || (mode == READ_MODE_THREAD))) {
+            this.read_mode = mode;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets how the incoming data is going to be read.
+     * 
+     * @return READ_MODE_EVENT or READ_MODE_THREAD.
+     */
+    public int getReadMode() {
+        return this.read_mode;
+    }
+    
+    /**
+     * Sets the number of bytes a blocking read waits for before returning.
+     * Bigger values mean bigger batches, but higher latency on slow streams.
+     * 
+     * @param bytes Receive threshold in bytes.
+     * @return True if the threshold is valid.
+     */
+    public boolean setReceiveThreshold(int bytes) {
+        if (bytes > 0) {
+            this.receive_threshold = bytes;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets the number of bytes a blocking read waits for before returning.
+     * 
+     * @return Receive threshold in bytes.
+     */
+    public int getReceiveThreshold() {
+        return this.receive_threshold;
+    }
+    
+    /**
+     * Sets how long a blocking read waits for the threshold to be reached
+     * before returning whatever it has got.
+     * 
+     * @param timeout Receive timeout in milliseconds.
+     * @return True if the timeout is valid.
+     */
+    public boolean setReceiveTimeout(int timeout) {
+        if (timeout > 0) {
+            this.receive_timeout = timeout;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets how long a blocking read waits for the threshold to be reached.
+     * 
+     * @return Receive timeout in milliseconds.
+     */
+    public int getReceiveTimeout() {
+        return this.receive_timeout;
+    }
+    
+    /**
+     * Sets the charset used to encode the strings sent to the port.
+     * 
+     * @param charset Session charset.
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+    
+    /**
+     * Gets the charset used to encode the strings sent to the port.
+     * 
+     * @return Session charset.
+     */
+    public Charset getCharset() {
+        return this.charset;
+    }
+    
     /**
      * Lists the ports in the system for a given type.
      * 
@@ -0,0 +1,83 @@
+package com.innoveworkshop.monicom;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * A read-only view of a range of a document as a CharSequence. Characters are
+ * accessed straight from the document's storage through a partial-return
+ * Segment, so nothing gets copied unless toString() is called.
+ * 
+ * The document must not change while the sequence is in use, which means that
+ * it should only be used inside Document.render() or on the EDT.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class DocumentCharSequence implements CharSequence {
+    private final Document doc;
+    private final int start;
+    private final int end;
+    private final Segment segment;
+    private int segment_start;
+    
+    /**
+     * Creates a view of a range of a document.
+     * 
+     * @param doc Document to be viewed.
+     * @param start Offset of the first character.
+     * @param end Offset after the last character.
+     */
+    public DocumentCharSequence(Document doc, int start, int end) {
+        this.doc = doc;
+        this.start = start;
+        this.end = end;
+        this.segment = new Segment();
+        this.segment.setPartialReturn(true);
+        this.segment_start = start;
+    }
+    
+    @Override
+    public int length() {
+        return end - start;
+    }
+    
+    @Override
+    public char charAt(int index) {
+        int pos = start + index;
+        if ((index < 0) || (pos >= end)) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + length());
+        }
+        
+        // Grab the part of the document storage around the requested position.
+        if ((pos < segment_start) || (pos >= (segment_start + segment.count))) {
+            try {
+                doc.getText(pos, end - pos, segment);
+                segment_start = pos;
+            } catch (BadLocationException ex) {
+                throw new IndexOutOfBoundsException(ex.getMessage());
+            }
+        }
+        
+        return segment.array[segment.offset + (pos - segment_start)];
+    }
+    
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if ((from < 0) || (to > length()) || (from > to)) {
+            throw new IndexOutOfBoundsException("Range " + from + "-" + to + " out of " +
+                    length());
+        }
+        
+        return new DocumentCharSequence(doc, start + from, start + to);
+    }
+    
+    @Override
+    public String toString() {
+        try {
+            return doc.getText(start, end - start);
+        } catch (BadLocationException ex) {
+            throw new IndexOutOfBoundsException(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.innoveworkshop.monicom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+
+/**
+ * Searches a document for a regular expression in the background. The
+ * document is scanned in chunks, each one inside Document.render() so that it
+ * can keep growing in between, and the matcher runs straight over the
+ * document's storage through a DocumentCharSequence.
+ * 
+ * Hits are published as they are found and progress is reported as a
+ * percentage through the worker's progress property. Offsets are absolute,
+ * counting the characters that were trimmed from a ScrollbackDocument, so
+ * they stay valid while the scrollback moves. Each hit also remembers how
+ * many times the document had been cleared, so hits from before a clear
+ * don't end up pointing at whatever came after it.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class DocumentSearch extends SwingWorker<Integer, DocumentSearch.Hit> {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_MATCH_LENGTH = 4096;
+    public static final int MAX_HITS = 10000;
+    private static final int PREVIEW_LENGTH = 120;
+    private static final int PREVIEW_CONTEXT = 30;
+    
+    private final Document doc;
+    private final Pattern pattern;
+    private final List<Hit> chunk_hits;
+    private long next;
+    private long clears;
+    private boolean finished;
+    private volatile int hits;
+    
+    /**
+     * Creates a new document search.
+     * 
+     * @param doc Document to be searched.
+     * @param pattern Expression to look for.
+     */
+    public DocumentSearch(Document doc, Pattern pattern) {
+        this.doc = doc;
+        this.pattern = pattern;
+        this.chunk_hits = new ArrayList();
+        this.next = 0;
+        this.clears = -1;
+        this.finished = false;
+        this.hits = 0;
+    }
+    
+    /**
+     * Builds the pattern used to search for some text.
+     * 
+     * @param text Text or regular expression to look for.
+     * @param regex Treat the text as a regular expression.
+     * @param match_case Is the search case sensitive?
+     * @param whole_word Only match whole words.
+     * @return Compiled pattern.
+     * @throws java.util.regex.PatternSyntaxException If the expression is
+     *         invalid.
+     */
+    public static Pattern compile(String text, boolean regex, boolean match_case,
+            boolean whole_word) {
+        int flags = Pattern.MULTILINE;
+        if (!regex) {
+            text = Pattern.quote(text);
+        }
+        
+        if (whole_word) {
+            text = "\\b(?:" + text + ")\\b";
+        }
+        
+        if (!match_case) {
+            flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        }
+        
+        return Pattern.compile(text, flags);
+    }
+    
+    /**
+     * Scans the document chunk by chunk until it gets to the end of it.
+     * 
+     * @return Number of hits found.
+     */
+    @Override
+    protected Integer doInBackground() {
+        final long base = getTrimmedChars();
+        next = base;
+        
+        while (!isCancelled() && !finished) {
+            doc.render(new Runnable() {
+                @Override
+                public void run() {
+                    searchChunk();
+                }
+            });
+            
+            // Hand over what was found outside of the document lock.
+            if (!chunk_hits.isEmpty()) {
+                publish(chunk_hits.toArray(new Hit[chunk_hits.size()]));
+                chunk_hits.clear();
+            }
+        }
+        
+        return hits;
+    }
+    
+    /**
+     * Searches the next chunk of the document. Must be called while holding
+     * the document's read lock.
+     */
+    private void searchChunk() {
+        long trimmed = getTrimmedChars();
+        int length = doc.getLength();
+        int from = (int)Math.max(0, next - trimmed);
+        
+        // Whatever we were searching through is gone if the document got cleared.
+        if (clears < 0) {
+            clears = getClearCount(doc);
+        } else if (clears != getClearCount(doc)) {
+            finished = true;
+            setProgress(100);
+            return;
+        }
+        
+        // Are we done yet?
+        if (from >= length) {
+            finished = true;
+            setProgress(100);
+            return;
+        }
+        
+        // Let the matcher look past the chunk so matches can straddle it.
+        int to = Math.min(length, from + CHUNK_SIZE);
+        int limit = Math.min(length, to + MAX_MATCH_LENGTH);
+        Matcher matcher = pattern.matcher(new DocumentCharSequence(doc, 0, length));
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        matcher.region(from, limit);
+        
+        int last_end = to;
+        while (matcher.find() && (matcher.start() < to)) {
+            // Empty matches aren't of much use to anyone.
+            if (matcher.end() == matcher.start()) {
+                continue;
+            }
+            
+            chunk_hits.add(new Hit(trimmed + matcher.start(), trimmed + matcher.end(),
+                    clears, getPreview(matcher.start())));
+            last_end = Math.max(last_end, matcher.end());
+            
+            if (++hits >= MAX_HITS) {
+                finished = true;
+                break;
+            }
+        }
+        
+        next = trimmed + last_end;
+        setProgress((int)((last_end * 100L) / length));
+    }
+    
+    /**
+     * Gets a preview of the line around a match.
+     * 
+     * @param start Offset of the match.
+     * @return Line preview.
+     */
+    private String getPreview(int start) {
+        Element root = doc.getDefaultRootElement();
+        Element line = root.getElement(root.getElementIndex(start));
+        int from = Math.max(line.getStartOffset(), start - PREVIEW_CONTEXT);
+        int to = Math.min(Math.min(line.getEndOffset(), doc.getLength()),
+                from + PREVIEW_LENGTH);
+        
+        try {
+            return doc.getText(from, to - from).replace('\r', ' ').replace('\n', ' ');
+        } catch (BadLocationException ex) {
+            return "";
+        }
+    }
+    
+    /**
+     * Gets the number of characters that were trimmed from the start of the
+     * document.
+     * 
+     * @return Number of trimmed characters.
+     */
+    private long getTrimmedChars() {
+        if (doc instanceof ScrollbackDocument) {
+            return ((ScrollbackDocument)doc).getTrimmedChars();
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Gets the number of times a document was cleared.
+     * 
+     * @param doc Document that is being searched.
+     * @return Number of clears.
+     */
+    private static long getClearCount(Document doc) {
+        if (doc instanceof ScrollbackDocument) {
+            return ((ScrollbackDocument)doc).getClearCount();
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Converts an absolute offset of a hit into an offset of the document.
+     * 
+     * @param doc Document that was searched.
+     * @param hit Hit the offset belongs to.
+     * @param offset Absolute offset.
+     * @return Offset in the document or -1 if it was trimmed or cleared away.
+     */
+    public static int toDocumentOffset(Document doc, Hit hit, long offset) {
+        if (hit.getClearCount() != getClearCount(doc)) {
+            return -1;
+        }
+        
+        if (doc instanceof ScrollbackDocument) {
+            offset -= ((ScrollbackDocument)doc).getTrimmedChars();
+        }
+        
+        if ((offset < 0) || (offset > doc.getLength())) {
+            return -1;
+        }
+        
+        return (int)offset;
+    }
+    
+    /**
+     * Gets the number of hits found so far.
+     * 
+     * @return Number of hits.
+     */
+    public int getHitCount() {
+        return this.hits;
+    }
+    
+    /**
+     * A single match found in the document.
+     */
+    public static class Hit {
+        private final long start;
+        private final long end;
+        private final long clears;
+        private final String preview;
+        
+        /**
+         * Creates a new search hit.
+         * 
+         * @param start Absolute offset of the match.
+         * @param end Absolute offset after the match.
+         * @param clears Number of times the document was cleared before it.
+         * @param preview Text of the line around the match.
+         */
+        public Hit(long start, long end, long clears, String preview) {
+            this.start = start;
+            this.end = end;
+            this.clears = clears;
+            this.preview = preview;
+        }
+        
+        /**
+         * Gets the absolute offset where the match starts.
+         * 
+         * @return Start offset.
+         */
+        public long getStart() {
+            return this.start;
+        }
+        
+        /**
+         * Gets the absolute offset after the end of the match.
+         * 
+         * @return End offset.
+         */
+        public long getEnd() {
+            return this.end;
+        }
+        
+        /**
+         * Gets the number of times the document was cleared before the match
+         * was found.
+         * 
+         * @return Number of clears.
+         */
+        public long getClearCount() {
+            return this.clears;
+        }
+        
+        @Override
+        public String toString() {
+            return this.preview;
+        }
+    }
+}
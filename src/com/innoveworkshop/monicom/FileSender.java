@@ -0,0 +1,133 @@
+package com.innoveworkshop.monicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import javax.swing.SwingWorker;
+
+/**
+ * Streams a file to the serial port in the background. The file is read
+ * through a FileChannel into a single reusable direct buffer and handed over
+ * to the transmit queue chunk by chunk, so it never gets loaded into memory
+ * as a whole.
+ * 
+ * Progress is reported as a percentage through the worker's progress
+ * property.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class FileSender extends SwingWorker<Long, Void> {
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_CHUNK_DELAY = 0;
+    
+    private final File file;
+    private final TransmitQueue transmit;
+    private final int chunk_size;
+    private final int chunk_delay;
+    private final long length;
+    private volatile long bytes_sent;
+    private volatile long start_time;
+    
+    /**
+     * Creates a new file sender.
+     * 
+     * @param file File to be sent.
+     * @param transmit Queue of the port the file will be sent to.
+     * @param chunk_size Number of bytes sent at a time.
+     * @param chunk_delay Time in milliseconds to wait between chunks.
+     */
+    public FileSender(File file, TransmitQueue transmit, int chunk_size, int chunk_delay) {
+        this.file = file;
+        this.transmit = transmit;
+        this.chunk_size = chunk_size;
+        this.chunk_delay = chunk_delay;
+        this.length = file.length();
+        this.bytes_sent = 0;
+        this.start_time = 0;
+    }
+    
+    /**
+     * Streams the file to the transmit queue.
+     * 
+     * @return Number of bytes sent.
+     * @throws IOException If the file couldn't be read.
+     * @throws InterruptedException If the transfer was cancelled.
+     */
+    @Override
+    protected Long doInBackground() throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunk_size);
+        start_time = System.nanoTime();
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (!isCancelled() && (channel.read(buffer) >= 0)) {
+                buffer.flip();
+                int len = buffer.remaining();
+                
+                if (!transmit.write(buffer)) {
+                    throw new IOException("The connection was closed.");
+                }
+                
+                buffer.clear();
+                bytes_sent += len;
+                setProgress((length > 0) ? (int)((bytes_sent * 100) / length) : 100);
+                
+                // Give slow devices some time to breathe.
+                if (chunk_delay > 0) {
+                    Thread.sleep(chunk_delay);
+                }
+            }
+            
+            // Only call it done once it actually went out the port.
+            if (!isCancelled()) {
+                transmit.drain();
+            }
+        }
+        
+        Debug.println("SEND_FILE", bytes_sent + " bytes of " + file + " sent at " +
+                getBytesPerSecond() + " B/s");
+        return bytes_sent;
+    }
+    
+    /**
+     * Gets the file being sent.
+     * 
+     * @return File being sent.
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Gets the size of the file being sent.
+     * 
+     * @return File size in bytes.
+     */
+    public long getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Gets the number of bytes handed over to the port so far.
+     * 
+     * @return Bytes sent.
+     */
+    public long getBytesSent() {
+        return this.bytes_sent;
+    }
+    
+    /**
+     * Gets the average throughput since the transfer started.
+     * 
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - start_time;
+        if ((start_time == 0) || (elapsed <= 0)) {
+            return 0;
+        }
+        
+        return (bytes_sent * 1000000000L) / elapsed;
+    }
+}
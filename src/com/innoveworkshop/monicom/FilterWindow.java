@@ -0,0 +1,394 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.*;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+/**
+ * A window that only shows the monitor lines that match a filter. Lines are
+ * tested once, as soon as they are completed, so keeping the view up to date
+ * costs nothing more than testing what was just received.
+ * 
+ * When the filter changes the lines that are already in the monitor get
+ * re-evaluated in the background, while the new ones keep being tested and
+ * are held back until the history is done.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class FilterWindow extends JFrame implements DocumentListener {
+    private static final int HISTORY_CHUNK = 4096;
+    
+    private final Document source;
+    private final ScrollbackDocument output;
+    private final JTextArea txtOutput;
+    private final JTextField txtFilter;
+    private final JCheckBox chkRegex;
+    private final JCheckBox chkMatchCase;
+    private final JLabel lblStatus;
+    private final Segment segment;
+    private Matcher matcher;
+    private int tested;
+    private StringBuilder pending;
+    private HistoryFilter history;
+    
+    /**
+     * Creates a new line filter window.
+     * 
+     * @param monitor Text area whose lines will be filtered.
+     */
+    public FilterWindow(JTextArea monitor) {
+        this.source = monitor.getDocument();
+        this.output = new ScrollbackDocument();
+        this.segment = new Segment();
+        this.matcher = null;
+        this.tested = 0;
+        this.pending = null;
+        this.history = null;
+        
+        // Setup the filter bar.
+        ActionListener apply = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                applyFilter();
+            }
+        };
+        this.txtFilter = new JTextField(30);
+        this.chkRegex = new JCheckBox("Regular Expression");
+        this.chkMatchCase = new JCheckBox("Match Case");
+        JButton btApply = new JButton("Apply");
+        txtFilter.addActionListener(apply);
+        chkRegex.addActionListener(apply);
+        chkMatchCase.addActionListener(apply);
+        btApply.addActionListener(apply);
+        
+        JPanel pnlFilter = new JPanel(new FlowLayout(FlowLayout.LEADING));
+        pnlFilter.add(new JLabel("Filter:"));
+        pnlFilter.add(txtFilter);
+        pnlFilter.add(chkMatchCase);
+        pnlFilter.add(chkRegex);
+        pnlFilter.add(btApply);
+        
+        // Setup the filtered view.
+        this.txtOutput = new JTextArea(output);
+        txtOutput.setEditable(false);
+        txtOutput.setFont(monitor.getFont());
+        ((DefaultCaret)txtOutput.getCaret()).setUpdatePolicy(DefaultCaret.ALWAYS_UPDATE);
+        this.lblStatus = new JLabel(" ");
+        
+        // Setup the window.
+        setTitle("Filter Lines");
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        getContentPane().add(pnlFilter, BorderLayout.NORTH);
+        getContentPane().add(new JScrollPane(txtOutput), BorderLayout.CENTER);
+        getContentPane().add(lblStatus, BorderLayout.SOUTH);
+        setSize(640, 480);
+    }
+    
+    /**
+     * Starts filtering with what is currently in the filter bar. The lines
+     * that are already in the monitor get filtered in the background.
+     */
+    private void applyFilter() {
+        cancelHistory();
+        output.clear();
+        matcher = null;
+        
+        // No filter, nothing to show.
+        if (txtFilter.getText().isEmpty()) {
+            updateStatus();
+            return;
+        }
+        
+        // Build the filter.
+        Pattern pattern;
+        try {
+            pattern = DocumentSearch.compile(txtFilter.getText(), chkRegex.isSelected(),
+                    chkMatchCase.isSelected(), false);
+        } catch (PatternSyntaxException ex) {
+            JOptionPane.showMessageDialog(this, ex.getDescription(), "Invalid expression",
+                    JOptionPane.ERROR_MESSAGE);
+            updateStatus();
+            return;
+        }
+        
+        // Everything before the line being written to is history.
+        Element root = source.getDefaultRootElement();
+        matcher = pattern.matcher("");
+        tested = root.getElement(root.getElementCount() - 1).getStartOffset();
+        pending = new StringBuilder();
+        
+        history = new HistoryFilter(pattern, getTrimmedChars() + tested);
+        history.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            @Override
+            public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                if ("progress".equals(evt.getPropertyName())) {
+                    updateStatus();
+                }
+            }
+        });
+        history.execute();
+        updateStatus();
+    }
+    
+    /**
+     * Stops re-evaluating the history if it's still going.
+     */
+    private void cancelHistory() {
+        if (history != null) {
+            history.cancel(true);
+            history = null;
+        }
+        
+        pending = null;
+    }
+    
+    /**
+     * Tests a line against the filter and appends it to a buffer if it
+     * matches.
+     * 
+     * @param line Line element of the source document.
+     * @param matcher Filter matcher.
+     * @param segment Segment used to access the line.
+     * @param out Buffer where the matching lines are appended to.
+     * @throws BadLocationException If the line isn't in the document.
+     */
+    private void filterLine(Element line, Matcher matcher, Segment segment, StringBuilder out)
+            throws BadLocationException {
+        int start = line.getStartOffset();
+        source.getText(start, line.getEndOffset() - start - 1, segment);
+        
+        if (matcher.reset(segment).find()) {
+            out.append(segment.array, segment.offset, segment.count).append('\n');
+        }
+    }
+    
+    /**
+     * Appends filtered lines to the view.
+     * 
+     * @param lines Lines to be appended.
+     */
+    private void appendOutput(CharSequence lines) {
+        if (lines.length() > 0) {
+            txtOutput.append(lines.toString());
+            updateStatus();
+        }
+    }
+    
+    /**
+     * Updates the status bar.
+     */
+    private void updateStatus() {
+        if (matcher == null) {
+            lblStatus.setText(" No filter");
+            return;
+        }
+        
+        long lines = output.getTrimmedLines() + output.getDefaultRootElement().getElementCount() - 1;
+        if (history != null) {
+            lblStatus.setText(String.format(" %d matching lines (filtering history: %d%%)",
+                    lines, history.getProgress()));
+        } else {
+            lblStatus.setText(String.format(" %d matching lines", lines));
+        }
+    }
+    
+    /**
+     * Gets the number of characters that were trimmed from the start of the
+     * monitor.
+     * 
+     * @return Number of trimmed characters.
+     */
+    private long getTrimmedChars() {
+        if (source instanceof ScrollbackDocument) {
+            return ((ScrollbackDocument)source).getTrimmedChars();
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Tests the lines that were just completed in the monitor.
+     * 
+     * @param evt Document event.
+     */
+    @Override
+    public void insertUpdate(DocumentEvent evt) {
+        if (matcher == null) {
+            return;
+        }
+        
+        // The last line is still being written to.
+        Element root = source.getDefaultRootElement();
+        int last = root.getElementCount() - 1;
+        int line = root.getElementIndex(tested);
+        if (line >= last) {
+            return;
+        }
+        
+        StringBuilder out = new StringBuilder();
+        try {
+            for (; line < last; line++) {
+                filterLine(root.getElement(line), matcher, segment, out);
+            }
+        } catch (BadLocationException ex) {
+            Debug.println("FILTER_ERROR", ex.getMessage());
+        }
+        
+        tested = root.getElement(last).getStartOffset();
+        
+        // Hold the new lines back until the history is in place.
+        if (pending != null) {
+            pending.append(out);
+        } else {
+            appendOutput(out);
+        }
+    }
+    
+    /**
+     * Keeps track of the lines that were already tested when the monitor gets
+     * trimmed or cleared.
+     * 
+     * @param evt Document event.
+     */
+    @Override
+    public void removeUpdate(DocumentEvent evt) {
+        if (evt.getOffset() < tested) {
+            tested -= Math.min(evt.getLength(), tested - evt.getOffset());
+        }
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent evt) {
+    }
+    
+    @Override
+    public void setVisible(boolean visible) {
+        // Only follow the monitor while we are being shown.
+        if (visible && !isVisible()) {
+            source.addDocumentListener(this);
+            applyFilter();
+        } else if (!visible && isVisible()) {
+            source.removeDocumentListener(this);
+            cancelHistory();
+            matcher = null;
+        }
+        
+        super.setVisible(visible);
+    }
+    
+    /**
+     * Filters the lines that were already in the monitor when the filter was
+     * changed. The monitor is read a chunk of lines at a time inside
+     * Document.render(), so that it can keep growing in between.
+     */
+    private class HistoryFilter extends SwingWorker<Void, String> {
+        private final Matcher matcher;
+        private final Segment segment;
+        private final StringBuilder out;
+        private final long cut;
+        private long next;
+        private boolean finished;
+        
+        /**
+         * Creates a new history filter.
+         * 
+         * @param pattern Filter pattern.
+         * @param cut Absolute offset where the history ends.
+         */
+        public HistoryFilter(Pattern pattern, long cut) {
+            this.matcher = pattern.matcher("");
+            this.segment = new Segment();
+            this.out = new StringBuilder();
+            this.cut = cut;
+            this.next = 0;
+            this.finished = false;
+        }
+        
+        @Override
+        protected Void doInBackground() {
+            while (!isCancelled() && !finished) {
+                source.render(new Runnable() {
+                    @Override
+                    public void run() {
+                        filterChunk();
+                    }
+                });
+                
+                if (out.length() > 0) {
+                    publish(out.toString());
+                    out.setLength(0);
+                }
+            }
+            
+            return null;
+        }
+        
+        /**
+         * Filters the next chunk of lines. Must be called while holding the
+         * document's read lock.
+         */
+        private void filterChunk() {
+            Element root = source.getDefaultRootElement();
+            long trimmed = getTrimmedChars();
+            int from = (int)Math.max(0, next - trimmed);
+            int end = (int)Math.min(source.getLength(), cut - trimmed);
+            
+            // Are we done yet?
+            if (from >= end) {
+                finished = true;
+                return;
+            }
+            
+            try {
+                int line = root.getElementIndex(from);
+                for (int i = 0; i < HISTORY_CHUNK; i++, line++) {
+                    Element elem = root.getElement(line);
+                    if (elem.getStartOffset() >= end) {
+                        finished = true;
+                        break;
+                    }
+                    
+                    filterLine(elem, matcher, segment, out);
+                    next = trimmed + elem.getEndOffset();
+                }
+            } catch (BadLocationException ex) {
+                Debug.println("FILTER_ERROR", ex.getMessage());
+                finished = true;
+            }
+            
+            setProgress((int)Math.min(100, ((next - trimmed) * 100) / end));
+        }
+        
+        @Override
+        protected void process(List<String> chunks) {
+            if (history != this) {
+                return;
+            }
+            
+            for (String chunk : chunks) {
+                appendOutput(chunk);
+            }
+        }
+        
+        @Override
+        protected void done() {
+            if (history != this) {
+                return;
+            }
+            
+            // Catch up with what arrived in the meantime.
+            history = null;
+            appendOutput(pending);
+            pending = null;
+            updateStatus();
+        }
+    }
+}
@@ -5,19 +5,21 @@
  */
 package com.innoveworkshop.monicom;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import javax.swing.DefaultListModel;
 import javax.swing.JOptionPane;
 import javax.swing.JTextArea;
 
 /**
- *
+ * 
  * @author nathanpc
  */
 public class FindWindow extends javax.swing.JFrame {
-    private String needle;
-    private List<int[]> found;
-    private int curr_index;
+    private final SearchIndex index;
+    private final DefaultListModel<DocumentSearch.Hit> results;
+    private DocumentSearch search;
     private JTextArea field;
     
     /**
@@ -26,70 +28,136 @@ public class FindWindow extends javax.swing.JFrame {
     public FindWindow(JTextArea field) {
         initComponents();
         
-        this.found = new ArrayList();
-        this.needle = "";
-        this.curr_index = 0;
         this.field = field;
+        this.index = new SearchIndex(field.getDocument());
+        this.results = new DefaultListModel();
+        this.search = null;
+        lstResults.setModel(results);
     }
     
     /**
-     * Populates the found list.
-     * 
-     * @param haystack Text to perform the search on.
+     * Performs a search action.
      */
-    private void populateFoundList(String haystack) {
-        int last_found = -1;
-        found.clear();
+    private void performSearch() {
+        String text = txtSearch.getText();
+        if (text.isEmpty()) {
+            return;
+        }
+        
+        // Expressions are always searched in the background.
+        if (chkRegex.isSelected() || chkWholeWord.isSelected()) {
+            findAll();
+            return;
+        }
         
-        while (haystack.indexOf(needle, last_found + 1) >= 0) {
-            last_found = haystack.indexOf(needle, last_found + 1);
+        // Only scan what was appended since the last search.
+        index.setNeedle(text, chkMatchCase.isSelected());
+        index.update();
+        
+        // Start after the current match.
+        int position = field.getCaretPosition();
+        if (field.getSelectionEnd() > field.getSelectionStart()) {
+            position = field.getSelectionStart() + 1;
+        }
+        
+        // Nothing was found.
+        int start = index.findNext(position);
+        if (start < 0) {
+            Debug.println("FINDING", "No occurrences of " + text + " found.");
+            JOptionPane.showMessageDialog(null, "No occurrences of " + text + " found.",
+                    "Nothing found", JOptionPane.INFORMATION_MESSAGE);
             
-            int indexes[] = { last_found, last_found + needle.length() };
-            found.add(indexes);
-            System.out.println("Found: " + indexes[0] + " - " + indexes[1]);
+            return;
         }
+        
+        // Go through the findings one at a time.
+        field.select(start, start + index.getNeedleLength());
     }
     
     /**
-     * Performs a search action.
+     * Lists every occurrence of what is being searched for. The search runs
+     * in the background and the hits show up as they are found.
      */
-    private void performSearch() {
+    private void findAll() {
         String text = txtSearch.getText();
-        String haystack = field.getText();
-        
-        // Is this case sensitive?
-        if (!chkMatchCase.isSelected()) {
-            text = text.toLowerCase();
-            haystack = haystack.toLowerCase();
+        if (text.isEmpty()) {
+            return;
         }
         
-        // Check if it is a new string that the user is searching for.
-        if (!text.equals(needle)) {
-            needle = text;
-            curr_index = 0;
+        // Build the expression.
+        Pattern pattern;
+        try {
+            pattern = DocumentSearch.compile(text, chkRegex.isSelected(),
+                    chkMatchCase.isSelected(), chkWholeWord.isSelected());
+        } catch (PatternSyntaxException ex) {
+            JOptionPane.showMessageDialog(this, ex.getDescription(),
+                    "Invalid expression", JOptionPane.ERROR_MESSAGE);
+            return;
         }
         
-        // Grab the list of places where we found it.
-        populateFoundList(haystack);
+        // Start over.
+        cancelSearch();
+        results.clear();
+        prgSearch.setValue(0);
+        btCancel.setText("  Stop  ");
         
-        // Nothing was found.
-        if (found.isEmpty()) {
-            Debug.println("FINDING", "No occurrences of " + needle + " found.");
-            JOptionPane.showMessageDialog(null, "No occurrences of " + needle + " found.",
-                    "Nothing found", JOptionPane.INFORMATION_MESSAGE);
+        final String needle = text;
+        final DocumentSearch worker = new DocumentSearch(field.getDocument(), pattern) {
+            @Override
+            protected void process(List<DocumentSearch.Hit> hits) {
+                if (search != this) {
+                    return;
+                }
+                
+                for (DocumentSearch.Hit hit : hits) {
+                    results.addElement(hit);
+                }
+            }
             
-            return;
-        }
+            @Override
+            protected void done() {
+                if (search != this) {
+                    return;
+                }
+                
+                search = null;
+                btCancel.setText("  Cancel  ");
+                if (!isCancelled() && (getHitCount() == 0)) {
+                    Debug.println("FINDING", "No occurrences of " + needle + " found.");
+                    JOptionPane.showMessageDialog(null, "No occurrences of " + needle +
+                            " found.", "Nothing found", JOptionPane.INFORMATION_MESSAGE);
+                }
+            }
+        };
+        
+        worker.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            @Override
+            public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                if ((search == worker) && "progress".equals(evt.getPropertyName())) {
+                    prgSearch.setValue((Integer)evt.getNewValue());
+                }
+            }
+        });
         
-        // Loop back the indexes if we have reached the end.
-        if (curr_index == found.size()) {
-            curr_index = 0;
+        search = worker;
+        worker.execute();
+    }
+    
+    /**
+     * Stops the background search if there is one running.
+     * 
+     * @return True if a search was stopped.
+     */
+    private boolean cancelSearch() {
+        if (search == null) {
+            return false;
         }
         
-        // Go through the findings one at a time.
-        int indexes[] = found.get(curr_index);
-        field.select(indexes[0], indexes[1]);
-        curr_index++;
+        search.cancel(true);
+        search = null;
+        btCancel.setText("  Cancel  ");
+        
+        return true;
     }
 
     /**
@@ -106,6 +174,12 @@ public class FindWindow extends javax.swing.JFrame {
         btSearch = new javax.swing.JButton();
         btCancel = new javax.swing.JButton();
         chkMatchCase = new javax.swing.JCheckBox();
+        chkWholeWord = new javax.swing.JCheckBox();
+        chkRegex = new javax.swing.JCheckBox();
+        btFindAll = new javax.swing.JButton();
+        scrResults = new javax.swing.JScrollPane();
+        lstResults = new javax.swing.JList<>();
+        prgSearch = new javax.swing.JProgressBar();
 
         setTitle("Find");
 
@@ -133,6 +207,27 @@ public class FindWindow extends javax.swing.JFrame {
 
         chkMatchCase.setText("Match Case");
 
+        chkWholeWord.setText("Whole Word");
+
+        chkRegex.setText("Regular Expression");
+
+        btFindAll.setText("  Find All  ");
+        btFindAll.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                btFindAllActionPerformed(evt);
+            }
+        });
+
+        lstResults.setSelectionMode(javax.swing.ListSelectionModel.SINGLE_SELECTION);
+        lstResults.addListSelectionListener(new javax.swing.event.ListSelectionListener() {
+            public void valueChanged(javax.swing.event.ListSelectionEvent evt) {
+                lstResultsValueChanged(evt);
+            }
+        });
+        scrResults.setViewportView(lstResults);
+
+        prgSearch.setStringPainted(true);
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -140,15 +235,25 @@ public class FindWindow extends javax.swing.JFrame {
             .addGroup(layout.createSequentialGroup()
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(scrResults)
                     .addGroup(layout.createSequentialGroup()
                         .addComponent(lblWhat)
-                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-                        .addComponent(txtSearch, javax.swing.GroupLayout.PREFERRED_SIZE, 323, javax.swing.GroupLayout.PREFERRED_SIZE))
-                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(txtSearch, javax.swing.GroupLayout.DEFAULT_SIZE, 323, Short.MAX_VALUE))
+                    .addGroup(layout.createSequentialGroup()
                         .addComponent(chkMatchCase)
-                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(chkWholeWord)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(chkRegex)
+                        .addGap(0, 0, Short.MAX_VALUE))
+                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
+                        .addComponent(prgSearch, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                         .addComponent(btCancel)
                         .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                        .addComponent(btFindAll)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                         .addComponent(btSearch)))
                 .addContainerGap())
         );
@@ -157,13 +262,21 @@ public class FindWindow extends javax.swing.JFrame {
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
-                    .addComponent(txtSearch, javax.swing.GroupLayout.DEFAULT_SIZE, 25, Short.MAX_VALUE)
+                    .addComponent(txtSearch, javax.swing.GroupLayout.PREFERRED_SIZE, 25, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(lblWhat))
-                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(chkMatchCase)
+                    .addComponent(chkWholeWord)
+                    .addComponent(chkRegex))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addComponent(scrResults, javax.swing.GroupLayout.DEFAULT_SIZE, 200, Short.MAX_VALUE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
+                .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.CENTER)
                     .addComponent(btSearch)
+                    .addComponent(btFindAll)
                     .addComponent(btCancel)
-                    .addComponent(chkMatchCase))
+                    .addComponent(prgSearch, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap())
         );
 
@@ -171,7 +284,9 @@ public class FindWindow extends javax.swing.JFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void btCancelActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btCancelActionPerformed
-        this.setVisible(false);
+        if (!cancelSearch()) {
+            this.setVisible(false);
+        }
     }//GEN-LAST:event_btCancelActionPerformed
 
     private void btSearchActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btSearchActionPerformed
@@ -182,12 +297,39 @@ public class FindWindow extends javax.swing.JFrame {
         performSearch();
     }//GEN-LAST:event_txtSearchActionPerformed
 
+    private void btFindAllActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btFindAllActionPerformed
+        findAll();
+    }//GEN-LAST:event_btFindAllActionPerformed
+
+    private void lstResultsValueChanged(javax.swing.event.ListSelectionEvent evt) {//GEN-FIRST:event_lstResultsValueChanged
+        DocumentSearch.Hit hit = lstResults.getSelectedValue();
+        if ((hit == null) || evt.getValueIsAdjusting()) {
+            return;
+        }
+        
+        // Select the hit if it wasn't trimmed or cleared from the monitor.
+        int start = DocumentSearch.toDocumentOffset(field.getDocument(), hit, hit.getStart());
+        int end = DocumentSearch.toDocumentOffset(field.getDocument(), hit, hit.getEnd());
+        if ((start < 0) || (end < 0)) {
+            Debug.println("FINDING", "Hit is no longer in the scrollback.");
+            return;
+        }
+        
+        field.select(start, end);
+    }//GEN-LAST:event_lstResultsValueChanged
+
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton btCancel;
+    private javax.swing.JButton btFindAll;
     private javax.swing.JButton btSearch;
     private javax.swing.JCheckBox chkMatchCase;
+    private javax.swing.JCheckBox chkRegex;
+    private javax.swing.JCheckBox chkWholeWord;
     private javax.swing.JLabel lblWhat;
+    private javax.swing.JList<DocumentSearch.Hit> lstResults;
+    private javax.swing.JProgressBar prgSearch;
+    private javax.swing.JScrollPane scrResults;
     private javax.swing.JTextField txtSearch;
     // End of variables declaration//GEN-END:variables
 }
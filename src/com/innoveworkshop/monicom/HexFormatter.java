@@ -0,0 +1,176 @@
+package com.innoveworkshop.monicom;
+
+/**
+ * Formats a stream of bytes as a classic hex dump: offset, hex bytes and an
+ * ASCII gutter. Everything is done with lookup tables and a reusable output
+ * buffer, so formatting doesn't allocate anything per byte.
+ * 
+ * Example line:
+ *   00000010  48 65 6c 6c 6f 2c 20 77  6f 72 6c 64 21 0d 0a 00  |Hello, world!...|
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class HexFormatter {
+    public static final int BYTES_PER_LINE = 16;
+    public static final int LINE_LENGTH = 8 + 2 + (BYTES_PER_LINE * 3) + 1 + 1 + BYTES_PER_LINE + 2;
+    
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] HEX = new char[256 * 2];
+    private static final char[] ASCII = new char[256];
+    
+    static {
+        // Build the lookup tables.
+        for (int i = 0; i < 256; i++) {
+            HEX[i * 2] = DIGITS[i >> 4];
+            HEX[(i * 2) + 1] = DIGITS[i & 0xF];
+            ASCII[i] = ((i >= 0x20) && (i < 0x7F)) ? (char)i : '.';
+        }
+    }
+    
+    private final byte[] line;
+    private int line_len;
+    private long offset;
+    private char[] out;
+    private int out_len;
+    
+    /**
+     * Creates a new hex formatter.
+     */
+    public HexFormatter() {
+        this.line = new byte[BYTES_PER_LINE];
+        this.out = new char[LINE_LENGTH * 1024];
+        reset();
+    }
+    
+    /**
+     * Starts a new dump from offset zero.
+     */
+    public void reset() {
+        this.line_len = 0;
+        this.offset = 0;
+        this.out_len = 0;
+    }
+    
+    /**
+     * Formats a chunk of data. Complete lines are written to the output
+     * buffer and the leftover bytes are kept for the next call. If there are
+     * any leftover bytes they are also written as a partial line at the end
+     * of the output buffer, without a line break.
+     * 
+     * @param data Data to be formatted.
+     * @param off Offset in the data buffer.
+     * @param len Number of bytes to format.
+     * @return Number of characters in the output buffer.
+     */
+    public int format(byte[] data, int off, int len) {
+        int lines = ((line_len + len) / BYTES_PER_LINE) + 1;
+        out_len = 0;
+        
+        // Make sure the output buffer is big enough.
+        if ((lines * LINE_LENGTH) > out.length) {
+            out = new char[lines * LINE_LENGTH];
+        }
+        
+        // Format all the complete lines.
+        for (int i = off; i < off + len; i++) {
+            line[line_len++] = data[i];
+            
+            if (line_len == BYTES_PER_LINE) {
+                formatLine(true);
+                offset += BYTES_PER_LINE;
+                line_len = 0;
+            }
+        }
+        
+        // Show what we have of the current line.
+        if (line_len > 0) {
+            formatLine(false);
+        }
+        
+        return out_len;
+    }
+    
+    /**
+     * Gives up on the current partial line and starts the next chunk on a
+     * new line. Used when something else was written after the partial line.
+     */
+    public void breakLine() {
+        offset += line_len;
+        line_len = 0;
+    }
+    
+    /**
+     * Gets the number of characters of the partial line at the end of the
+     * output buffer.
+     * 
+     * @return Partial line length or 0 if the last line is complete.
+     */
+    public int getPartialLength() {
+        return (line_len > 0) ? (LINE_LENGTH - 1) : 0;
+    }
+    
+    /**
+     * Gets the number of bytes already in the current line.
+     * 
+     * @return Current line length in bytes.
+     */
+    public int getLineLength() {
+        return this.line_len;
+    }
+    
+    /**
+     * Gets the output buffer.
+     * 
+     * @return Output buffer.
+     */
+    public char[] getOutput() {
+        return this.out;
+    }
+    
+    /**
+     * Formats the current line into the output buffer.
+     * 
+     * @param complete Append a line break to the end of the line.
+     */
+    private void formatLine(boolean complete) {
+        char[] o = out;
+        int p = out_len;
+        
+        // Offset.
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            o[p++] = DIGITS[(int)(offset >> shift) & 0xF];
+        }
+        o[p++] = ' ';
+        o[p++] = ' ';
+        
+        // Hex bytes.
+        for (int i = 0; i < BYTES_PER_LINE; i++) {
+            if (i < line_len) {
+                int b = (line[i] & 0xFF) * 2;
+                o[p++] = HEX[b];
+                o[p++] = HEX[b + 1];
+            } else {
+                o[p++] = ' ';
+                o[p++] = ' ';
+            }
+            
+            o[p++] = ' ';
+            if (i == ((BYTES_PER_LINE / 2) - 1)) {
+                o[p++] = ' ';
+            }
+        }
+        
+        // ASCII gutter.
+        o[p++] = '|';
+        for (int i = 0; i < BYTES_PER_LINE; i++) {
+            o[p++] = (i < line_len) ? ASCII[line[i] & 0xFF] : ' ';
+        }
+        o[p++] = '|';
+        
+        if (complete) {
+            o[p++] = '\n';
+        }
+        
+        out_len = p;
+    }
+}
@@ -0,0 +1,81 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.Font;
+import java.awt.event.*;
+import javax.swing.*;
+
+/**
+ * A window that shows everything that was received during the session,
+ * straight from the session capture file.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class HistoryWindow extends JFrame {
+    private static final int REFRESH_INTERVAL = 250;
+    
+    private final CaptureView view;
+    private final Timer timer;
+    
+    /**
+     * Creates a new session history window.
+     * 
+     * @param capture Session capture to be displayed.
+     * @param font Font used to render the lines.
+     */
+    public HistoryWindow(SessionCapture capture, Font font) {
+        this.view = new CaptureView(capture, font);
+        
+        // Setup the window.
+        setTitle("Session History");
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+        getContentPane().add(view);
+        setSize(640, 480);
+        
+        // Keep up with the capture as it grows.
+        this.timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                view.refresh();
+            }
+        });
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent evt) {
+                timer.start();
+            }
+            
+            @Override
+            public void windowActivated(WindowEvent evt) {
+                timer.start();
+            }
+            
+            @Override
+            public void windowClosed(WindowEvent evt) {
+                timer.stop();
+            }
+            
+            @Override
+            public void windowIconified(WindowEvent evt) {
+                timer.stop();
+            }
+        });
+    }
+    
+    /**
+     * Sets the capture that is displayed.
+     * 
+     * @param capture Session capture.
+     */
+    public void setCapture(SessionCapture capture) {
+        view.setCapture(capture);
+    }
+    
+    @Override
+    public void setVisible(boolean visible) {
+        if (!visible) {
+            timer.stop();
+        }
+        
+        super.setVisible(visible);
+    }
+}
@@ -0,0 +1,192 @@
+package com.innoveworkshop.monicom;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A fixed-memory histogram of latencies in nanoseconds. Values are grouped
+ * into logarithmic buckets, each power of two split into SUB_BUCKETS linear
+ * ones, which keeps every recorded value within about 1.6% of its real value
+ * no matter how big it is.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_MAGNITUDE = 40;
+    private static final int BUCKETS = (2 * SUB_BUCKETS) +
+            ((MAX_MAGNITUDE - SUB_BITS) * SUB_BUCKETS);
+    
+    private final long[] counts;
+    private long count;
+    private long min;
+    private long max;
+    private long sum;
+    
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new long[BUCKETS];
+        reset();
+    }
+    
+    /**
+     * Throws away every recorded value.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        
+        this.count = 0;
+        this.min = Long.MAX_VALUE;
+        this.max = 0;
+        this.sum = 0;
+    }
+    
+    /**
+     * Records a latency.
+     * 
+     * @param nanos Latency in nanoseconds.
+     */
+    public synchronized void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[indexOf(nanos)]++;
+        count++;
+        sum += nanos;
+        min = Math.min(min, nanos);
+        max = Math.max(max, nanos);
+    }
+    
+    /**
+     * Gets the bucket a value belongs to.
+     * 
+     * @param value Value in nanoseconds.
+     * @return Bucket index.
+     */
+    private static int indexOf(long value) {
+        if (value < (2 * SUB_BUCKETS)) {
+            return (int)value;
+        }
+        
+        // Split each power of two into SUB_BUCKETS linear buckets.
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+        int index = (2 * SUB_BUCKETS) + ((shift - 1) * SUB_BUCKETS) +
+                (int)((value >> shift) - SUB_BUCKETS);
+        
+        return Math.min(index, BUCKETS - 1);
+    }
+    
+    /**
+     * Gets the highest value that falls into a bucket.
+     * 
+     * @param index Bucket index.
+     * @return Value in nanoseconds.
+     */
+    private static long upperBoundOf(int index) {
+        if (index < (2 * SUB_BUCKETS)) {
+            return index;
+        }
+        
+        int shift = ((index - (2 * SUB_BUCKETS)) / SUB_BUCKETS) + 1;
+        long top = ((index - (2 * SUB_BUCKETS)) % SUB_BUCKETS) + SUB_BUCKETS;
+        
+        return ((top + 1) << shift) - 1;
+    }
+    
+    /**
+     * Gets the value below which a given percentage of the recorded values
+     * fall.
+     * 
+     * @param percentile Percentile between 0 and 100.
+     * @return Value in nanoseconds or 0 if nothing was recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        
+        long target = Math.max(1, (long)Math.ceil((percentile / 100) * count));
+        long seen = 0;
+        
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        
+        return max;
+    }
+    
+    /**
+     * Gets the number of recorded values.
+     * 
+     * @return Number of values.
+     */
+    public synchronized long getCount() {
+        return this.count;
+    }
+    
+    /**
+     * Gets the smallest recorded value.
+     * 
+     * @return Value in nanoseconds or 0 if nothing was recorded.
+     */
+    public synchronized long getMin() {
+        return (count > 0) ? this.min : 0;
+    }
+    
+    /**
+     * Gets the biggest recorded value.
+     * 
+     * @return Value in nanoseconds.
+     */
+    public synchronized long getMax() {
+        return this.max;
+    }
+    
+    /**
+     * Gets the average of the recorded values.
+     * 
+     * @return Value in nanoseconds or 0 if nothing was recorded.
+     */
+    public synchronized long getMean() {
+        return (count > 0) ? (sum / count) : 0;
+    }
+    
+    /**
+     * Creates a human readable summary of the histogram.
+     * 
+     * @return Summary with the latencies in microseconds.
+     */
+    public synchronized String getSummaryString() {
+        return String.format("n %d, min %d us, p50 %d us, p99 %d us, p99.9 %d us, max %d us",
+                count, getMin() / 1000, getPercentile(50) / 1000, getPercentile(99) / 1000,
+                getPercentile(99.9) / 1000, max / 1000);
+    }
+    
+    /**
+     * Writes the histogram out as text. Each non-empty bucket gets a line with
+     * its upper bound in nanoseconds, its count and the cumulative percentage,
+     * separated by tabs.
+     * 
+     * @param writer Where to write the histogram to.
+     * @throws IOException If the histogram couldn't be written.
+     */
+    public synchronized void export(Writer writer) throws IOException {
+        writer.write("# " + getSummaryString() + "\n");
+        writer.write("# upper_ns\tcount\tpercentile\n");
+        
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                seen += counts[i];
+                writer.write(upperBoundOf(i) + "\t" + counts[i] + "\t" +
+                        String.format("%.3f", (seen * 100.0) / count) + "\n");
+            }
+        }
+    }
+}
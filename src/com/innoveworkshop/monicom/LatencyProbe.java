@@ -0,0 +1,247 @@
+package com.innoveworkshop.monicom;
+
+/**
+ * Measures the round-trip time of a device by repeatedly sending a command
+ * and waiting for a response pattern to show up in the received data. The
+ * pattern is matched as the data streams in on the reader thread, so the
+ * response is timestamped with the arrival time of the chunk that completed
+ * it.
+ * 
+ * A response that arrives after its probe timed out would otherwise be taken
+ * as the response to the next one, so after a timeout the next command is
+ * held back until the late response shows up or another timeout goes by.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class LatencyProbe implements Runnable {
+    private final CommsHandler serial;
+    private final byte[] command;
+    private final byte[] pattern;
+    private final int[] fallback;
+    private final int count;
+    private final int interval;
+    private final int timeout;
+    private final LatencyHistogram histogram;
+    
+    private volatile boolean armed;
+    private volatile boolean late;
+    private volatile boolean stopped;
+    private int match_len;
+    private long sent_time;
+    private volatile long sent;
+    private volatile long timeouts;
+    private Thread thread;
+    
+    /**
+     * Creates a new latency probe.
+     * 
+     * @param serial Serial port handler the command will be sent through.
+     * @param command Encoded command to be sent.
+     * @param pattern Encoded response pattern to wait for.
+     * @param count Number of times to send the command.
+     * @param interval Time in milliseconds to wait between probes.
+     * @param timeout Time in milliseconds to wait for each response.
+     * @param histogram Where the round-trip times get recorded.
+     */
+    public LatencyProbe(CommsHandler serial, byte[] command, byte[] pattern, int count,
+            int interval, int timeout, LatencyHistogram histogram) {
+        this.serial = serial;
+        this.command = command;
+        this.pattern = pattern;
+        this.count = count;
+        this.interval = interval;
+        this.timeout = timeout;
+        this.histogram = histogram;
+        this.armed = false;
+        this.late = false;
+        this.stopped = false;
+        this.sent = 0;
+        this.timeouts = 0;
+        
+        // Build the partial match table so matching never has to look back.
+        this.fallback = new int[pattern.length];
+        for (int i = 1, k = 0; i < pattern.length; i++) {
+            while ((k > 0) && (pattern[i] != pattern[k])) {
+                k = fallback[k - 1];
+            }
+            
+            if (pattern[i] == pattern[k]) {
+                k++;
+            }
+            
+            fallback[i] = k;
+        }
+    }
+    
+    /**
+     * Starts probing in the background.
+     */
+    public void start() {
+        thread = new Thread(this, Constants.APP_NAME + "-probe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops probing.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        armed = false;
+        late = false;
+        notifyAll();
+    }
+    
+    /**
+     * Probe thread loop.
+     */
+    @Override
+    public void run() {
+        try {
+            for (int i = 0; (i < count) && !stopped; i++) {
+                synchronized (this) {
+                    match_len = 0;
+                    armed = true;
+                    sent_time = System.nanoTime();
+                    
+                    if (!serial.sendBytes(command)) {
+                        armed = false;
+                        timeouts++;
+                    } else {
+                        sent++;
+                        waitForResponse(sent_time + (timeout * 1000000L));
+                    }
+                }
+                
+                if (interval > 0) {
+                    Thread.sleep(interval);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Debug.println("PROBE", "Interrupted.");
+        }
+        
+        stopped = true;
+        Debug.println("PROBE", histogram.getSummaryString() + ", " + timeouts + " timeouts");
+    }
+    
+    /**
+     * Waits until the response arrives or the probe times out. Must be called
+     * while holding the probe lock.
+     * 
+     * @param deadline When to give up as given by System.nanoTime().
+     * @throws InterruptedException If the probe thread was interrupted.
+     */
+    private void waitForResponse(long deadline) throws InterruptedException {
+        while (armed && !stopped) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                armed = false;
+                timeouts++;
+                waitForLateResponse(deadline + (timeout * 1000000L));
+                return;
+            }
+            
+            wait(remaining / 1000000, (int)(remaining % 1000000));
+        }
+    }
+    
+    /**
+     * Keeps matching after a timeout so that a late response gets swallowed
+     * instead of being matched against the next probe. Must be called while
+     * holding the probe lock.
+     * 
+     * @param deadline When to stop waiting as given by System.nanoTime().
+     * @throws InterruptedException If the probe thread was interrupted.
+     */
+    private void waitForLateResponse(long deadline) throws InterruptedException {
+        late = true;
+        
+        try {
+            while (late && !stopped) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                
+                wait(remaining / 1000000, (int)(remaining % 1000000));
+            }
+        } finally {
+            late = false;
+        }
+    }
+    
+    /**
+     * Looks for the response pattern in received data. Called from the serial
+     * reader thread.
+     * 
+     * @param data Received data.
+     * @param len Number of valid bytes in the buffer.
+     * @param nanos Arrival time of the data as given by System.nanoTime().
+     */
+    public void dataReceived(byte[] data, int len, long nanos) {
+        if (!armed && !late) {
+            return;
+        }
+        
+        synchronized (this) {
+            for (int i = 0; (armed || late) && (i < len); i++) {
+                while ((match_len > 0) && (data[i] != pattern[match_len])) {
+                    match_len = fallback[match_len - 1];
+                }
+                
+                if (data[i] == pattern[match_len]) {
+                    match_len++;
+                }
+                
+                // Got the whole response. Late ones are just thrown away.
+                if (match_len == pattern.length) {
+                    if (armed) {
+                        histogram.record(nanos - sent_time);
+                    }
+                    
+                    match_len = 0;
+                    armed = false;
+                    late = false;
+                    notifyAll();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Checks if the probe is still running.
+     * 
+     * @return True if still probing.
+     */
+    public boolean isRunning() {
+        return !stopped;
+    }
+    
+    /**
+     * Gets the number of commands sent so far.
+     * 
+     * @return Number of probes sent.
+     */
+    public long getSentCount() {
+        return this.sent;
+    }
+    
+    /**
+     * Gets the number of probes that didn't get a response in time.
+     * 
+     * @return Number of timeouts.
+     */
+    public long getTimeoutCount() {
+        return this.timeouts;
+    }
+    
+    /**
+     * Gets the total number of probes to be sent.
+     * 
+     * @return Number of probes.
+     */
+    public int getCount() {
+        return this.count;
+    }
+}
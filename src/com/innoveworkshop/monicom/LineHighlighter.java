@@ -0,0 +1,420 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import javax.swing.JTextArea;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.*;
+
+/**
+ * Paints the background of the monitor lines that match a set of highlight
+ * rules. Every rule is compiled into a single Aho-Corasick automaton, which
+ * only gets fed the text as it's appended, so the cost per character is the
+ * same no matter how many rules there are or how big the scrollback is.
+ * 
+ * The color of each line is kept in a primitive array indexed by the absolute
+ * line number, and only the lines that are visible get painted. The text and
+ * the patterns are fed to the automaton as UTF-8, so patterns can contain any
+ * character, and are case sensitive. When a line matches more than one rule
+ * the one listed first wins.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class LineHighlighter implements DocumentListener, Highlighter.HighlightPainter {
+    private final JTextArea monitor;
+    private final Document doc;
+    private final Segment segment;
+    private final List<Rule> rules;
+    private AhoCorasick matcher;
+    private Color[] colors;
+    private byte[] lines;
+    private int size;
+    private long first_line;
+    private int scanned;
+    private int current;
+    
+    /**
+     * Creates a line highlighter and attaches it to the monitor.
+     * 
+     * @param monitor Text area whose lines will be highlighted.
+     */
+    public LineHighlighter(JTextArea monitor) {
+        this.monitor = monitor;
+        this.doc = monitor.getDocument();
+        this.segment = new Segment();
+        this.segment.setPartialReturn(true);
+        this.rules = new ArrayList();
+        this.matcher = null;
+        this.colors = new Color[0];
+        this.lines = new byte[4096];
+        this.size = 0;
+        this.first_line = 0;
+        this.scanned = doc.getLength();
+        this.current = 0;
+        
+        // Paint underneath everything else.
+        doc.addDocumentListener(this);
+        try {
+            monitor.getHighlighter().addHighlight(0, 0, this);
+        } catch (BadLocationException ex) {
+            Debug.println("HIGHLIGHT_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Compiles the rules into the automaton. Only the text appended from now
+     * on gets highlighted by the new rules.
+     */
+    private void compile() {
+        List<byte[]> patterns = new ArrayList();
+        colors = new Color[rules.size()];
+        for (int i = 0; i < rules.size(); i++) {
+            patterns.add(encode(rules.get(i).getPattern()));
+            colors[i] = rules.get(i).getColor();
+        }
+        
+        matcher = rules.isEmpty() ? null : new AhoCorasick(patterns);
+        
+        // Old colors would point to the wrong rules.
+        Element root = doc.getDefaultRootElement();
+        size = 0;
+        first_line = getTrimmedLines() + root.getElementIndex(scanned);
+        current = 0;
+        monitor.repaint();
+    }
+    
+    /**
+     * Encodes a pattern the same way the text gets fed to the automaton. Each
+     * char is encoded on its own, so surrogate pairs end up as two 3 byte
+     * sequences in both.
+     * 
+     * @param pattern Pattern to be encoded.
+     * @return Encoded pattern.
+     */
+    private static byte[] encode(String pattern) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(pattern.length() * 3);
+        
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        
+        return out.toByteArray();
+    }
+    
+    /**
+     * Feeds a char to the automaton as UTF-8. A match can only end on the
+     * last byte of a char, since every pattern starts on the first byte of
+     * one.
+     * 
+     * @param c Char of the text.
+     * @return Lowest index of the patterns that end at this char or -1 if none.
+     */
+    private int feed(char c) {
+        if (c < 0x80) {
+            return matcher.nextMin((byte)c);
+        } else if (c < 0x800) {
+            matcher.nextMin((byte)(0xC0 | (c >> 6)));
+            return matcher.nextMin((byte)(0x80 | (c & 0x3F)));
+        }
+        
+        matcher.nextMin((byte)(0xE0 | (c >> 12)));
+        matcher.nextMin((byte)(0x80 | ((c >> 6) & 0x3F)));
+        return matcher.nextMin((byte)(0x80 | (c & 0x3F)));
+    }
+    
+    /**
+     * Sets the color of a line.
+     * 
+     * @param line Absolute line number.
+     * @param color Rule index plus one or 0 for none.
+     */
+    private void setLine(long line, int color) {
+        // The monitor was cleared.
+        if (line < first_line) {
+            size = 0;
+            first_line = line;
+        }
+        
+        long i = line - first_line;
+        if (i >= lines.length) {
+            // Make room by dropping the lines that left the scrollback.
+            int drop = (int)Math.min(size, getTrimmedLines() - first_line);
+            if (drop > (lines.length / 2)) {
+                System.arraycopy(lines, drop, lines, 0, size - drop);
+                size -= drop;
+                first_line += drop;
+                i -= drop;
+            }
+            
+            if (i >= lines.length) {
+                lines = Arrays.copyOf(lines, (int)Math.max(lines.length * 2, i + 1));
+            }
+        }
+        
+        // Lines we skipped over have no color.
+        if (i >= size) {
+            Arrays.fill(lines, size, (int)i, (byte)0);
+            size = (int)i + 1;
+        }
+        
+        lines[(int)i] = (byte)color;
+    }
+    
+    /**
+     * Gets the color of a line.
+     * 
+     * @param line Absolute line number.
+     * @return Line color or null if it isn't highlighted.
+     */
+    private Color getLine(long line) {
+        long i = line - first_line;
+        if ((i < 0) || (i >= size) || (lines[(int)i] == 0)) {
+            return null;
+        }
+        
+        int rule = (lines[(int)i] & 0xFF) - 1;
+        return (rule < colors.length) ? colors[rule] : null;
+    }
+    
+    /**
+     * Gets the number of lines that were trimmed from the monitor.
+     * 
+     * @return Number of trimmed lines.
+     */
+    private long getTrimmedLines() {
+        if (doc instanceof ScrollbackDocument) {
+            return ((ScrollbackDocument)doc).getTrimmedLines();
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Runs the text that was just appended through the automaton.
+     * 
+     * @param evt Document event.
+     */
+    @Override
+    public void insertUpdate(DocumentEvent evt) {
+        int end = doc.getLength();
+        if ((matcher == null) || (scanned >= end)) {
+            scanned = end;
+            return;
+        }
+        
+        try {
+            long line = getTrimmedLines() + doc.getDefaultRootElement().getElementIndex(scanned);
+            
+            // Go through the text in place, a piece at a time.
+            for (int pos = scanned; pos < end; pos += segment.count) {
+                doc.getText(pos, end - pos, segment);
+                
+                for (int i = 0; i < segment.count; i++) {
+                    char c = segment.array[segment.offset + i];
+                    if (c == '\n') {
+                        setLine(line++, current);
+                        current = 0;
+                        matcher.reset();
+                        continue;
+                    }
+                    
+                    // The first rule wins.
+                    int match = feed(c);
+                    if ((match >= 0) && ((current == 0) || (match < (current - 1)))) {
+                        current = match + 1;
+                    }
+                }
+            }
+            
+            // Color the line that is still being written as well.
+            setLine(line, current);
+        } catch (BadLocationException ex) {
+            Debug.println("HIGHLIGHT_ERROR", ex.getMessage());
+        }
+        
+        scanned = end;
+    }
+    
+    /**
+     * Keeps track of what was already scanned when the monitor gets trimmed,
+     * cleared or has its last line rewritten.
+     * 
+     * @param evt Document event.
+     */
+    @Override
+    public void removeUpdate(DocumentEvent evt) {
+        if (evt.getOffset() >= scanned) {
+            return;
+        }
+        
+        if ((evt.getOffset() == 0) && (doc.getLength() > 0)) {
+            // Lines trimmed from the top.
+            scanned = Math.max(0, scanned - evt.getLength());
+        } else {
+            // Start the last line over.
+            Element root = doc.getDefaultRootElement();
+            scanned = root.getElement(root.getElementIndex(evt.getOffset())).getStartOffset();
+            current = 0;
+            if (matcher != null) {
+                matcher.reset();
+            }
+        }
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent evt) {
+    }
+    
+    /**
+     * Paints the background of the highlighted lines that are visible.
+     * 
+     * @param g Graphics context.
+     * @param p0 Start of the highlight (ignored).
+     * @param p1 End of the highlight (ignored).
+     * @param bounds Bounds of the text area.
+     * @param c Text area being painted.
+     */
+    @Override
+    @SuppressWarnings("deprecation")
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        if ((size == 0) || (colors.length == 0)) {
+            return;
+        }
+        
+        Rectangle clip = g.getClipBounds();
+        Rectangle area = bounds.getBounds();
+        Element root = doc.getDefaultRootElement();
+        long trimmed = getTrimmedLines();
+        
+        try {
+            int first = root.getElementIndex(c.viewToModel(new java.awt.Point(0, clip.y)));
+            int last = root.getElementIndex(c.viewToModel(new java.awt.Point(0,
+                    clip.y + clip.height)));
+            
+            for (int i = first; i <= last; i++) {
+                Color color = getLine(trimmed + i);
+                if (color != null) {
+                    Rectangle r = c.modelToView(root.getElement(i).getStartOffset());
+                    g.setColor(color);
+                    g.fillRect(area.x, r.y, area.width, r.height);
+                }
+            }
+        } catch (BadLocationException ex) {
+            Debug.println("HIGHLIGHT_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Replaces every rule and compiles them.
+     * 
+     * @param rules New list of rules.
+     */
+    public void setRules(List<Rule> rules) {
+        this.rules.clear();
+        this.rules.addAll(rules.subList(0, Math.min(rules.size(), 255)));
+        compile();
+    }
+    
+    /**
+     * Gets the list of rules.
+     * 
+     * @return Rules.
+     */
+    public List<Rule> getRules() {
+        return new ArrayList(this.rules);
+    }
+    
+    /**
+     * Stores the rules in a setup.
+     * 
+     * @param setup Setup properties.
+     */
+    public void save(Properties setup) {
+        for (int i = 0; i < rules.size(); i++) {
+            setup.setProperty("highlight." + i + ".pattern", rules.get(i).getPattern());
+            setup.setProperty("highlight." + i + ".color", Rule.formatColor(rules.get(i).getColor()));
+        }
+    }
+    
+    /**
+     * Loads the rules from a setup.
+     * 
+     * @param setup Setup properties.
+     * @throws NumberFormatException If a color is invalid.
+     */
+    public void load(Properties setup) {
+        List<Rule> loaded = new ArrayList();
+        
+        for (int i = 0; setup.getProperty("highlight." + i + ".pattern") != null; i++) {
+            loaded.add(new Rule(setup.getProperty("highlight." + i + ".pattern"),
+                    Color.decode(setup.getProperty("highlight." + i + ".color", "#FFFF80"))));
+        }
+        
+        setRules(loaded);
+    }
+    
+    /**
+     * A pattern and the color of the lines that contain it.
+     */
+    public static class Rule {
+        private final String pattern;
+        private final Color color;
+        
+        /**
+         * Creates a new rule.
+         * 
+         * @param pattern Text that highlights the line.
+         * @param color Background color of the line.
+         */
+        public Rule(String pattern, Color color) {
+            this.pattern = pattern;
+            this.color = color;
+        }
+        
+        /**
+         * Gets the text that highlights the line.
+         * 
+         * @return Pattern.
+         */
+        public String getPattern() {
+            return this.pattern;
+        }
+        
+        /**
+         * Gets the background color of the line.
+         * 
+         * @return Line color.
+         */
+        public Color getColor() {
+            return this.color;
+        }
+        
+        /**
+         * Formats a color as a #RRGGBB string.
+         * 
+         * @param color Color to be formatted.
+         * @return Formatted color.
+         */
+        public static String formatColor(Color color) {
+            return String.format("#%06X", color.getRGB() & 0xFFFFFF);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.innoveworkshop.monicom;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Keeps the arrival time of each line of the monitor in a growable primitive
+ * array indexed by the absolute line number (counting the lines that were
+ * already dropped from the scrollback).
+ * 
+ * Times are stored as System.nanoTime() values and only converted to wall
+ * clock time when they are displayed.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class LineTimestamps {
+    private long[] stamps;
+    private int size;
+    private long first_line;
+    private final long base_nanos;
+    private final long base_millis;
+    private final SimpleDateFormat format;
+    private final Date date;
+    
+    /**
+     * Creates an empty list of line timestamps.
+     */
+    public LineTimestamps() {
+        this.stamps = new long[4096];
+        this.size = 0;
+        this.first_line = 0;
+        
+        // Pair up the monotonic clock with the wall clock.
+        this.base_millis = System.currentTimeMillis();
+        this.base_nanos = System.nanoTime();
+        this.format = new SimpleDateFormat("HH:mm:ss.SSS");
+        this.date = new Date();
+    }
+    
+    /**
+     * Creates a copy of a range of another list of line timestamps, so that
+     * it can be used outside of the EDT.
+     * 
+     * @param source Timestamps to be copied.
+     * @param from Absolute number of the first line to copy.
+     * @param to Absolute number of the line after the last one to copy.
+     */
+    private LineTimestamps(LineTimestamps source, long from, long to) {
+        from = Math.max(from, source.first_line);
+        to = Math.max(from, Math.min(to, source.first_line + source.size));
+        
+        this.stamps = Arrays.copyOfRange(source.stamps, (int)(from - source.first_line),
+                (int)(to - source.first_line));
+        this.size = stamps.length;
+        this.first_line = from;
+        this.base_millis = source.base_millis;
+        this.base_nanos = source.base_nanos;
+        this.format = new SimpleDateFormat("HH:mm:ss.SSS");
+        this.date = new Date();
+    }
+    
+    /**
+     * Copies the timestamps of a range of lines.
+     * 
+     * @param from Absolute number of the first line to copy.
+     * @param to Absolute number of the line after the last one to copy.
+     * @return Independent copy of the timestamps.
+     */
+    public LineTimestamps copy(long from, long to) {
+        return new LineTimestamps(this, from, to);
+    }
+    
+    /**
+     * Throws everything away and starts again from a given line.
+     * 
+     * @param next_line Absolute number of the next line that will be added.
+     */
+    public void reset(long next_line) {
+        this.size = 0;
+        this.first_line = next_line;
+    }
+    
+    /**
+     * Adds the timestamp of a new line.
+     * 
+     * @param nanos Arrival time of the first byte of the line as given by
+     *              System.nanoTime().
+     */
+    public void addLine(long nanos) {
+        if (size == stamps.length) {
+            stamps = Arrays.copyOf(stamps, stamps.length * 2);
+        }
+        
+        stamps[size++] = nanos;
+    }
+    
+    /**
+     * Forgets the timestamps of the lines before a given line. The array only
+     * gets compacted once more than half of it is unused.
+     * 
+     * @param line Absolute number of the first line to keep.
+     */
+    public void discardBefore(long line) {
+        int drop = (int)Math.min(size, line - first_line);
+        
+        if ((drop > 0) && (drop > (stamps.length / 2))) {
+            System.arraycopy(stamps, drop, stamps, 0, size - drop);
+            size -= drop;
+            first_line += drop;
+        }
+    }
+    
+    /**
+     * Gets the arrival time of a line.
+     * 
+     * @param line Absolute line number.
+     * @return Arrival time as given by System.nanoTime() or 0 if unknown.
+     */
+    public long get(long line) {
+        long i = line - first_line;
+        
+        if ((i < 0) || (i >= size)) {
+            return 0;
+        }
+        
+        return stamps[(int)i];
+    }
+    
+    /**
+     * Formats the arrival time of a line as wall clock time with microsecond
+     * resolution.
+     * 
+     * @param line Absolute line number.
+     * @return Formatted time or null if the time of the line is unknown.
+     */
+    public String format(long line) {
+        long nanos = get(line);
+        if (nanos == 0) {
+            return null;
+        }
+        
+        // Convert it to wall clock time.
+        long micros = (base_millis * 1000) + ((nanos - base_nanos) / 1000);
+        date.setTime(micros / 1000);
+        
+        return format.format(date) + String.format("%03d", micros % 1000);
+    }
+}
@@ -0,0 +1,98 @@
+package com.innoveworkshop.monicom;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A named piece of text that gets sent to the serial port either on demand or
+ * periodically. The text is encoded once, when the macro is created or the
+ * session settings change, so firing it is just a matter of queueing bytes.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class Macro {
+    private final String name;
+    private final String text;
+    private final int period;
+    private volatile byte[] payload;
+    private ScheduledFuture<?> task;
+    
+    /**
+     * Creates a new macro.
+     * 
+     * @param name Name of the macro.
+     * @param text Text to be sent, without the line ending.
+     * @param period Period in milliseconds to send it at. 0 for on demand only.
+     */
+    public Macro(String name, String text, int period) {
+        this.name = name;
+        this.text = text;
+        this.period = Math.max(0, period);
+        this.payload = new byte[0];
+        this.task = null;
+    }
+    
+    /**
+     * Encodes the text of the macro along with its line ending.
+     * 
+     * @param charset Session charset.
+     * @param crlf Use CR+LF as the line ending instead of just LF.
+     */
+    public void encode(Charset charset, boolean crlf) {
+        this.payload = (text + (crlf ? "\r\n" : "\n")).getBytes(charset);
+    }
+    
+    /**
+     * Gets the name of the macro.
+     * 
+     * @return Macro name.
+     */
+    public String getName() {
+        return this.name;
+    }
+    
+    /**
+     * Gets the text sent by the macro.
+     * 
+     * @return Macro text without the line ending.
+     */
+    public String getText() {
+        return this.text;
+    }
+    
+    /**
+     * Gets the period the macro is sent at.
+     * 
+     * @return Period in milliseconds. 0 if on demand only.
+     */
+    public int getPeriod() {
+        return this.period;
+    }
+    
+    /**
+     * Gets the encoded bytes sent by the macro.
+     * 
+     * @return Pre-encoded payload.
+     */
+    public byte[] getPayload() {
+        return this.payload;
+    }
+    
+    /**
+     * Gets the scheduled task that is periodically sending the macro.
+     * 
+     * @return Scheduled task or null if not running.
+     */
+    public ScheduledFuture<?> getTask() {
+        return this.task;
+    }
+    
+    /**
+     * Sets the scheduled task that is periodically sending the macro.
+     * 
+     * @param task Scheduled task or null if not running.
+     */
+    public void setTask(ScheduledFuture<?> task) {
+        this.task = task;
+    }
+}
@@ -0,0 +1,207 @@
+package com.innoveworkshop.monicom;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the macros of the session and sends them. Every periodic macro runs
+ * on a single shared scheduler thread, which simply queues the pre-encoded
+ * payload for the transmit queue to write.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class MacroEngine {
+    private final List<Macro> macros;
+    private final ScheduledExecutorService scheduler;
+    private volatile CommsHandler serial;
+    private Charset charset;
+    private boolean crlf;
+    private final AtomicLong overflows;
+    
+    /**
+     * Creates a new macro engine.
+     * 
+     * @param serial Serial port handler the macros will be sent to.
+     */
+    public MacroEngine(CommsHandler serial) {
+        this.macros = new ArrayList();
+        this.serial = serial;
+        this.charset = serial.getCharset();
+        this.crlf = true;
+        this.overflows = new AtomicLong(0);
+        
+        // A single scheduler thread for every macro.
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, Constants.APP_NAME + "-macros");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MAX_PRIORITY);
+                return thread;
+            }
+        });
+    }
+    
+    /**
+     * Sends a macro right away.
+     * 
+     * @param macro Macro to be sent.
+     * @return False if not connected or the transmit queue is full.
+     */
+    public boolean send(Macro macro) {
+        if (!serial.sendBytes(macro.getPayload())) {
+            // Only a full queue counts, not being disconnected.
+            if (serial.isConnected()) {
+                overflows.incrementAndGet();
+            }
+            
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Starts sending a macro periodically at a fixed rate.
+     * 
+     * @param macro Macro to be sent.
+     */
+    public void start(final Macro macro) {
+        if ((macro.getPeriod() <= 0) || (macro.getTask() != null)) {
+            return;
+        }
+        
+        macro.setTask(scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                send(macro);
+            }
+        }, 0, macro.getPeriod(), TimeUnit.MILLISECONDS));
+        Debug.println("MACRO_STARTED", macro.getName() + " every " + macro.getPeriod() + " ms");
+    }
+    
+    /**
+     * Stops sending a macro periodically.
+     * 
+     * @param macro Macro to be stopped.
+     */
+    public void stop(Macro macro) {
+        if (macro.getTask() != null) {
+            macro.getTask().cancel(false);
+            macro.setTask(null);
+            Debug.println("MACRO_STOPPED", macro.getName());
+        }
+    }
+    
+    /**
+     * Stops every macro that is being sent periodically.
+     */
+    public void stopAll() {
+        for (Macro macro : macros) {
+            stop(macro);
+        }
+    }
+    
+    /**
+     * Replaces every macro. Running macros get stopped.
+     * 
+     * @param macros New list of macros.
+     */
+    public void setMacros(List<Macro> macros) {
+        stopAll();
+        this.macros.clear();
+        this.macros.addAll(macros);
+        encodeAll();
+    }
+    
+    /**
+     * Gets the list of macros.
+     * 
+     * @return Macros.
+     */
+    public List<Macro> getMacros() {
+        return this.macros;
+    }
+    
+    /**
+     * Sets the serial port handler the macros are sent to.
+     * 
+     * @param serial Serial port handler.
+     */
+    public void setSerial(CommsHandler serial) {
+        this.serial = serial;
+    }
+    
+    /**
+     * Sets how the macros get encoded and re-encodes all of them.
+     * 
+     * @param charset Session charset.
+     * @param crlf Use CR+LF as the line ending instead of just LF.
+     */
+    public void setEncoding(Charset charset, boolean crlf) {
+        this.charset = charset;
+        this.crlf = crlf;
+        encodeAll();
+    }
+    
+    /**
+     * Encodes the payload of every macro.
+     */
+    private void encodeAll() {
+        for (Macro macro : macros) {
+            macro.encode(charset, crlf);
+        }
+    }
+    
+    /**
+     * Gets the number of times a macro couldn't be queued.
+     * 
+     * @return Number of overflows.
+     */
+    public long getOverflowCount() {
+        return this.overflows.get();
+    }
+    
+    /**
+     * Stores the macros in a setup.
+     * 
+     * @param setup Setup properties.
+     */
+    public void save(Properties setup) {
+        for (int i = 0; i < macros.size(); i++) {
+            Macro macro = macros.get(i);
+            setup.setProperty("macro." + i + ".name", macro.getName());
+            setup.setProperty("macro." + i + ".text", macro.getText());
+            setup.setProperty("macro." + i + ".period", String.valueOf(macro.getPeriod()));
+        }
+    }
+    
+    /**
+     * Loads the macros from a setup.
+     * 
+     * @param setup Setup properties.
+     * @throws NumberFormatException If a macro period isn't a number.
+     */
+    public void load(Properties setup) {
+        List<Macro> loaded = new ArrayList();
+        
+        for (int i = 0; setup.getProperty("macro." + i + ".name") != null; i++) {
+            loaded.add(new Macro(setup.getProperty("macro." + i + ".name"),
+                    setup.getProperty("macro." + i + ".text", ""),
+                    Integer.parseInt(setup.getProperty("macro." + i + ".period", "0"))));
+        }
+        
+        setMacros(loaded);
+    }
+    
+    /**
+     * Stops the scheduler thread.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
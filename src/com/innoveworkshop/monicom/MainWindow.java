@@ -4,6 +4,8 @@ import gnu.io.*;
 import java.awt.Toolkit;
 import java.io.*;
 import java.awt.event.*;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import javax.swing.*;
 
@@ -13,21 +15,106 @@ import javax.swing.*;
  * @author Nathan Campos <nathan@innoveworkshop.com>
  */
 public class MainWindow extends JFrame {
+    private static final int STATUS_INTERVAL = 500;
+    
     private CommsHandler serial;
     private SerialReader comm_reader;
+    private MonitorRenderer renderer;
+    private ScrollbackDocument scrollback;
+    private volatile SessionCapture capture;
+    private HistoryWindow history;
+    private FindWindow find;
+    private FilterWindow filter;
+    private CaptureSearchWindow capture_search;
+    private File capture_dir;
+    private volatile SessionLog session_log;
+    private volatile BinaryCapture binary_capture;
+    private File log_dir;
+    private int log_max_size;
+    private int log_max_age;
+    private int log_max_files;
+    private boolean log_compress;
+    private LineTimestamps stamps;
+    private TimestampGutter gutter;
+    private LineHighlighter highlighter;
+    private javax.swing.Timer status_timer;
+    private final SessionListener session_listener;
+    private int send_chunk_size;
+    private int send_chunk_delay;
+    private MacroEngine macros;
+    private AutoResponder responder;
+    private final CommandHistory command_history;
+    private volatile LatencyProbe probe;
+    private final LatencyHistogram latency;
+    private String probe_command;
+    private String probe_pattern;
+    private int probe_count;
+    private int probe_interval;
+    private int probe_timeout;
 
     /**
      * Creates new form MainWindow
      */
     public MainWindow() {
         // Initialize the serial communications object.
+        this.session_listener = new SessionListener() {
+            @Override
+            public void connectionError(String tag, IOException ex) {
+                MainWindow.this.connectionError(tag, ex);
+            }
+            
+            @Override
+            public void dataTransmitted(byte[] data, int off, int len, long nanos) {
+                appendBinaryCapture(BinaryCapture.TX, data, off, len, nanos);
+            }
+        };
         this.serial = new CommsHandler();
+        this.serial.setSessionListener(session_listener);
         this.comm_reader = new SerialReader(this);
+        this.macros = new MacroEngine(serial);
+        this.responder = new AutoResponder(serial);
+        this.command_history = new CommandHistory();
+        this.probe = null;
+        this.latency = new LatencyHistogram();
+        this.probe_command = "";
+        this.probe_pattern = "OK";
+        this.probe_count = 100;
+        this.probe_interval = 100;
+        this.probe_timeout = 1000;
+        this.send_chunk_size = FileSender.DEFAULT_CHUNK_SIZE;
+        this.send_chunk_delay = FileSender.DEFAULT_CHUNK_DELAY;
+        this.session_log = null;
+        this.binary_capture = null;
+        this.log_dir = null;
+        this.log_max_size = 10;
+        this.log_max_age = 60;
+        this.log_max_files = 20;
+        this.log_compress = true;
         
         // Build the UI and populate some menus.
         initComponents();
+        this.scrollback = new ScrollbackDocument();
+        txtMonitor.setDocument(scrollback);
+        this.highlighter = new LineHighlighter(txtMonitor);
+        this.renderer = new MonitorRenderer(txtMonitor);
+        this.renderer.start();
+        this.stamps = new LineTimestamps();
+        this.gutter = new TimestampGutter(txtMonitor, stamps);
+        this.capture = createSessionCapture();
+        
+        // Keep the status bar up to date.
+        this.status_timer = new javax.swing.Timer(STATUS_INTERVAL, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                updateStatusBar();
+            }
+        });
+        this.status_timer.start();
+        updateStatusBar();
+        
         enableInput(false);
         populateSerialPortsMenu();
+        populateMacrosMenu();
         this.setIconImage(Toolkit.getDefaultToolkit().getImage(getClass().getResource("icon.png")));
         
         // Close any serial connections when the window is closed.
@@ -39,6 +126,46 @@ public class MainWindow extends JFrame {
             }
         });
         
+        // Recall and complete commands from the history.
+        txtInput.setFocusTraversalKeysEnabled(false);
+        txtInput.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_UP, 0), "historyPrevious");
+        txtInput.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_DOWN, 0), "historyNext");
+        txtInput.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_TAB, 0), "historyComplete");
+        txtInput.getActionMap().put("historyPrevious", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                String command = command_history.previous(txtInput.getText());
+                if (command != null) {
+                    txtInput.setText(command);
+                }
+            }
+        });
+        txtInput.getActionMap().put("historyNext", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                txtInput.setText(command_history.next());
+            }
+        });
+        txtInput.getActionMap().put("historyComplete", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                String command = command_history.complete(txtInput.getText());
+                if (command != null) {
+                    txtInput.setText(command);
+                } else {
+                    Toolkit.getDefaultToolkit().beep();
+                }
+            }
+        });
+        
+        // Macros need to be encoded again when the line ending changes.
+        chkCRLF.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent evt) {
+                macros.setEncoding(serial.getCharset(), chkCRLF.isSelected());
+            }
+        });
+        
         // Initialize the event handler for the combo items in the setup menu.
         initActionComboItems(grpBaudRate, new Runnable() {
             @Override
@@ -83,6 +210,50 @@ public class MainWindow extends JFrame {
                 }
             }
         });
+        
+        initActionComboItems(grpCharset, new Runnable() {
+            @Override
+            public void run() {
+                String name = getSelectedMenuComboText(grpCharset);
+                
+                // Ask for a custom charset name.
+                if (mnuCharsetCustom.isSelected()) {
+                    name = (String)JOptionPane.showInputDialog(null, "Charset", "Custom Charset",
+                            JOptionPane.QUESTION_MESSAGE, null, null, serial.getCharset().name());
+                    if (name == null) {
+                        selectCharsetMenuItem(serial.getCharset().name());
+                        return;
+                    }
+                }
+                
+                // Go back to the charset that is actually in use if we couldn't switch.
+                if (!setSessionCharset(name)) {
+                    selectCharsetMenuItem(serial.getCharset().name());
+                }
+            }
+        });
+        
+        initActionComboItems(grpReadMode, new Runnable() {
+            @Override
+            public void run() {
+                int mode = mnuReadModeThread.isSelected() ? CommsHandler.READ_MODE_THREAD :
+                        CommsHandler.READ_MODE_EVENT;
+                
+                if (serial.setReadMode(mode)) {
+                    Debug.println("READMODE_SELECTED", getSelectedMenuComboText(grpReadMode));
+                } else {
+                    showErrorDialog("READMODE_SELECTED_ERROR", "Read Mode",
+                            "The read mode can only be changed while disconnected.");
+                    
+                    // Go back to the mode that is actually in use.
+                    if (serial.getReadMode() == CommsHandler.READ_MODE_THREAD) {
+                        mnuReadModeThread.setSelected(true);
+                    } else {
+                        mnuReadModeEvent.setSelected(true);
+                    }
+                }
+            }
+        });
     }
     
     /**
@@ -90,7 +261,6 @@ public class MainWindow extends JFrame {
      */
     private void sendText() {
         String str = txtInput.getText();
-        // TODO: Build a history for recalling later.
         
         // Append the newline.
         if (chkCRLF.isSelected()) {
@@ -99,16 +269,483 @@ public class MainWindow extends JFrame {
             str += "\n";
         }
         
+        // Queue it up to be sent.
+        if (!serial.sendString(str)) {
+            showErrorDialog("SEND_ERROR", "Send Error",
+                    "The transmit queue is full. Wait for it to drain and try again.");
+            return;
+        }
+        
         // Ecco The Dolphin mode.
         if (chkEcho.isSelected()) {
-            txtMonitor.append(str);
+            renderer.appendLocal(str);
         }
         
-        // Send and clear the input field.
-        serial.sendString(str);
+        // Remember it and clear the input field.
+        command_history.add(txtInput.getText());
         txtInput.setText("");
     }
     
+    /**
+     * Updates the status bar with the counters and high-water marks of every
+     * buffer between the serial port and the monitor.
+     */
+    private void updateStatusBar() {
+        ReceiveQueue queue = renderer.getQueue();
+        TransmitQueue transmit = serial.getTransmitQueue();
+        SessionCapture capture = this.capture;
+        String tx = "TX 0 B";
+        
+        // Outgoing data.
+        if (transmit != null) {
+            tx = String.format("TX %d B, %d B/s, %d B queued (peak %d B)",
+                    transmit.getBytesSent(), transmit.getBytesPerSecond(),
+                    transmit.getDepth(), transmit.getHighWater());
+            
+            // Pacing accuracy.
+            if (transmit.getPacedGapCount() > 0) {
+                tx += String.format(", jitter avg %d us, max %d us",
+                        transmit.getAverageJitter() / 1000, transmit.getMaxJitter() / 1000);
+            }
+        }
+        
+        // Macros that didn't fit in the transmit queue.
+        tx += String.format(", %d macro overflows", macros.getOverflowCount());
+        
+        // Automatic responses.
+        if (responder.isEnabled()) {
+            tx += String.format(", %d auto replies (%d failed)", responder.getReplyCount(),
+                    responder.getFailureCount());
+        }
+        
+        // Latency probe results.
+        LatencyProbe probe = this.probe;
+        if (probe != null) {
+            tx += String.format("  |  Probe %d/%d sent, %d timeouts, %s",
+                    probe.getSentCount(), probe.getCount(), probe.getTimeoutCount(),
+                    latency.getSummaryString());
+        }
+        
+        lblStatus.setText(String.format("%s  |  RX %d B  |  OE %d  FE %d  PE %d  BI %d  |  " +
+                "Driver peak %d B  |  Queue %d/%d KB (peak %d KB, %d B dropped)  |  " +
+                "Capture peak %d KB  |  Frame peak %d B (%d full)  |  Trimmed %d lines",
+                tx, comm_reader.getBytesRead(), comm_reader.getOverrunCount(),
+                comm_reader.getFramingErrorCount(), comm_reader.getParityErrorCount(),
+                comm_reader.getBreakCount(), comm_reader.getMaxAvailable(),
+                queue.size() / 1024, queue.capacity() / 1024, queue.getHighWater() / 1024,
+                queue.getDroppedCount(), (capture != null) ? capture.getHighWater() / 1024 : 0,
+                renderer.getMaxFrameSize(), renderer.getFullFrameCount(),
+                scrollback.getTrimmedLines()));
+        
+        // Session log.
+        SessionLog log = this.session_log;
+        if ((log != null) && (log.getError() != null)) {
+            // Let the user know that it isn't being logged anymore.
+            stopSessionLog();
+            showErrorDialog("LOG_ERROR", "Session Log", "The session log stopped because " +
+                    log.getCurrentFile() + " couldn't be written to: " + log.getError().getMessage());
+        } else if (log != null) {
+            lblStatus.setText(lblStatus.getText() + String.format("  |  Log %d KB (%d B dropped)",
+                    log.getBytesWritten() / 1024, log.getDroppedCount()));
+        }
+    }
+    
+    /**
+     * Handles the connection failing in the background by closing it and
+     * letting the user know, instead of taking the whole application down.
+     * 
+     * @param tag Debug tag of where the error happened.
+     * @param ex What went wrong.
+     */
+    private void connectionError(final String tag, final IOException ex) {
+        final CommsHandler failed = this.serial;
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // Ignore errors from sessions that were already closed.
+                if ((failed != serial) || !serial.isConnected()) {
+                    return;
+                }
+                
+                serial.close();
+                enableInput(false);
+                stopMacros();
+                stopProbe();
+                showErrorDialog(tag, "Connection Error", "The connection to " +
+                        serial.getPort() + " failed: " + ex.getMessage());
+            }
+        });
+    }
+    
+    /**
+     * Streams a file to the serial port in the background while showing its
+     * progress.
+     * 
+     * @param file File to be sent.
+     */
+    private void sendFile(File file) {
+        // One file at a time.
+        mnuSendFile.setEnabled(false);
+        final FileSender sender = new FileSender(file, serial.getTransmitQueue(),
+                send_chunk_size, send_chunk_delay);
+        final ProgressMonitor monitor = new ProgressMonitor(this, "Sending " + file.getName(),
+                "", 0, 100);
+        monitor.setMillisToDecideToPopup(0);
+        monitor.setMillisToPopup(0);
+        
+        // Keep the progress up to date and watch out for the cancel button.
+        final javax.swing.Timer timer = new javax.swing.Timer(STATUS_INTERVAL, null);
+        timer.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (monitor.isCanceled()) {
+                    sender.cancel(true);
+                    return;
+                }
+                
+                monitor.setProgress(sender.getProgress());
+                monitor.setNote(String.format("%d of %d KB at %d B/s",
+                        sender.getBytesSent() / 1024, sender.getLength() / 1024,
+                        sender.getBytesPerSecond()));
+            }
+        });
+        
+        // Clean up once it's done.
+        sender.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            @Override
+            public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                if (sender.isDone() && "state".equals(evt.getPropertyName())) {
+                    timer.stop();
+                    monitor.close();
+                    mnuSendFile.setEnabled(true);
+                    
+                    try {
+                        sender.get();
+                    } catch (java.util.concurrent.CancellationException ex) {
+                        Debug.println("SEND_FILE", "Cancelled after " + sender.getBytesSent() +
+                                " bytes.");
+                    } catch (InterruptedException ex) {
+                        Debug.println("SEND_FILE", "Interrupted.");
+                    } catch (java.util.concurrent.ExecutionException ex) {
+                        showErrorDialog("SEND_FILE_ERROR", "Send File", "Unable to send " +
+                                sender.getFile() + ": " + ex.getCause().getMessage());
+                    }
+                }
+            }
+        });
+        
+        timer.start();
+        sender.execute();
+    }
+    
+    /**
+     * Populates the macros menu with an item for each macro. On demand macros
+     * get sent when clicked, periodic ones get started and stopped.
+     */
+    private void populateMacrosMenu() {
+        // Get rid of the old macro items.
+        while (mnuMacros.getMenuComponentCount() > 2) {
+            mnuMacros.remove(2);
+        }
+        
+        jSeparator10.setVisible(!macros.getMacros().isEmpty());
+        for (final Macro macro : macros.getMacros()) {
+            if (macro.getPeriod() > 0) {
+                final JCheckBoxMenuItem item = new JCheckBoxMenuItem(macro.getName() +
+                        " (every " + macro.getPeriod() + " ms)", macro.getTask() != null);
+                item.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent evt) {
+                        if (!item.isSelected()) {
+                            macros.stop(macro);
+                        } else if (serial.isConnected()) {
+                            macros.start(macro);
+                        } else {
+                            item.setSelected(false);
+                            showErrorDialog("MACRO_ERROR", "Macros",
+                                    "You need to be connected in order to start a macro.");
+                        }
+                    }
+                });
+                
+                mnuMacros.add(item);
+            } else {
+                JMenuItem item = new JMenuItem(macro.getName());
+                item.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent evt) {
+                        if (!macros.send(macro)) {
+                            showErrorDialog("MACRO_ERROR", "Macros", "Unable to send '" +
+                                    macro.getName() + "'. Are you connected?");
+                        }
+                    }
+                });
+                
+                mnuMacros.add(item);
+            }
+        }
+    }
+    
+    /**
+     * Stops every periodic macro and updates the menu to reflect it.
+     */
+    private void stopMacros() {
+        macros.stopAll();
+        populateMacrosMenu();
+    }
+    
+    /**
+     * Stops the latency probe if it's running.
+     */
+    private void stopProbe() {
+        if (probe != null) {
+            probe.stop();
+        }
+    }
+    
+    /**
+     * Shows or hides the arrival time of each line of the monitor.
+     * 
+     * @param show Show the timestamps.
+     */
+    private void setShowTimestamps(boolean show) {
+        if (show) {
+            renderer.setLineTimestamps(stamps);
+            sclMonitor.setRowHeaderView(gutter);
+        } else {
+            renderer.setLineTimestamps(null);
+            sclMonitor.setRowHeaderView(null);
+        }
+    }
+    
+    /**
+     * Saves the monitor output in the background while showing its progress.
+     * Trimming of the scrollback is held off until it's done.
+     * 
+     * @param file File where the output will be saved.
+     */
+    private void saveOutput(File file) {
+        // One save at a time.
+        mnuSaveOutput.setEnabled(false);
+        scrollback.setTrimSuspended(true);
+        final OutputSaver saver = new OutputSaver(scrollback, file, serial.getCharset(),
+                mnuTimestamps.isSelected() ? stamps : null);
+        final ProgressMonitor monitor = new ProgressMonitor(this, "Saving " + file.getName(),
+                "", 0, 100);
+        monitor.setMillisToDecideToPopup(STATUS_INTERVAL);
+        
+        // Keep the progress up to date and watch out for the cancel button.
+        final javax.swing.Timer timer = new javax.swing.Timer(STATUS_INTERVAL, null);
+        timer.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (monitor.isCanceled()) {
+                    saver.cancel(true);
+                    return;
+                }
+                
+                monitor.setProgress(saver.getProgress());
+                monitor.setNote(String.format("%d of %d KB", saver.getCharsWritten() / 1024,
+                        saver.getLength() / 1024));
+            }
+        });
+        
+        // Clean up once it's done.
+        saver.addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+            @Override
+            public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                if (saver.isDone() && "state".equals(evt.getPropertyName())) {
+                    timer.stop();
+                    monitor.close();
+                    scrollback.setTrimSuspended(false);
+                    mnuSaveOutput.setEnabled(true);
+                    
+                    try {
+                        saver.get();
+                    } catch (java.util.concurrent.CancellationException ex) {
+                        Debug.println("SAVE_OUTPUT", "Cancelled after " + saver.getCharsWritten() +
+                                " characters.");
+                    } catch (InterruptedException ex) {
+                        Debug.println("SAVE_OUTPUT", "Interrupted.");
+                    } catch (java.util.concurrent.ExecutionException ex) {
+                        showErrorDialog("SAVE_ERROR", "Save Error", "Unable to write to " +
+                                saver.getFile() + ": " + ex.getCause().getMessage());
+                    }
+                }
+            }
+        });
+        
+        timer.start();
+        saver.execute();
+    }
+    
+    /**
+     * Creates a new capture file for the session.
+     * 
+     * @return Session capture or null if it couldn't be created.
+     */
+    private SessionCapture createSessionCapture() {
+        try {
+            SessionCapture cap;
+            if (capture_dir != null) {
+                cap = new SessionCapture(capture_dir);
+            } else {
+                cap = new SessionCapture();
+            }
+            
+            Debug.println("CAPTURE", cap.getFile().toString());
+            if (serial != null) {
+                cap.setCharset(serial.getCharset());
+            }
+            
+            return cap;
+        } catch (IOException ex) {
+            Debug.println("CAPTURE_ERROR", ex.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Starts logging everything received with the current session log
+     * settings, replacing the log that was running before.
+     */
+    private void startSessionLog() {
+        stopSessionLog();
+        
+        try {
+            session_log = new SessionLog(log_dir, log_max_size * 1024L * 1024L,
+                    log_max_age * 60000L, log_max_files, log_compress);
+        } catch (IOException ex) {
+            showErrorDialog("LOG_ERROR", "Session Log", "Unable to start the session log in " +
+                    log_dir + ": " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Stops the session log if there's one running.
+     */
+    private void stopSessionLog() {
+        SessionLog log = session_log;
+        session_log = null;
+        
+        if (log != null) {
+            log.close();
+        }
+    }
+    
+    /**
+     * Appends data to the binary capture if there's one running. Called from
+     * both the reader and writer threads.
+     * 
+     * @param direction Either BinaryCapture.RX or BinaryCapture.TX.
+     * @param data Buffer holding the data.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes.
+     * @param nanos When the data went through as given by System.nanoTime().
+     */
+    private void appendBinaryCapture(byte direction, byte[] data, int off, int len, long nanos) {
+        BinaryCapture bc = binary_capture;
+        if (bc == null) {
+            return;
+        }
+        
+        try {
+            bc.append(direction, data, off, len, nanos);
+        } catch (IOException ex) {
+            // Both threads may fail at once, but only one gets to report it.
+            synchronized (bc) {
+                if (binary_capture != bc) {
+                    return;
+                }
+                
+                binary_capture = null;
+            }
+            
+            bc.close();
+            showBackgroundError("BINARY_CAPTURE_ERROR", "Binary Capture",
+                    "The binary capture stopped because " + bc.getFile() +
+                    " couldn't be written to: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * Stops the binary capture if there's one running.
+     */
+    private void stopBinaryCapture() {
+        BinaryCapture bc = binary_capture;
+        binary_capture = null;
+        
+        if (bc != null) {
+            bc.close();
+            Debug.println("BINARY_CAPTURE", bc.getRecordCount() + " records, " +
+                    bc.getLength() + " bytes in " + bc.getFile());
+        }
+    }
+    
+    /**
+     * Closes the current session capture and starts a fresh one.
+     */
+    private void restartSessionCapture() {
+        SessionCapture old = capture;
+        this.capture = createSessionCapture();
+        
+        // Temporary captures aren't worth keeping around.
+        if (old != null) {
+            old.close();
+            if (capture_dir == null) {
+                old.getFile().delete();
+            }
+        }
+        
+        if ((history != null) && (capture != null)) {
+            history.setCapture(capture);
+        }
+    }
+    
+    /**
+     * Sets the charset used to encode and decode the data in this session.
+     * 
+     * @param name Charset name.
+     * @return True if the charset is supported.
+     */
+    private boolean setSessionCharset(String name) {
+        try {
+            Charset charset = Charset.forName(name);
+            
+            serial.setCharset(charset);
+            renderer.setCharset(charset);
+            macros.setEncoding(charset, chkCRLF.isSelected());
+            responder.compile(charset);
+            if (capture != null) {
+                capture.setCharset(charset);
+            }
+            
+            Debug.println("CHARSET_SELECTED", charset.name());
+            return true;
+        } catch (IllegalArgumentException ex) {
+            showErrorDialog("CHARSET_SELECTED_ERROR", "Charset not Supported",
+                    "The charset '" + name + "' isn't supported.");
+            return false;
+        }
+    }
+    
+    /**
+     * Selects the charset menu item for a charset without acting on it,
+     * falling back to the custom item if it isn't in the menu.
+     * 
+     * @param name Charset name.
+     */
+    private void selectCharsetMenuItem(String name) {
+        mnuCharsetCustom.setSelected(true);
+        for (Enumeration<AbstractButton> items = grpCharset.getElements(); items.hasMoreElements();) {
+            AbstractButton item = items.nextElement();
+            if (name.equalsIgnoreCase(item.getText())) {
+                item.setSelected(true);
+            }
+        }
+    }
+    
     /**
      * Populates the serial ports menu.
      */
@@ -241,6 +878,23 @@ public class MainWindow extends JFrame {
         JOptionPane.showMessageDialog(null, message, title, JOptionPane.ERROR_MESSAGE);
     }
     
+    /**
+     * Shows an error dialog from a background thread without waiting for the
+     * user to dismiss it.
+     * 
+     * @param tag Debug tag.
+     * @param title Error dialog title.
+     * @param message Error message.
+     */
+    private void showBackgroundError(final String tag, final String title, final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                showErrorDialog(tag, title, message);
+            }
+        });
+    }
+    
     /**
      * Sets the default action to be performed by a ComboBox item when its
      * selected status changes.
@@ -266,12 +920,33 @@ public class MainWindow extends JFrame {
     /**
      * Handles incoming data from the serial port.
      */
-    public static class SerialReader implements SerialPortEventListener {
+    public static class SerialReader implements SerialPortEventListener, Runnable {
+        private static final int BUFFER_SIZE = 8192;
+        
         private MainWindow mw;
         private InputStream in;
+        private byte[] buffer;
+        
+        private long events;
+        private long bytes_read;
+        private int max_chunk;
+        private int max_available;
+        private volatile long overruns;
+        private volatile long framing_errors;
+        private volatile long parity_errors;
+        private volatile long breaks;
 
         public SerialReader(MainWindow mw) {
             this.mw = mw;
+            this.buffer = new byte[BUFFER_SIZE];
+            this.events = 0;
+            this.bytes_read = 0;
+            this.max_chunk = 0;
+            this.max_available = 0;
+            this.overruns = 0;
+            this.framing_errors = 0;
+            this.parity_errors = 0;
+            this.breaks = 0;
         }
         
         public void setInputStream(InputStream in) {
@@ -280,18 +955,239 @@ public class MainWindow extends JFrame {
 
         @Override
         public void serialEvent(SerialPortEvent evt) {
+            // Count the line errors.
+            switch (evt.getEventType()) {
+                case SerialPortEvent.DATA_AVAILABLE:
+                    break;
+                case SerialPortEvent.OE:
+                    overruns++;
+                    Debug.println("LINE_ERROR", "Overrun");
+                    return;
+                case SerialPortEvent.FE:
+                    framing_errors++;
+                    Debug.println("LINE_ERROR", "Framing error");
+                    return;
+                case SerialPortEvent.PE:
+                    parity_errors++;
+                    Debug.println("LINE_ERROR", "Parity error");
+                    return;
+                case SerialPortEvent.BI:
+                    breaks++;
+                    Debug.println("LINE_ERROR", "Break interrupt");
+                    return;
+                default:
+                    return;
+            }
+            
             try {
-                int data;
+                int chunk = 0;
+                int available;
                 
-                while ((data = in.read()) > -1) {
-                    mw.txtMonitor.append(String.valueOf((char)data));
+                // Drain everything the driver has for us in bulk reads.
+                while ((available = in.available()) > 0) {
+                    if (available > max_available) {
+                        max_available = available;
+                    }
+                    
+                    int len = in.read(buffer, 0, Math.min(available, buffer.length));
+                    if (len < 0) {
+                        break;
+                    }
+                    
+                    chunk += len;
+                    dataReceived(buffer, len);
                 }
+                
+                countChunk(chunk);
             } catch (IOException ex) {
-                System.out.println(ex.getMessage());
-                ex.printStackTrace();
-                System.exit(-1);
+                mw.connectionError("READ_ERROR", ex);
             }
         }
+        
+        /**
+         * Reader thread loop. Blocks on bulk reads until the thread gets
+         * interrupted by the port being closed.
+         */
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    int len = in.read(buffer, 0, buffer.length);
+                    if (len < 0) {
+                        break;
+                    }
+                    
+                    if (len > 0) {
+                        dataReceived(buffer, len);
+                        countChunk(len);
+                    }
+                }
+            } catch (IOException ex) {
+                // Closing the port makes the blocked read throw.
+                if (!Thread.currentThread().isInterrupted()) {
+                    mw.connectionError("READ_ERROR", ex);
+                }
+            }
+            
+            Debug.println("READER_THREAD", "Reader thread finished.");
+        }
+        
+        /**
+         * Keeps track of how well the reads are being batched.
+         * 
+         * @param chunk Number of bytes handled in a single read event.
+         */
+        private void countChunk(int chunk) {
+            if (chunk > 0) {
+                events++;
+                bytes_read += chunk;
+                if (chunk > max_chunk) {
+                    max_chunk = chunk;
+                }
+            }
+        }
+        
+        /**
+         * Passes a whole chunk of received data downstream.
+         * 
+         * @param data Buffer holding the received data.
+         * @param len Number of valid bytes in the buffer.
+         */
+        private void dataReceived(byte[] data, int len) {
+            SessionCapture capture = mw.capture;
+            long nanos = System.nanoTime();
+            
+            // Answer the device as soon as possible.
+            mw.responder.dataReceived(data, len);
+            
+            // Keep a copy of everything in the session capture.
+            if (capture != null) {
+                try {
+                    capture.append(data, 0, len);
+                } catch (IOException ex) {
+                    if (mw.capture == capture) {
+                        mw.capture = null;
+                        mw.showBackgroundError("CAPTURE_ERROR", "Session Capture",
+                                "The session capture stopped because " + capture.getFile() +
+                                " couldn't be written to: " + ex.getMessage());
+                    }
+                }
+            }
+            
+            // Log it to disk without ever waiting on it.
+            SessionLog log = mw.session_log;
+            if (log != null) {
+                log.offer(data, len);
+            }
+            
+            // Keep the raw bytes along with when they arrived.
+            mw.appendBinaryCapture(BinaryCapture.RX, data, 0, len, nanos);
+            
+            // Look for the response of the latency probe.
+            LatencyProbe probe = mw.probe;
+            if (probe != null) {
+                probe.dataReceived(data, len, nanos);
+            }
+            
+            mw.renderer.offer(data, len, nanos);
+        }
+        
+        /**
+         * Gets the number of data events that actually carried data.
+         * 
+         * @return Number of events.
+         */
+        public long getEventCount() {
+            return this.events;
+        }
+        
+        /**
+         * Gets the total number of bytes read from the port.
+         * 
+         * @return Total bytes read.
+         */
+        public long getBytesRead() {
+            return this.bytes_read;
+        }
+        
+        /**
+         * Gets the average number of bytes handled per data event.
+         * 
+         * @return Average bytes per event.
+         */
+        public double getAverageChunkSize() {
+            if (events == 0) {
+                return 0;
+            }
+            
+            return (double)bytes_read / events;
+        }
+        
+        /**
+         * Gets the biggest number of bytes handled in a single data event.
+         * 
+         * @return Maximum bytes per event.
+         */
+        public int getMaxChunkSize() {
+            return this.max_chunk;
+        }
+        
+        /**
+         * Gets the most bytes the driver had waiting for us at once.
+         * 
+         * @return Maximum bytes available.
+         */
+        public int getMaxAvailable() {
+            return this.max_available;
+        }
+        
+        /**
+         * Gets the number of overrun errors reported by the port.
+         * 
+         * @return Overrun count.
+         */
+        public long getOverrunCount() {
+            return this.overruns;
+        }
+        
+        /**
+         * Gets the number of framing errors reported by the port.
+         * 
+         * @return Framing error count.
+         */
+        public long getFramingErrorCount() {
+            return this.framing_errors;
+        }
+        
+        /**
+         * Gets the number of parity errors reported by the port.
+         * 
+         * @return Parity error count.
+         */
+        public long getParityErrorCount() {
+            return this.parity_errors;
+        }
+        
+        /**
+         * Gets the number of break interrupts reported by the port.
+         * 
+         * @return Break count.
+         */
+        public long getBreakCount() {
+            return this.breaks;
+        }
+        
+        /**
+         * Creates a human readable summary of the read statistics.
+         * 
+         * @return Read statistics string.
+         */
+        public String getStatisticsString() {
+            return String.format("%d bytes in %d events (avg %.1f, max %d bytes/event, " +
+                    "max %d available), OE %d, FE %d, PE %d, BI %d",
+                    bytes_read, events, getAverageChunkSize(), max_chunk, max_available,
+                    overruns, framing_errors, parity_errors, breaks);
+        }
     }
 
     /**
@@ -308,6 +1204,8 @@ public class MainWindow extends JFrame {
         grpDataBits = new javax.swing.ButtonGroup();
         grpBaudRate = new javax.swing.ButtonGroup();
         grpPorts = new javax.swing.ButtonGroup();
+        grpReadMode = new javax.swing.ButtonGroup();
+        grpCharset = new javax.swing.ButtonGroup();
         dlgFile = new javax.swing.JFileChooser();
         pnlMain = new javax.swing.JPanel();
         sclMonitor = new javax.swing.JScrollPane();
@@ -316,6 +1214,7 @@ public class MainWindow extends JFrame {
         btSend = new javax.swing.JButton();
         chkCRLF = new javax.swing.JCheckBox();
         chkEcho = new javax.swing.JCheckBox();
+        lblStatus = new javax.swing.JLabel();
         mnuMain = new javax.swing.JMenuBar();
         mnuFile = new javax.swing.JMenu();
         mnuConnect = new javax.swing.JMenuItem();
@@ -323,6 +1222,10 @@ public class MainWindow extends JFrame {
         jSeparator6 = new javax.swing.JPopupMenu.Separator();
         mnuNewSession = new javax.swing.JMenuItem();
         mnuSaveOutput = new javax.swing.JMenuItem();
+        mnuCaptureDir = new javax.swing.JMenuItem();
+        mnuSessionLog = new javax.swing.JMenuItem();
+        mnuBinaryCapture = new javax.swing.JMenuItem();
+        mnuSendFile = new javax.swing.JMenuItem();
         jSeparator4 = new javax.swing.JPopupMenu.Separator();
         mnuImportSetup = new javax.swing.JMenuItem();
         mnuExportSetup = new javax.swing.JMenuItem();
@@ -330,6 +1233,8 @@ public class MainWindow extends JFrame {
         mnuQuit = new javax.swing.JMenuItem();
         mnuEdit = new javax.swing.JMenu();
         mnuFind = new javax.swing.JMenuItem();
+        mnuHistory = new javax.swing.JMenuItem();
+        mnuFilter = new javax.swing.JMenuItem();
         jSeparator1 = new javax.swing.JPopupMenu.Separator();
         mnuCut = new javax.swing.JMenuItem();
         mnuCopy = new javax.swing.JMenuItem();
@@ -366,6 +1271,32 @@ public class MainWindow extends JFrame {
         mnuStopBits1 = new javax.swing.JRadioButtonMenuItem();
         mnuStopBits1_5 = new javax.swing.JRadioButtonMenuItem();
         mnuStopBits2 = new javax.swing.JRadioButtonMenuItem();
+        mnuReadMode = new javax.swing.JMenu();
+        mnuReadModeEvent = new javax.swing.JRadioButtonMenuItem();
+        mnuReadModeThread = new javax.swing.JRadioButtonMenuItem();
+        jSeparator8 = new javax.swing.JPopupMenu.Separator();
+        mnuReadTuning = new javax.swing.JMenuItem();
+        mnuCharset = new javax.swing.JMenu();
+        mnuCharsetUTF8 = new javax.swing.JRadioButtonMenuItem();
+        mnuCharsetISO88591 = new javax.swing.JRadioButtonMenuItem();
+        mnuCharsetASCII = new javax.swing.JRadioButtonMenuItem();
+        mnuCharsetWindows1252 = new javax.swing.JRadioButtonMenuItem();
+        jSeparator9 = new javax.swing.JPopupMenu.Separator();
+        mnuCharsetCustom = new javax.swing.JRadioButtonMenuItem();
+        jSeparator7 = new javax.swing.JPopupMenu.Separator();
+        mnuHexDisplay = new javax.swing.JCheckBoxMenuItem();
+        mnuTimestamps = new javax.swing.JCheckBoxMenuItem();
+        mnuScrollback = new javax.swing.JMenuItem();
+        mnuPacing = new javax.swing.JMenuItem();
+        mnuHighlights = new javax.swing.JMenuItem();
+        mnuMacros = new javax.swing.JMenu();
+        mnuEditMacros = new javax.swing.JMenuItem();
+        jSeparator10 = new javax.swing.JPopupMenu.Separator();
+        mnuTools = new javax.swing.JMenu();
+        mnuLatencyProbe = new javax.swing.JMenuItem();
+        mnuExportLatency = new javax.swing.JMenuItem();
+        mnuAutoResponder = new javax.swing.JMenuItem();
+        mnuSearchCaptures = new javax.swing.JMenuItem();
         mnuHelp = new javax.swing.JMenu();
         mnuAbout = new javax.swing.JMenuItem();
 
@@ -401,6 +1332,8 @@ public class MainWindow extends JFrame {
 
         chkEcho.setText("Echo");
 
+        lblStatus.setText("Ready");
+
         javax.swing.GroupLayout pnlMainLayout = new javax.swing.GroupLayout(pnlMain);
         pnlMain.setLayout(pnlMainLayout);
         pnlMainLayout.setHorizontalGroup(
@@ -414,6 +1347,7 @@ public class MainWindow extends JFrame {
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                 .addComponent(btSend))
             .addComponent(sclMonitor, javax.swing.GroupLayout.DEFAULT_SIZE, 556, Short.MAX_VALUE)
+            .addComponent(lblStatus, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
         );
         pnlMainLayout.setVerticalGroup(
             pnlMainLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
@@ -425,7 +1359,9 @@ public class MainWindow extends JFrame {
                     .addComponent(btSend, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
                     .addGroup(pnlMainLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
                         .addComponent(chkCRLF, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
-                        .addComponent(chkEcho))))
+                        .addComponent(chkEcho)))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(lblStatus))
         );
 
         mnuFile.setText("File");
@@ -449,23 +1385,55 @@ public class MainWindow extends JFrame {
         mnuFile.add(mnuDisconnect);
         mnuFile.add(jSeparator6);
 
-        mnuNewSession.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_N, java.awt.event.InputEvent.CTRL_MASK));
-        mnuNewSession.setText("New Session");
-        mnuNewSession.addActionListener(new java.awt.event.ActionListener() {
+        mnuNewSession.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_N, java.awt.event.InputEvent.CTRL_MASK));
+        mnuNewSession.setText("New Session");
+        mnuNewSession.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuNewSessionActionPerformed(evt);
+            }
+        });
+        mnuFile.add(mnuNewSession);
+
+        mnuSaveOutput.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_S, java.awt.event.InputEvent.CTRL_MASK));
+        mnuSaveOutput.setText("Save Output");
+        mnuSaveOutput.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuSaveOutputActionPerformed(evt);
+            }
+        });
+        mnuFile.add(mnuSaveOutput);
+
+        mnuCaptureDir.setText("Capture Directory...");
+        mnuCaptureDir.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuCaptureDirActionPerformed(evt);
+            }
+        });
+        mnuFile.add(mnuCaptureDir);
+
+        mnuSessionLog.setText("Session Log...");
+        mnuSessionLog.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuSessionLogActionPerformed(evt);
+            }
+        });
+        mnuFile.add(mnuSessionLog);
+
+        mnuBinaryCapture.setText("Binary Capture...");
+        mnuBinaryCapture.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
-                mnuNewSessionActionPerformed(evt);
+                mnuBinaryCaptureActionPerformed(evt);
             }
         });
-        mnuFile.add(mnuNewSession);
+        mnuFile.add(mnuBinaryCapture);
 
-        mnuSaveOutput.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_S, java.awt.event.InputEvent.CTRL_MASK));
-        mnuSaveOutput.setText("Save Output");
-        mnuSaveOutput.addActionListener(new java.awt.event.ActionListener() {
+        mnuSendFile.setText("Send File...");
+        mnuSendFile.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
-                mnuSaveOutputActionPerformed(evt);
+                mnuSendFileActionPerformed(evt);
             }
         });
-        mnuFile.add(mnuSaveOutput);
+        mnuFile.add(mnuSendFile);
         mnuFile.add(jSeparator4);
 
         mnuImportSetup.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_I, java.awt.event.InputEvent.CTRL_MASK));
@@ -508,6 +1476,24 @@ public class MainWindow extends JFrame {
             }
         });
         mnuEdit.add(mnuFind);
+
+        mnuHistory.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_H, java.awt.event.InputEvent.CTRL_MASK));
+        mnuHistory.setText("Session History...");
+        mnuHistory.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuHistoryActionPerformed(evt);
+            }
+        });
+        mnuEdit.add(mnuHistory);
+
+        mnuFilter.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_L, java.awt.event.InputEvent.CTRL_MASK));
+        mnuFilter.setText("Filter Lines...");
+        mnuFilter.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuFilterActionPerformed(evt);
+            }
+        });
+        mnuEdit.add(mnuFilter);
         mnuEdit.add(jSeparator1);
 
         mnuCut.setAccelerator(javax.swing.KeyStroke.getKeyStroke(java.awt.event.KeyEvent.VK_X, java.awt.event.InputEvent.CTRL_MASK));
@@ -671,8 +1657,146 @@ public class MainWindow extends JFrame {
 
         mnuSetup.add(mnuStopBits);
 
+        mnuReadMode.setText("Read Mode");
+
+        grpReadMode.add(mnuReadModeEvent);
+        mnuReadModeEvent.setSelected(true);
+        mnuReadModeEvent.setText("Event Notification");
+        mnuReadMode.add(mnuReadModeEvent);
+
+        grpReadMode.add(mnuReadModeThread);
+        mnuReadModeThread.setText("Blocking Thread");
+        mnuReadMode.add(mnuReadModeThread);
+        mnuReadMode.add(jSeparator8);
+
+        mnuReadTuning.setText("Threshold and Timeout...");
+        mnuReadTuning.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuReadTuningActionPerformed(evt);
+            }
+        });
+        mnuReadMode.add(mnuReadTuning);
+
+        mnuSetup.add(mnuReadMode);
+
+        mnuCharset.setText("Charset");
+
+        grpCharset.add(mnuCharsetUTF8);
+        mnuCharsetUTF8.setSelected(true);
+        mnuCharsetUTF8.setText("UTF-8");
+        mnuCharset.add(mnuCharsetUTF8);
+
+        grpCharset.add(mnuCharsetISO88591);
+        mnuCharsetISO88591.setText("ISO-8859-1");
+        mnuCharset.add(mnuCharsetISO88591);
+
+        grpCharset.add(mnuCharsetASCII);
+        mnuCharsetASCII.setText("US-ASCII");
+        mnuCharset.add(mnuCharsetASCII);
+
+        grpCharset.add(mnuCharsetWindows1252);
+        mnuCharsetWindows1252.setText("windows-1252");
+        mnuCharset.add(mnuCharsetWindows1252);
+        mnuCharset.add(jSeparator9);
+
+        grpCharset.add(mnuCharsetCustom);
+        mnuCharsetCustom.setText("Custom");
+        mnuCharset.add(mnuCharsetCustom);
+
+        mnuSetup.add(mnuCharset);
+        mnuSetup.add(jSeparator7);
+
+        mnuHexDisplay.setText("Hex Display");
+        mnuHexDisplay.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuHexDisplayActionPerformed(evt);
+            }
+        });
+        mnuSetup.add(mnuHexDisplay);
+
+        mnuTimestamps.setText("Show Timestamps");
+        mnuTimestamps.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuTimestampsActionPerformed(evt);
+            }
+        });
+        mnuSetup.add(mnuTimestamps);
+
+        mnuScrollback.setText("Scrollback Limit...");
+        mnuScrollback.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuScrollbackActionPerformed(evt);
+            }
+        });
+        mnuSetup.add(mnuScrollback);
+
+        mnuPacing.setText("Transmit Pacing...");
+        mnuPacing.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuPacingActionPerformed(evt);
+            }
+        });
+        mnuSetup.add(mnuPacing);
+
+        mnuHighlights.setText("Highlight Rules...");
+        mnuHighlights.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuHighlightsActionPerformed(evt);
+            }
+        });
+        mnuSetup.add(mnuHighlights);
+
         mnuMain.add(mnuSetup);
 
+        mnuMacros.setText("Macros");
+
+        mnuEditMacros.setText("Edit Macros...");
+        mnuEditMacros.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuEditMacrosActionPerformed(evt);
+            }
+        });
+        mnuMacros.add(mnuEditMacros);
+        mnuMacros.add(jSeparator10);
+
+        mnuMain.add(mnuMacros);
+
+        mnuTools.setText("Tools");
+
+        mnuLatencyProbe.setText("Latency Probe...");
+        mnuLatencyProbe.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuLatencyProbeActionPerformed(evt);
+            }
+        });
+        mnuTools.add(mnuLatencyProbe);
+
+        mnuExportLatency.setText("Export Latency Histogram...");
+        mnuExportLatency.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuExportLatencyActionPerformed(evt);
+            }
+        });
+        mnuTools.add(mnuExportLatency);
+
+        mnuAutoResponder.setText("Auto Responder...");
+        mnuAutoResponder.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuAutoResponderActionPerformed(evt);
+            }
+        });
+        mnuTools.add(mnuAutoResponder);
+
+        mnuSearchCaptures.setText("Search Captures...");
+        mnuSearchCaptures.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                mnuSearchCapturesActionPerformed(evt);
+            }
+        });
+        mnuTools.add(mnuSearchCaptures);
+
+        mnuMain.add(mnuTools);
+
         mnuHelp.setText("Help");
 
         mnuAbout.setText("About");
@@ -716,11 +1840,21 @@ public class MainWindow extends JFrame {
 
     private void mnuDisconnectActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuDisconnectActionPerformed
         serial.close();
+        Debug.println("READ_STATS", comm_reader.getStatisticsString());
         enableInput(false);
+        stopMacros();
+        stopProbe();
     }//GEN-LAST:event_mnuDisconnectActionPerformed
 
     private void mnuQuitActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuQuitActionPerformed
+        macros.shutdown();
         serial.close();
+        if (capture != null) {
+            capture.close();
+        }
+        
+        stopSessionLog();
+        stopBinaryCapture();
         System.exit(0);
     }//GEN-LAST:event_mnuQuitActionPerformed
 
@@ -745,11 +1879,29 @@ public class MainWindow extends JFrame {
         serial.close();
         enableInput(false);
         
+        CommsHandler previous = this.serial;
         this.serial = new CommsHandler();
+        this.serial.setSessionListener(session_listener);
         this.comm_reader = new SerialReader(this);
+        serial.setCharset(renderer.getCharset());
+        serial.setPacing(previous.getCharDelay(), previous.getLineDelay());
+        serial.setReadMode(previous.getReadMode());
+        serial.setReceiveThreshold(previous.getReceiveThreshold());
+        serial.setReceiveTimeout(previous.getReceiveTimeout());
+        macros.setSerial(serial);
+        responder.setSerial(serial);
+        stopMacros();
+        stopProbe();
         
-        txtMonitor.setText("");
+        scrollback.clear();
         txtInput.setText("");
+        renderer.reset();
+        renderer.resetStatistics();
+        if (mnuTimestamps.isSelected()) {
+            renderer.setLineTimestamps(stamps);
+        }
+        
+        restartSessionCapture();
         
         populateSerialPortsMenu();
     }//GEN-LAST:event_mnuNewSessionActionPerformed
@@ -767,19 +1919,7 @@ public class MainWindow extends JFrame {
         if (dlgFile.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File output = dlgFile.getSelectedFile();
             Debug.println("SAVE_OUTPUT", output.toString());
-            
-            try {
-                // Create the file if it doesn't exist already.
-                output.createNewFile();
-                
-                // Write to the file.
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
-                    writer.write(txtMonitor.getText());
-                }
-            } catch (IOException ex) {
-                showErrorDialog("SAVE_ERROR", "Save Error", "Unable to write to " +
-                        output.toString());
-            }
+            saveOutput(output);
         }
     }//GEN-LAST:event_mnuSaveOutputActionPerformed
 
@@ -789,6 +1929,8 @@ public class MainWindow extends JFrame {
         // Get the state of the check boxes.
         setup.setProperty("echo", String.valueOf(chkEcho.isSelected()));
         setup.setProperty("crlf", String.valueOf(chkCRLF.isSelected()));
+        setup.setProperty("hex_display", String.valueOf(mnuHexDisplay.isSelected()));
+        setup.setProperty("timestamps", String.valueOf(mnuTimestamps.isSelected()));
         
         // Get the selected port settings.
         setup.setProperty("port", getSelectedMenuComboText(grpPorts));
@@ -796,6 +1938,58 @@ public class MainWindow extends JFrame {
         setup.setProperty("parity", getSelectedMenuComboText(grpParity));
         setup.setProperty("data_bits", getSelectedMenuComboText(grpDataBits));
         setup.setProperty("stop_bits", getSelectedMenuComboText(grpStopBits));
+        setup.setProperty("read_mode", getSelectedMenuComboText(grpReadMode));
+        setup.setProperty("charset", serial.getCharset().name());
+        setup.setProperty("receive_threshold", String.valueOf(serial.getReceiveThreshold()));
+        setup.setProperty("receive_timeout", String.valueOf(serial.getReceiveTimeout()));
+        
+        // Get the monitor rendering settings.
+        setup.setProperty("frame_rate", String.valueOf(renderer.getFrameRate()));
+        setup.setProperty("max_batch", String.valueOf(renderer.getMaxBatchSize()));
+        
+        // Get the scrollback limits.
+        setup.setProperty("scrollback_lines", String.valueOf(scrollback.getMaxLines()));
+        setup.setProperty("scrollback_size", String.valueOf(scrollback.getMaxSize()));
+        
+        // Get the macros.
+        macros.save(setup);
+        
+        // Get the auto responder rules.
+        responder.save(setup);
+        
+        // Get the highlight rules.
+        highlighter.save(setup);
+        
+        // Get the latency probe settings.
+        setup.setProperty("probe_command", probe_command);
+        setup.setProperty("probe_pattern", probe_pattern);
+        setup.setProperty("probe_count", String.valueOf(probe_count));
+        setup.setProperty("probe_interval", String.valueOf(probe_interval));
+        setup.setProperty("probe_timeout", String.valueOf(probe_timeout));
+        
+        // Get the transmit pacing.
+        setup.setProperty("char_delay", String.valueOf(serial.getCharDelay()));
+        setup.setProperty("line_delay", String.valueOf(serial.getLineDelay()));
+        
+        // Get the file sending settings.
+        setup.setProperty("send_chunk_size", String.valueOf(send_chunk_size));
+        setup.setProperty("send_chunk_delay", String.valueOf(send_chunk_delay));
+        
+        // Get the capture directory.
+        if (capture_dir != null) {
+            setup.setProperty("capture_dir", capture_dir.getPath());
+        }
+        
+        // Get the session log settings.
+        setup.setProperty("log_enabled", String.valueOf(session_log != null));
+        if (log_dir != null) {
+            setup.setProperty("log_dir", log_dir.getPath());
+        }
+        
+        setup.setProperty("log_max_size", String.valueOf(log_max_size));
+        setup.setProperty("log_max_age", String.valueOf(log_max_age));
+        setup.setProperty("log_max_files", String.valueOf(log_max_files));
+        setup.setProperty("log_compress", String.valueOf(log_compress));
         
         // Setup the dialog.
         dlgFile.setDialogType(JFileChooser.SAVE_DIALOG);
@@ -836,6 +2030,10 @@ public class MainWindow extends JFrame {
                 // Set the checkboxes.
                 chkEcho.setSelected(Boolean.valueOf(setup.getProperty("echo")));
                 chkCRLF.setSelected(Boolean.valueOf(setup.getProperty("crlf")));
+                mnuHexDisplay.setSelected(Boolean.valueOf(setup.getProperty("hex_display")));
+                renderer.setHexMode(mnuHexDisplay.isSelected());
+                mnuTimestamps.setSelected(Boolean.valueOf(setup.getProperty("timestamps")));
+                setShowTimestamps(mnuTimestamps.isSelected());
                 
                 // Select the setup options.
                 selectMenuComboItem(grpPorts, setup.getProperty("port"));
@@ -843,7 +2041,90 @@ public class MainWindow extends JFrame {
                 selectMenuComboItem(grpParity, setup.getProperty("parity"));
                 selectMenuComboItem(grpDataBits, setup.getProperty("data_bits"));
                 selectMenuComboItem(grpStopBits, setup.getProperty("stop_bits"));
-            } catch (IOException ex) {
+                selectMenuComboItem(grpReadMode, setup.getProperty("read_mode",
+                        mnuReadModeEvent.getText()));
+                
+                // Set the charset, going for a custom one if it isn't in the menu.
+                String charset = setup.getProperty("charset", "UTF-8");
+                if (!setSessionCharset(charset)) {
+                    charset = serial.getCharset().name();
+                }
+                selectCharsetMenuItem(charset);
+                
+                serial.setReceiveThreshold(Integer.parseInt(setup.getProperty("receive_threshold",
+                        String.valueOf(serial.getReceiveThreshold()))));
+                serial.setReceiveTimeout(Integer.parseInt(setup.getProperty("receive_timeout",
+                        String.valueOf(serial.getReceiveTimeout()))));
+                
+                // Set the monitor rendering settings.
+                renderer.setFrameRate(Integer.parseInt(setup.getProperty("frame_rate",
+                        String.valueOf(MonitorRenderer.DEFAULT_FRAME_RATE))));
+                renderer.setMaxBatchSize(Integer.parseInt(setup.getProperty("max_batch",
+                        String.valueOf(MonitorRenderer.DEFAULT_MAX_BATCH))));
+                
+                // Set the scrollback limits.
+                scrollback.setMaxLines(Integer.parseInt(setup.getProperty("scrollback_lines",
+                        String.valueOf(ScrollbackDocument.DEFAULT_MAX_LINES))));
+                scrollback.setMaxSize(Integer.parseInt(setup.getProperty("scrollback_size",
+                        String.valueOf(ScrollbackDocument.DEFAULT_MAX_SIZE))));
+                
+                // Set the macros.
+                macros.load(setup);
+                populateMacrosMenu();
+                
+                // Set the auto responder rules.
+                responder.load(setup, serial.getCharset());
+                
+                // Set the highlight rules.
+                highlighter.load(setup);
+                
+                // Set the latency probe settings.
+                probe_command = setup.getProperty("probe_command", probe_command);
+                probe_pattern = setup.getProperty("probe_pattern", probe_pattern);
+                probe_count = Integer.parseInt(setup.getProperty("probe_count",
+                        String.valueOf(probe_count)));
+                probe_interval = Integer.parseInt(setup.getProperty("probe_interval",
+                        String.valueOf(probe_interval)));
+                probe_timeout = Integer.parseInt(setup.getProperty("probe_timeout",
+                        String.valueOf(probe_timeout)));
+                
+                // Set the transmit pacing.
+                serial.setPacing(Long.parseLong(setup.getProperty("char_delay", "0")),
+                        Long.parseLong(setup.getProperty("line_delay", "0")));
+                
+                // Set the file sending settings.
+                send_chunk_size = Math.max(1, Integer.parseInt(setup.getProperty("send_chunk_size",
+                        String.valueOf(FileSender.DEFAULT_CHUNK_SIZE))));
+                send_chunk_delay = Math.max(0, Integer.parseInt(setup.getProperty("send_chunk_delay",
+                        String.valueOf(FileSender.DEFAULT_CHUNK_DELAY))));
+                
+                // Set the capture directory.
+                String dir = setup.getProperty("capture_dir");
+                if ((dir != null) && new File(dir).isDirectory()) {
+                    capture_dir = new File(dir);
+                    restartSessionCapture();
+                }
+                
+                // Set the session log.
+                dir = setup.getProperty("log_dir");
+                if ((dir != null) && new File(dir).isDirectory()) {
+                    log_dir = new File(dir);
+                }
+                
+                log_max_size = Math.max(0, Integer.parseInt(setup.getProperty("log_max_size",
+                        String.valueOf(log_max_size))));
+                log_max_age = Math.max(0, Integer.parseInt(setup.getProperty("log_max_age",
+                        String.valueOf(log_max_age))));
+                log_max_files = Math.max(0, Integer.parseInt(setup.getProperty("log_max_files",
+                        String.valueOf(log_max_files))));
+                log_compress = Boolean.valueOf(setup.getProperty("log_compress",
+                        String.valueOf(log_compress)));
+                if (Boolean.valueOf(setup.getProperty("log_enabled")) && (log_dir != null)) {
+                    startSessionLog();
+                } else {
+                    stopSessionLog();
+                }
+            } catch (IOException | NumberFormatException ex) {
                 showErrorDialog("OPEN_ERROR", "Import Setup Error",
                         "Unable to parse the selected file. Are you sure this is the right one?");
                 ex.printStackTrace();
@@ -857,10 +2138,554 @@ public class MainWindow extends JFrame {
     }//GEN-LAST:event_mnuAboutActionPerformed
 
     private void mnuFindActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuFindActionPerformed
-        FindWindow find = new FindWindow(txtMonitor);
+        // Keep a single find window around so its index survives.
+        if (find == null) {
+            find = new FindWindow(txtMonitor);
+        }
+        
         find.setVisible(true);
+        find.toFront();
     }//GEN-LAST:event_mnuFindActionPerformed
 
+    private void mnuScrollbackActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuScrollbackActionPerformed
+        // Build a panel with both limits.
+        JSpinner spnLines = new JSpinner(new SpinnerNumberModel(scrollback.getMaxLines(), 0,
+                Integer.MAX_VALUE, 1000));
+        JSpinner spnSize = new JSpinner(new SpinnerNumberModel(scrollback.getMaxSize() / 1024, 0,
+                Integer.MAX_VALUE / 1024, 1024));
+        JPanel panel = new JPanel(new java.awt.GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Maximum lines (0 for unlimited):"));
+        panel.add(spnLines);
+        panel.add(new JLabel("Maximum size in KB (0 for unlimited):"));
+        panel.add(spnSize);
+        
+        // Show the dialog and apply the new limits.
+        if (JOptionPane.showConfirmDialog(this, panel, "Scrollback Limit",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+            scrollback.setMaxLines((Integer)spnLines.getValue());
+            scrollback.setMaxSize((Integer)spnSize.getValue() * 1024);
+            Debug.println("SCROLLBACK_SELECTED", scrollback.getMaxLines() + " lines, " +
+                    scrollback.getMaxSize() + " chars");
+        }
+    }//GEN-LAST:event_mnuScrollbackActionPerformed
+
+    private void mnuHistoryActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuHistoryActionPerformed
+        if (capture == null) {
+            showErrorDialog("HISTORY_ERROR", "Session History",
+                    "There's no session capture available.");
+            return;
+        }
+        
+        // Create the window only once.
+        if (history == null) {
+            history = new HistoryWindow(capture, txtMonitor.getFont());
+        }
+        
+        history.setVisible(true);
+    }//GEN-LAST:event_mnuHistoryActionPerformed
+
+    private void mnuReadTuningActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuReadTuningActionPerformed
+        // Build a panel with both settings.
+        JSpinner spnThreshold = new JSpinner(new SpinnerNumberModel(serial.getReceiveThreshold(),
+                1, 65536, 256));
+        JSpinner spnTimeout = new JSpinner(new SpinnerNumberModel(serial.getReceiveTimeout(),
+                1, 10000, 1));
+        JPanel panel = new JPanel(new java.awt.GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Receive threshold (bytes):"));
+        panel.add(spnThreshold);
+        panel.add(new JLabel("Receive timeout (ms):"));
+        panel.add(spnTimeout);
+        
+        // Show the dialog and apply the new settings.
+        if (JOptionPane.showConfirmDialog(this, panel, "Blocking Thread Read Mode",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+            serial.setReceiveThreshold((Integer)spnThreshold.getValue());
+            serial.setReceiveTimeout((Integer)spnTimeout.getValue());
+            Debug.println("READ_TUNING_SELECTED", serial.getReceiveThreshold() + " bytes, " +
+                    serial.getReceiveTimeout() + " ms");
+        }
+    }//GEN-LAST:event_mnuReadTuningActionPerformed
+
+    private void mnuCaptureDirActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuCaptureDirActionPerformed
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle("Keep session captures in");
+        
+        // Ask for the directory and start capturing into it right away.
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            capture_dir = chooser.getSelectedFile();
+            restartSessionCapture();
+        } else if (capture_dir != null) {
+            // Go back to temporary captures if the user doesn't want them anymore.
+            if (JOptionPane.showConfirmDialog(this, "Stop keeping session captures in " +
+                    capture_dir + "?", "Capture Directory", JOptionPane.YES_NO_OPTION) ==
+                    JOptionPane.YES_OPTION) {
+                capture_dir = null;
+                restartSessionCapture();
+            }
+        }
+    }//GEN-LAST:event_mnuCaptureDirActionPerformed
+
+    private void mnuHexDisplayActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuHexDisplayActionPerformed
+        renderer.setHexMode(mnuHexDisplay.isSelected());
+        Debug.println("HEX_DISPLAY", String.valueOf(mnuHexDisplay.isSelected()));
+    }//GEN-LAST:event_mnuHexDisplayActionPerformed
+
+    private void mnuTimestampsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuTimestampsActionPerformed
+        setShowTimestamps(mnuTimestamps.isSelected());
+        Debug.println("TIMESTAMPS", String.valueOf(mnuTimestamps.isSelected()));
+    }//GEN-LAST:event_mnuTimestampsActionPerformed
+
+    private void mnuSendFileActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuSendFileActionPerformed
+        if (!serial.isConnected()) {
+            showErrorDialog("SEND_FILE_ERROR", "Send File",
+                    "You need to be connected in order to send a file.");
+            return;
+        }
+        
+        // Setup the dialog.
+        dlgFile.setDialogType(JFileChooser.OPEN_DIALOG);
+        dlgFile.setDialogTitle("Send file to the serial port");
+        if (dlgFile.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        // Ask how it should be paced.
+        JSpinner spnChunk = new JSpinner(new SpinnerNumberModel(send_chunk_size, 1,
+                TransmitQueue.DEFAULT_CAPACITY, 256));
+        JSpinner spnDelay = new JSpinner(new SpinnerNumberModel(send_chunk_delay, 0,
+                60000, 10));
+        JPanel panel = new JPanel(new java.awt.GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Chunk size in bytes:"));
+        panel.add(spnChunk);
+        panel.add(new JLabel("Delay between chunks in ms:"));
+        panel.add(spnDelay);
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Send File",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+            send_chunk_size = (Integer)spnChunk.getValue();
+            send_chunk_delay = (Integer)spnDelay.getValue();
+            Debug.println("SEND_FILE", dlgFile.getSelectedFile() + " in " + send_chunk_size +
+                    " byte chunks every " + send_chunk_delay + " ms");
+            
+            sendFile(dlgFile.getSelectedFile());
+        }
+    }//GEN-LAST:event_mnuSendFileActionPerformed
+
+    private void mnuPacingActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuPacingActionPerformed
+        // Build a panel with both delays.
+        JSpinner spnChar = new JSpinner(new SpinnerNumberModel((int)serial.getCharDelay(), 0,
+                10000000, 100));
+        JSpinner spnLine = new JSpinner(new SpinnerNumberModel((int)serial.getLineDelay(), 0,
+                10000000, 1000));
+        JPanel panel = new JPanel(new java.awt.GridLayout(2, 2, 5, 5));
+        panel.add(new JLabel("Delay between characters in \u00b5s (0 for none):"));
+        panel.add(spnChar);
+        panel.add(new JLabel("Delay after each line in \u00b5s (0 for none):"));
+        panel.add(spnLine);
+        
+        // Show the dialog and apply the new delays.
+        if (JOptionPane.showConfirmDialog(this, panel, "Transmit Pacing",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+            serial.setPacing((Integer)spnChar.getValue(), (Integer)spnLine.getValue());
+            Debug.println("PACING_SELECTED", serial.getCharDelay() + " us per character, " +
+                    serial.getLineDelay() + " us per line");
+        }
+    }//GEN-LAST:event_mnuPacingActionPerformed
+
+    private void mnuEditMacrosActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuEditMacrosActionPerformed
+        // Put the macros in an editable table.
+        final javax.swing.table.DefaultTableModel model = new javax.swing.table.DefaultTableModel(
+                new Object[] { "Name", "Text", "Period (ms)" }, 0) {
+            @Override
+            public Class<?> getColumnClass(int column) {
+                return (column == 2) ? Integer.class : String.class;
+            }
+        };
+        for (Macro macro : macros.getMacros()) {
+            model.addRow(new Object[] { macro.getName(), macro.getText(), macro.getPeriod() });
+        }
+        
+        final JTable table = new JTable(model);
+        JButton btAdd = new JButton("Add");
+        btAdd.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                model.addRow(new Object[] { "Macro " + (model.getRowCount() + 1), "", 0 });
+            }
+        });
+        JButton btRemove = new JButton("Remove");
+        btRemove.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (table.getSelectedRow() >= 0) {
+                    model.removeRow(table.getSelectedRow());
+                }
+            }
+        });
+        
+        // Build the panel.
+        JPanel buttons = new JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT));
+        buttons.add(btAdd);
+        buttons.add(btRemove);
+        JPanel panel = new JPanel(new java.awt.BorderLayout(5, 5));
+        panel.add(new JScrollPane(table), java.awt.BorderLayout.CENTER);
+        panel.add(buttons, java.awt.BorderLayout.SOUTH);
+        panel.setPreferredSize(new java.awt.Dimension(500, 250));
+        
+        // Show the dialog and replace the macros.
+        if (JOptionPane.showConfirmDialog(this, panel, "Edit Macros",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            if (table.isEditing()) {
+                table.getCellEditor().stopCellEditing();
+            }
+            
+            List<Macro> edited = new ArrayList();
+            for (int i = 0; i < model.getRowCount(); i++) {
+                Object period = model.getValueAt(i, 2);
+                edited.add(new Macro(String.valueOf(model.getValueAt(i, 0)),
+                        String.valueOf(model.getValueAt(i, 1)),
+                        (period != null) ? (Integer)period : 0));
+            }
+            
+            macros.setMacros(edited);
+            populateMacrosMenu();
+            Debug.println("MACROS_EDITED", edited.size() + " macros");
+        }
+    }//GEN-LAST:event_mnuEditMacrosActionPerformed
+
+    private void mnuLatencyProbeActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuLatencyProbeActionPerformed
+        // Stop the probe if it's already running.
+        if ((probe != null) && probe.isRunning()) {
+            if (JOptionPane.showConfirmDialog(this, "Stop the latency probe?", "Latency Probe",
+                    JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                probe.stop();
+            }
+            
+            return;
+        }
+        
+        // Build a panel with the probe settings.
+        JTextField txtCommand = new JTextField(probe_command);
+        JTextField txtPattern = new JTextField(probe_pattern);
+        JSpinner spnCount = new JSpinner(new SpinnerNumberModel(probe_count, 1,
+                Integer.MAX_VALUE, 100));
+        JSpinner spnInterval = new JSpinner(new SpinnerNumberModel(probe_interval, 0,
+                60000, 10));
+        JSpinner spnTimeout = new JSpinner(new SpinnerNumberModel(probe_timeout, 1,
+                60000, 100));
+        JPanel panel = new JPanel(new java.awt.GridLayout(5, 2, 5, 5));
+        panel.add(new JLabel("Command:"));
+        panel.add(txtCommand);
+        panel.add(new JLabel("Response pattern:"));
+        panel.add(txtPattern);
+        panel.add(new JLabel("Number of probes:"));
+        panel.add(spnCount);
+        panel.add(new JLabel("Interval in ms:"));
+        panel.add(spnInterval);
+        panel.add(new JLabel("Timeout in ms:"));
+        panel.add(spnTimeout);
+        
+        if (JOptionPane.showConfirmDialog(this, panel, "Latency Probe",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        
+        probe_command = txtCommand.getText();
+        probe_pattern = txtPattern.getText();
+        probe_count = (Integer)spnCount.getValue();
+        probe_interval = (Integer)spnInterval.getValue();
+        probe_timeout = (Integer)spnTimeout.getValue();
+        
+        // Make sure we can actually probe.
+        if (!serial.isConnected()) {
+            showErrorDialog("PROBE_ERROR", "Latency Probe",
+                    "You need to be connected in order to probe.");
+            return;
+        } else if (probe_pattern.isEmpty()) {
+            showErrorDialog("PROBE_ERROR", "Latency Probe",
+                    "The response pattern can't be empty.");
+            return;
+        }
+        
+        // Encode everything once and start probing.
+        Charset charset = serial.getCharset();
+        latency.reset();
+        probe = new LatencyProbe(serial,
+                (probe_command + (chkCRLF.isSelected() ? "\r\n" : "\n")).getBytes(charset),
+                probe_pattern.getBytes(charset), probe_count, probe_interval, probe_timeout,
+                latency);
+        probe.start();
+    }//GEN-LAST:event_mnuLatencyProbeActionPerformed
+
+    private void mnuExportLatencyActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuExportLatencyActionPerformed
+        if (latency.getCount() == 0) {
+            showErrorDialog("EXPORT_LATENCY_ERROR", "Export Latency Histogram",
+                    "There are no latency measurements to export.");
+            return;
+        }
+        
+        // Setup the dialog.
+        dlgFile.setDialogType(JFileChooser.SAVE_DIALOG);
+        dlgFile.setDialogTitle("Export latency histogram");
+        
+        // Open the dialog and write the histogram.
+        if (dlgFile.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            File output = dlgFile.getSelectedFile();
+            Debug.println("EXPORT_LATENCY", output.toString());
+            
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(output))) {
+                latency.export(writer);
+            } catch (IOException ex) {
+                showErrorDialog("EXPORT_LATENCY_ERROR", "Export Latency Histogram",
+                        "Unable to write to " + output.toString());
+            }
+        }
+    }//GEN-LAST:event_mnuExportLatencyActionPerformed
+
+    private void mnuAutoResponderActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuAutoResponderActionPerformed
+        // Put the rules in an editable table.
+        final javax.swing.table.DefaultTableModel model = new javax.swing.table.DefaultTableModel(
+                new Object[] { "Trigger", "Response" }, 0);
+        for (AutoResponder.Rule rule : responder.getRules()) {
+            model.addRow(new Object[] { rule.getTrigger(), rule.getResponse() });
+        }
+        
+        final JTable table = new JTable(model);
+        JCheckBox chkEnabled = new JCheckBox("Respond automatically", responder.isEnabled());
+        JButton btAdd = new JButton("Add");
+        btAdd.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                model.addRow(new Object[] { "", "" });
+            }
+        });
+        JButton btRemove = new JButton("Remove");
+        btRemove.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (table.getSelectedRow() >= 0) {
+                    model.removeRow(table.getSelectedRow());
+                }
+            }
+        });
+        
+        // Build the panel.
+        JPanel buttons = new JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT));
+        buttons.add(chkEnabled);
+        buttons.add(btAdd);
+        buttons.add(btRemove);
+        JPanel panel = new JPanel(new java.awt.BorderLayout(5, 5));
+        panel.add(new JLabel("Escapes: \\r \\n \\t \\\\ \\xHH"), java.awt.BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), java.awt.BorderLayout.CENTER);
+        panel.add(buttons, java.awt.BorderLayout.SOUTH);
+        panel.setPreferredSize(new java.awt.Dimension(500, 250));
+        
+        // Show the dialog and replace the rules.
+        if (JOptionPane.showConfirmDialog(this, panel, "Auto Responder",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            if (table.isEditing()) {
+                table.getCellEditor().stopCellEditing();
+            }
+            
+            List<AutoResponder.Rule> edited = new ArrayList();
+            for (int i = 0; i < model.getRowCount(); i++) {
+                String trigger = String.valueOf(model.getValueAt(i, 0));
+                if (!trigger.isEmpty()) {
+                    edited.add(new AutoResponder.Rule(trigger, String.valueOf(model.getValueAt(i, 1))));
+                }
+            }
+            
+            responder.setRules(edited, serial.getCharset());
+            responder.setEnabled(chkEnabled.isSelected());
+            Debug.println("AUTO_RESPONDER", edited.size() + " rules, " +
+                    (responder.isEnabled() ? "enabled" : "disabled"));
+        }
+    }//GEN-LAST:event_mnuAutoResponderActionPerformed
+
+    private void mnuFilterActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuFilterActionPerformed
+        // Create the window only once.
+        if (filter == null) {
+            filter = new FilterWindow(txtMonitor);
+        }
+        
+        filter.setVisible(true);
+        filter.toFront();
+    }//GEN-LAST:event_mnuFilterActionPerformed
+
+    private void mnuHighlightsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuHighlightsActionPerformed
+        // Put the rules in an editable table.
+        final javax.swing.table.DefaultTableModel model = new javax.swing.table.DefaultTableModel(
+                new Object[] { "Pattern", "Color" }, 0);
+        for (LineHighlighter.Rule rule : highlighter.getRules()) {
+            model.addRow(new Object[] { rule.getPattern(),
+                LineHighlighter.Rule.formatColor(rule.getColor()) });
+        }
+        
+        final JTable table = new JTable(model);
+        JButton btAdd = new JButton("Add");
+        btAdd.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                model.addRow(new Object[] { "", "#FFFF80" });
+            }
+        });
+        JButton btRemove = new JButton("Remove");
+        btRemove.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (table.getSelectedRow() >= 0) {
+                    model.removeRow(table.getSelectedRow());
+                }
+            }
+        });
+        
+        // Build the panel.
+        JPanel buttons = new JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT));
+        buttons.add(btAdd);
+        buttons.add(btRemove);
+        JPanel panel = new JPanel(new java.awt.BorderLayout(5, 5));
+        panel.add(new JLabel("Colors as #RRGGBB. The first rule that matches a line wins."),
+                java.awt.BorderLayout.NORTH);
+        panel.add(new JScrollPane(table), java.awt.BorderLayout.CENTER);
+        panel.add(buttons, java.awt.BorderLayout.SOUTH);
+        panel.setPreferredSize(new java.awt.Dimension(500, 250));
+        
+        // Show the dialog and replace the rules.
+        if (JOptionPane.showConfirmDialog(this, panel, "Highlight Rules",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            if (table.isEditing()) {
+                table.getCellEditor().stopCellEditing();
+            }
+            
+            List<LineHighlighter.Rule> edited = new ArrayList();
+            for (int i = 0; i < model.getRowCount(); i++) {
+                String pattern = String.valueOf(model.getValueAt(i, 0));
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                
+                try {
+                    edited.add(new LineHighlighter.Rule(pattern,
+                            java.awt.Color.decode(String.valueOf(model.getValueAt(i, 1)))));
+                } catch (NumberFormatException ex) {
+                    showErrorDialog("HIGHLIGHT_ERROR", "Invalid Color",
+                            "Invalid color for " + pattern + ": " + model.getValueAt(i, 1));
+                    return;
+                }
+            }
+            
+            highlighter.setRules(edited);
+            Debug.println("HIGHLIGHT_RULES", edited.size() + " rules");
+        }
+    }//GEN-LAST:event_mnuHighlightsActionPerformed
+
+    private void mnuSearchCapturesActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuSearchCapturesActionPerformed
+        // Create the window only once, starting where the captures are saved.
+        if (capture_search == null) {
+            capture_search = new CaptureSearchWindow(capture_dir);
+        }
+        
+        capture_search.setCharset(serial.getCharset());
+        capture_search.setVisible(true);
+        capture_search.toFront();
+    }//GEN-LAST:event_mnuSearchCapturesActionPerformed
+
+    private void mnuSessionLogActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuSessionLogActionPerformed
+        // Build a panel with every setting.
+        final JTextField txtDir = new JTextField((log_dir != null) ? log_dir.getPath() :
+                ((capture_dir != null) ? capture_dir.getPath() : System.getProperty("user.home")), 25);
+        JButton btBrowse = new JButton("Browse...");
+        btBrowse.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                JFileChooser chooser = new JFileChooser(txtDir.getText());
+                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                chooser.setDialogTitle("Keep session logs in");
+                if (chooser.showOpenDialog(MainWindow.this) == JFileChooser.APPROVE_OPTION) {
+                    txtDir.setText(chooser.getSelectedFile().getPath());
+                }
+            }
+        });
+        JCheckBox chkEnabled = new JCheckBox("Log everything received", session_log != null);
+        JCheckBox chkCompress = new JCheckBox("Compress rolled files", log_compress);
+        JSpinner spnSize = new JSpinner(new SpinnerNumberModel(log_max_size, 0, 1024 * 1024, 1));
+        JSpinner spnAge = new JSpinner(new SpinnerNumberModel(log_max_age, 0, 7 * 24 * 60, 5));
+        JSpinner spnFiles = new JSpinner(new SpinnerNumberModel(log_max_files, 0, 100000, 1));
+        
+        JPanel pnlDir = new JPanel(new java.awt.BorderLayout(5, 5));
+        pnlDir.add(txtDir, java.awt.BorderLayout.CENTER);
+        pnlDir.add(btBrowse, java.awt.BorderLayout.EAST);
+        JPanel panel = new JPanel(new java.awt.GridLayout(6, 2, 5, 5));
+        panel.add(chkEnabled);
+        panel.add(chkCompress);
+        panel.add(new JLabel("Directory:"));
+        panel.add(pnlDir);
+        panel.add(new JLabel("Roll over after (MB, 0 for never):"));
+        panel.add(spnSize);
+        panel.add(new JLabel("Roll over after (minutes, 0 for never):"));
+        panel.add(spnAge);
+        panel.add(new JLabel("Rolled files to keep (0 for all):"));
+        panel.add(spnFiles);
+        
+        // Show the dialog and restart the log with the new settings.
+        if (JOptionPane.showConfirmDialog(this, panel, "Session Log",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        
+        File dir = new File(txtDir.getText());
+        if (chkEnabled.isSelected() && !dir.isDirectory()) {
+            showErrorDialog("LOG_ERROR", "Session Log", dir + " isn't a directory.");
+            return;
+        }
+        
+        log_dir = dir;
+        log_max_size = (Integer)spnSize.getValue();
+        log_max_age = (Integer)spnAge.getValue();
+        log_max_files = (Integer)spnFiles.getValue();
+        log_compress = chkCompress.isSelected();
+        if (chkEnabled.isSelected()) {
+            startSessionLog();
+        } else {
+            stopSessionLog();
+        }
+        
+        Debug.println("SESSION_LOG", (session_log != null) ? session_log.getCurrentFile().toString() :
+                "disabled");
+    }//GEN-LAST:event_mnuSessionLogActionPerformed
+
+    private void mnuBinaryCaptureActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_mnuBinaryCaptureActionPerformed
+        // Stop the capture that is running.
+        if (binary_capture != null) {
+            if (JOptionPane.showConfirmDialog(this, "Stop the binary capture to " +
+                    binary_capture.getFile() + "?", "Binary Capture",
+                    JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION) {
+                stopBinaryCapture();
+            }
+            
+            return;
+        }
+        
+        // Ask where to start a new one.
+        JFileChooser chooser = new JFileChooser(capture_dir);
+        chooser.setDialogTitle("Capture raw data to");
+        chooser.setSelectedFile(new File(chooser.getCurrentDirectory(), Constants.APP_NAME + "-" +
+                new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) +
+                ".mcap"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        try {
+            binary_capture = new BinaryCapture(chooser.getSelectedFile());
+            Debug.println("BINARY_CAPTURE", binary_capture.getFile().toString());
+        } catch (IOException ex) {
+            showErrorDialog("BINARY_CAPTURE_ERROR", "Binary Capture", "Unable to create " +
+                    chooser.getSelectedFile() + ": " + ex.getMessage());
+        }
+    }//GEN-LAST:event_mnuBinaryCaptureActionPerformed
+
     //<editor-fold defaultstate="collapsed" desc="Main Function">
     /**
      * @param args the command line arguments
@@ -904,17 +2729,25 @@ public class MainWindow extends JFrame {
     private javax.swing.JCheckBox chkEcho;
     private javax.swing.JFileChooser dlgFile;
     private javax.swing.ButtonGroup grpBaudRate;
+    private javax.swing.ButtonGroup grpCharset;
     private javax.swing.ButtonGroup grpDataBits;
     private javax.swing.ButtonGroup grpParity;
     private javax.swing.ButtonGroup grpPorts;
+    private javax.swing.ButtonGroup grpReadMode;
     private javax.swing.ButtonGroup grpStopBits;
     private javax.swing.JPopupMenu.Separator jSeparator1;
+    private javax.swing.JPopupMenu.Separator jSeparator10;
     private javax.swing.JPopupMenu.Separator jSeparator2;
     private javax.swing.JPopupMenu.Separator jSeparator3;
     private javax.swing.JPopupMenu.Separator jSeparator4;
     private javax.swing.JPopupMenu.Separator jSeparator5;
     private javax.swing.JPopupMenu.Separator jSeparator6;
+    private javax.swing.JPopupMenu.Separator jSeparator7;
+    private javax.swing.JPopupMenu.Separator jSeparator8;
+    private javax.swing.JPopupMenu.Separator jSeparator9;
+    private javax.swing.JLabel lblStatus;
     private javax.swing.JMenuItem mnuAbout;
+    private javax.swing.JMenuItem mnuAutoResponder;
     private javax.swing.JMenu mnuBaudRate;
     private javax.swing.JRadioButtonMenuItem mnuBaudRate110;
     private javax.swing.JRadioButtonMenuItem mnuBaudRate115200;
@@ -928,6 +2761,14 @@ public class MainWindow extends JFrame {
     private javax.swing.JRadioButtonMenuItem mnuBaudRate75;
     private javax.swing.JRadioButtonMenuItem mnuBaudRate9600;
     private javax.swing.JRadioButtonMenuItem mnuBaudRateCustom;
+    private javax.swing.JMenuItem mnuBinaryCapture;
+    private javax.swing.JMenuItem mnuCaptureDir;
+    private javax.swing.JMenu mnuCharset;
+    private javax.swing.JRadioButtonMenuItem mnuCharsetASCII;
+    private javax.swing.JRadioButtonMenuItem mnuCharsetCustom;
+    private javax.swing.JRadioButtonMenuItem mnuCharsetISO88591;
+    private javax.swing.JRadioButtonMenuItem mnuCharsetUTF8;
+    private javax.swing.JRadioButtonMenuItem mnuCharsetWindows1252;
     private javax.swing.JMenuItem mnuConnect;
     private javax.swing.JMenuItem mnuCopy;
     private javax.swing.JMenuItem mnuCut;
@@ -938,13 +2779,22 @@ public class MainWindow extends JFrame {
     private javax.swing.JRadioButtonMenuItem mnuDataBits8;
     private javax.swing.JMenuItem mnuDisconnect;
     private javax.swing.JMenu mnuEdit;
+    private javax.swing.JMenuItem mnuEditMacros;
+    private javax.swing.JMenuItem mnuExportLatency;
     private javax.swing.JMenuItem mnuExportSetup;
     private javax.swing.JMenu mnuFile;
+    private javax.swing.JMenuItem mnuFilter;
     private javax.swing.JMenuItem mnuFind;
     private javax.swing.JMenu mnuHelp;
+    private javax.swing.JCheckBoxMenuItem mnuHexDisplay;
+    private javax.swing.JMenuItem mnuHighlights;
+    private javax.swing.JMenuItem mnuHistory;
     private javax.swing.JMenuItem mnuImportSetup;
+    private javax.swing.JMenuItem mnuLatencyProbe;
+    private javax.swing.JMenu mnuMacros;
     private javax.swing.JMenuBar mnuMain;
     private javax.swing.JMenuItem mnuNewSession;
+    private javax.swing.JMenuItem mnuPacing;
     private javax.swing.JMenu mnuParity;
     private javax.swing.JRadioButtonMenuItem mnuParityEven;
     private javax.swing.JRadioButtonMenuItem mnuParityMark;
@@ -953,13 +2803,23 @@ public class MainWindow extends JFrame {
     private javax.swing.JRadioButtonMenuItem mnuParitySpace;
     private javax.swing.JMenu mnuPort;
     private javax.swing.JMenuItem mnuQuit;
+    private javax.swing.JMenu mnuReadMode;
+    private javax.swing.JRadioButtonMenuItem mnuReadModeEvent;
+    private javax.swing.JRadioButtonMenuItem mnuReadModeThread;
+    private javax.swing.JMenuItem mnuReadTuning;
     private javax.swing.JMenuItem mnuSaveOutput;
+    private javax.swing.JMenuItem mnuScrollback;
+    private javax.swing.JMenuItem mnuSearchCaptures;
     private javax.swing.JMenuItem mnuSelectAll;
+    private javax.swing.JMenuItem mnuSendFile;
+    private javax.swing.JMenuItem mnuSessionLog;
     private javax.swing.JMenu mnuSetup;
     private javax.swing.JMenu mnuStopBits;
     private javax.swing.JRadioButtonMenuItem mnuStopBits1;
     private javax.swing.JRadioButtonMenuItem mnuStopBits1_5;
     private javax.swing.JRadioButtonMenuItem mnuStopBits2;
+    private javax.swing.JCheckBoxMenuItem mnuTimestamps;
+    private javax.swing.JMenu mnuTools;
     private javax.swing.JPanel pnlMain;
     private javax.swing.JScrollPane sclMonitor;
     private javax.swing.JTextField txtInput;
@@ -0,0 +1,470 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.*;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+
+/**
+ * Moves received data from the receive queue into the monitor text area on
+ * the Swing event dispatch thread, coalescing everything that arrived since
+ * the last frame into a single insert.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class MonitorRenderer implements ActionListener {
+    public static final int DEFAULT_FRAME_RATE = 30;
+    public static final int DEFAULT_MAX_BATCH = 64 * 1024;
+    public static final int QUEUE_CAPACITY = 4 * 1024 * 1024;
+    
+    private final ReceiveQueue queue;
+    private final JTextArea monitor;
+    private final Timer timer;
+    private final HexFormatter hex;
+    private byte[] batch;
+    private CharsetDecoder decoder;
+    private ByteBuffer decode_in;
+    private CharBuffer decode_out;
+    private int frame_rate;
+    private boolean hex_mode;
+    private Position partial_pos;
+    private int partial_len;
+    private LineTimestamps stamps;
+    private boolean line_open;
+    private int max_frame;
+    private long full_frames;
+    
+    /**
+     * Creates a new monitor renderer.
+     * 
+     * @param monitor Text area where the received data will be displayed.
+     */
+    public MonitorRenderer(JTextArea monitor) {
+        this.queue = new ReceiveQueue(QUEUE_CAPACITY);
+        this.monitor = monitor;
+        setCharset(StandardCharsets.UTF_8);
+        setMaxBatchSize(DEFAULT_MAX_BATCH);
+        this.frame_rate = DEFAULT_FRAME_RATE;
+        this.hex = new HexFormatter();
+        this.hex_mode = false;
+        this.partial_pos = null;
+        this.partial_len = 0;
+        this.stamps = null;
+        this.line_open = false;
+        this.max_frame = 0;
+        this.full_frames = 0;
+        this.timer = new Timer(1000 / DEFAULT_FRAME_RATE, this);
+        this.timer.setCoalesce(true);
+    }
+    
+    /**
+     * Starts flushing the received data to the monitor.
+     */
+    public void start() {
+        timer.start();
+    }
+    
+    /**
+     * Stops flushing the received data to the monitor.
+     */
+    public void stop() {
+        timer.stop();
+    }
+    
+    /**
+     * Queues received data to be displayed. Should only be called from the
+     * serial reader thread.
+     * 
+     * @param data Received data.
+     * @param len Number of valid bytes in the buffer.
+     * @param nanos Arrival time of the data as given by System.nanoTime().
+     */
+    public void offer(byte[] data, int len, long nanos) {
+        queue.offer(data, 0, len, nanos);
+    }
+    
+    /**
+     * Flushes everything that accumulated since the last frame, up to the
+     * maximum batch size. Called by the frame timer on the EDT.
+     * 
+     * @param evt Timer event.
+     */
+    @Override
+    public void actionPerformed(ActionEvent evt) {
+        long start = queue.position();
+        int len = queue.poll(batch, 0, batch.length);
+        
+        if (len > 0) {
+            // Keep track of how much we had to catch up with.
+            if (len > max_frame) {
+                max_frame = len;
+            }
+            
+            if (len == batch.length) {
+                full_frames++;
+            }
+            
+            if (stamps != null) {
+                frameLines(start, len);
+            } else {
+                // Consume the marks anyway, otherwise the ring fills up with
+                // stale ones and timestamps would start out wrong once enabled.
+                queue.getArrivalTime(start + len - 1);
+            }
+            
+            if (hex_mode) {
+                appendHex(len);
+            } else {
+                appendText(len);
+            }
+            
+            discardTrimmedStamps();
+        }
+    }
+    
+    /**
+     * Appends text that didn't come from the serial port, like the echo of
+     * what was sent, making sure it doesn't get mixed up with a hex dump.
+     * 
+     * @param text Text to be appended.
+     */
+    public void appendLocal(String text) {
+        // Hex dumps don't share lines with text.
+        if (hex_mode) {
+            if (partial_len > 0) {
+                hex.breakLine();
+                partial_len = 0;
+            }
+            
+            startNewLine();
+        }
+        
+        // Timestamp the new lines.
+        if (stamps != null) {
+            long now = System.nanoTime();
+            for (int i = 0; i < text.length(); i++) {
+                if (!line_open) {
+                    stamps.addLine(now);
+                    line_open = true;
+                }
+                
+                if (text.charAt(i) == '\n') {
+                    line_open = false;
+                }
+            }
+        }
+        
+        monitor.append(text);
+        if (hex_mode) {
+            startNewLine();
+        }
+        
+        discardTrimmedStamps();
+    }
+    
+    /**
+     * Finds where the lines of the batch start and timestamps them with the
+     * arrival time of their first byte.
+     * 
+     * @param start Stream position of the first byte of the batch.
+     * @param len Number of bytes in the batch.
+     */
+    private void frameLines(long start, int len) {
+        if (hex_mode) {
+            // Every row of the hex dump is a line.
+            int col = hex.getLineLength();
+            for (int i = 0; i < len; i++, col++) {
+                if ((col % HexFormatter.BYTES_PER_LINE) == 0) {
+                    stamps.addLine(queue.getArrivalTime(start + i));
+                }
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                if (!line_open) {
+                    stamps.addLine(queue.getArrivalTime(start + i));
+                    line_open = true;
+                }
+                
+                if (batch[i] == '\n') {
+                    line_open = false;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Forgets the timestamps of the lines that were dropped from the
+     * scrollback.
+     */
+    private void discardTrimmedStamps() {
+        if ((stamps != null) && (monitor.getDocument() instanceof ScrollbackDocument)) {
+            stamps.discardBefore(((ScrollbackDocument)monitor.getDocument()).getTrimmedLines());
+        }
+    }
+    
+    /**
+     * Decodes the current batch and appends it to the monitor. Incomplete
+     * multi-byte sequences at the end of the batch are kept for the next one.
+     * 
+     * @param len Number of bytes in the batch.
+     */
+    private void appendText(int len) {
+        decode_in.put(batch, 0, len);
+        decode_in.flip();
+        decoder.decode(decode_in, decode_out, false);
+        decode_in.compact();
+        
+        if (decode_out.position() > 0) {
+            monitor.append(new String(decode_out.array(), 0, decode_out.position()));
+            decode_out.clear();
+        }
+    }
+    
+    /**
+     * Appends the current batch to the monitor as a hex dump. The partial
+     * line shown in the previous frame gets replaced by its updated version.
+     * 
+     * @param len Number of bytes in the batch.
+     */
+    private void appendHex(int len) {
+        Document doc = monitor.getDocument();
+        
+        // Get rid of the previous partial line if nothing was written after it.
+        if (partial_len > 0) {
+            int start = partial_pos.getOffset();
+            
+            try {
+                if ((doc.getLength() - start) == partial_len) {
+                    doc.remove(start, partial_len);
+                } else {
+                    hex.breakLine();
+                    startNewLine();
+                }
+            } catch (BadLocationException ex) {
+                hex.breakLine();
+            }
+        }
+        
+        // Format and append.
+        int count = hex.format(batch, 0, len);
+        monitor.append(new String(hex.getOutput(), 0, count));
+        
+        // Keep track of where the new partial line is.
+        partial_len = hex.getPartialLength();
+        if (partial_len > 0) {
+            try {
+                partial_pos = doc.createPosition(doc.getLength() - partial_len);
+            } catch (BadLocationException ex) {
+                partial_len = 0;
+            }
+        }
+    }
+    
+    /**
+     * Makes sure the next thing appended to the monitor starts on a new line.
+     */
+    private void startNewLine() {
+        Document doc = monitor.getDocument();
+        
+        try {
+            int length = doc.getLength();
+            if ((length > 0) && !"\n".equals(doc.getText(length - 1, 1))) {
+                monitor.append("\n");
+            }
+            
+            line_open = false;
+        } catch (BadLocationException ex) {
+            Debug.println("RENDER_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Resets the state of the renderer for a new session.
+     */
+    public void reset() {
+        hex.reset();
+        partial_len = 0;
+        line_open = false;
+        decoder.reset();
+        if (decode_in != null) {
+            decode_in.clear();
+        }
+    }
+    
+    /**
+     * Sets where the arrival time of each line gets stored.
+     * 
+     * @param stamps Line timestamps or null to stop timestamping lines.
+     */
+    public void setLineTimestamps(LineTimestamps stamps) {
+        this.stamps = stamps;
+        
+        if (stamps != null) {
+            Document doc = monitor.getDocument();
+            Element root = doc.getDefaultRootElement();
+            long trimmed = 0;
+            if (doc instanceof ScrollbackDocument) {
+                trimmed = ((ScrollbackDocument)doc).getTrimmedLines();
+            }
+            
+            // Start with the next line that gets written to.
+            Element last = root.getElement(root.getElementCount() - 1);
+            line_open = (last.getEndOffset() - last.getStartOffset()) > 1;
+            stamps.reset(trimmed + root.getElementCount() - (line_open ? 0 : 1));
+        }
+    }
+    
+    /**
+     * Sets the charset used to decode the received data.
+     * 
+     * @param charset Session charset.
+     */
+    public void setCharset(Charset charset) {
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        allocateBuffers();
+    }
+    
+    /**
+     * Gets the charset used to decode the received data.
+     * 
+     * @return Session charset.
+     */
+    public Charset getCharset() {
+        return this.decoder.charset();
+    }
+    
+    /**
+     * Allocates the reusable decoding buffers for the current batch size and
+     * charset.
+     */
+    private void allocateBuffers() {
+        if (batch == null) {
+            return;
+        }
+        
+        // Leave some room for a partial sequence left over from the last batch.
+        decode_in = ByteBuffer.allocate(batch.length + 16);
+        decode_out = CharBuffer.allocate((int)Math.ceil((batch.length + 16) *
+                (double)decoder.maxCharsPerByte()));
+    }
+    
+    /**
+     * Sets whether the received data is shown as a hex dump or as text.
+     * 
+     * @param enable Show the data as a hex dump.
+     */
+    public void setHexMode(boolean enable) {
+        if (enable != hex_mode) {
+            this.hex_mode = enable;
+            reset();
+            startNewLine();
+        }
+    }
+    
+    /**
+     * Checks if the received data is being shown as a hex dump.
+     * 
+     * @return True if in hex dump mode.
+     */
+    public boolean isHexMode() {
+        return this.hex_mode;
+    }
+    
+    /**
+     * Sets how many times per second the monitor gets updated.
+     * 
+     * @param rate Frame rate in Hz.
+     * @return True if the rate is valid.
+     */
+    public boolean setFrameRate(int rate) {
+        if ((rate > 0) && (rate <= 1000)) {
+            this.frame_rate = rate;
+            timer.setDelay(1000 / rate);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets how many times per second the monitor gets updated.
+     * 
+     * @return Frame rate in Hz.
+     */
+    public int getFrameRate() {
+        return this.frame_rate;
+    }
+    
+    /**
+     * Sets the maximum number of bytes inserted into the monitor per frame.
+     * 
+     * @param size Maximum batch size in bytes.
+     * @return True if the size is valid.
+     */
+    public boolean setMaxBatchSize(int size) {
+        if (size > 0) {
+            this.batch = new byte[size];
+            allocateBuffers();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets the maximum number of bytes inserted into the monitor per frame.
+     * 
+     * @return Maximum batch size in bytes.
+     */
+    public int getMaxBatchSize() {
+        return this.batch.length;
+    }
+    
+    /**
+     * Gets the biggest number of bytes inserted into the monitor in a single
+     * frame.
+     * 
+     * @return Biggest frame in bytes.
+     */
+    public int getMaxFrameSize() {
+        return this.max_frame;
+    }
+    
+    /**
+     * Gets the number of frames that hit the maximum batch size, which means
+     * that the monitor wasn't keeping up with the incoming data.
+     * 
+     * @return Number of full frames.
+     */
+    public long getFullFrameCount() {
+        return this.full_frames;
+    }
+    
+    /**
+     * Resets the frame statistics and the ones of the receive queue. Should
+     * only be called while disconnected.
+     */
+    public void resetStatistics() {
+        this.max_frame = 0;
+        this.full_frames = 0;
+        queue.resetStatistics();
+    }
+    
+    /**
+     * Gets the queue used to hand data over from the reader thread.
+     * 
+     * @return Receive queue.
+     */
+    public ReceiveQueue getQueue() {
+        return this.queue;
+    }
+}
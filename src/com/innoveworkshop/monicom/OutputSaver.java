@@ -0,0 +1,249 @@
+package com.innoveworkshop.monicom;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import javax.swing.SwingWorker;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+
+/**
+ * Saves the contents of the monitor to a file in the background. The
+ * document is encoded straight from its storage into a large direct buffer a
+ * piece at a time, each one inside Document.render(), and written out through
+ * a FileChannel, so the monitor keeps receiving data while it's saved.
+ * 
+ * The output ends at the point where the save was started: every complete
+ * line up to that point comes from the document and the line that was still
+ * being written is copied when the saver is created. Trimming of the
+ * scrollback must be suspended while saving, so that the lines being saved
+ * don't get dropped from under us. If they get dropped anyway, by a clear for
+ * example, the save fails instead of carrying on with the wrong text.
+ * 
+ * Progress is reported as a percentage through the worker's progress
+ * property.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class OutputSaver extends SwingWorker<Long, Void> {
+    public static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int MIN_ROOM = 256;
+    
+    private final ScrollbackDocument doc;
+    private final File file;
+    private final Charset charset;
+    private final LineTimestamps stamps;
+    private final long first_line;
+    private final long first_char;
+    private final long clears;
+    private final int cut;
+    private final String tail;
+    private final Segment segment;
+    private int pos;
+    private int line;
+    private int stamped;
+    private boolean cleared;
+    private volatile long chars_written;
+    
+    /**
+     * Creates a new output saver, marking where the saved output will end.
+     * Must be called on the EDT.
+     * 
+     * @param doc Monitor document.
+     * @param file File where the output will be saved.
+     * @param charset Charset used to encode the output.
+     * @param stamps Line timestamps to prefix the lines with or null if they
+     *               shouldn't be timestamped.
+     */
+    public OutputSaver(ScrollbackDocument doc, File file, Charset charset, LineTimestamps stamps) {
+        Element root = doc.getDefaultRootElement();
+        int lines = root.getElementCount();
+        
+        this.doc = doc;
+        this.file = file;
+        this.charset = charset;
+        this.first_line = doc.getTrimmedLines();
+        this.first_char = doc.getTrimmedChars();
+        this.clears = doc.getClearCount();
+        this.cut = root.getElement(lines - 1).getStartOffset();
+        this.segment = new Segment();
+        this.pos = 0;
+        this.line = 0;
+        this.stamped = -1;
+        this.cleared = false;
+        this.chars_written = 0;
+        
+        // The last line may still change, so take it right now.
+        String last;
+        try {
+            last = doc.getText(cut, doc.getLength() - cut);
+        } catch (BadLocationException ex) {
+            last = "";
+        }
+        
+        this.tail = last;
+        this.stamps = (stamps != null) ? stamps.copy(first_line, first_line + lines) : null;
+    }
+    
+    /**
+     * Streams the monitor contents to the file.
+     * 
+     * @return Number of characters saved.
+     * @throws IOException If the file couldn't be written.
+     */
+    @Override
+    protected Long doInBackground() throws IOException {
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final CharsetEncoder encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (!isCancelled() && (pos < cut)) {
+                doc.render(new Runnable() {
+                    @Override
+                    public void run() {
+                        encodeLines(encoder, out);
+                    }
+                });
+                
+                if (cleared) {
+                    throw new IOException("The monitor was cleared or trimmed while saving.");
+                }
+                
+                // Write the buffer out without holding the document lock.
+                write(channel, out);
+                setProgress((int)(((long)pos * 100) / Math.max(1, cut + tail.length())));
+            }
+            
+            // Finish off with the line that was still being written.
+            if (!isCancelled()) {
+                encodeStamp(line, encoder, out);
+                encoder.encode(CharBuffer.wrap(tail), out, true);
+                encoder.flush(out);
+                chars_written += tail.length();
+                write(channel, out);
+                setProgress(100);
+            }
+        }
+        
+        return chars_written;
+    }
+    
+    /**
+     * Encodes lines from the document until the buffer is almost full. Must be
+     * called while holding the document's read lock.
+     * 
+     * @param encoder Output encoder.
+     * @param out Output buffer.
+     */
+    private void encodeLines(CharsetEncoder encoder, ByteBuffer out) {
+        Element root = doc.getDefaultRootElement();
+        
+        // The offsets are only valid if nothing was dropped since we started.
+        if ((doc.getClearCount() != clears) || (doc.getTrimmedChars() != first_char) ||
+                (doc.getTrimmedLines() != first_line) || (doc.getLength() < cut)) {
+            cleared = true;
+            return;
+        }
+        
+        try {
+            while ((pos < cut) && (out.remaining() >= MIN_ROOM)) {
+                Element elem = root.getElement(line);
+                int end = Math.min(elem.getEndOffset(), cut);
+                
+                if (pos == elem.getStartOffset()) {
+                    encodeStamp(line, encoder, out);
+                }
+                
+                // Encode as much of the line as fits.
+                doc.getText(pos, Math.min(end - pos, READ_SIZE), segment);
+                CharBuffer chars = CharBuffer.wrap(segment.array, segment.offset, segment.count);
+                encoder.encode(chars, out, false);
+                
+                int count = chars.position() - segment.offset;
+                pos += count;
+                chars_written += count;
+                if (pos >= end) {
+                    line++;
+                }
+            }
+        } catch (BadLocationException ex) {
+            Debug.println("SAVE_ERROR", ex.getMessage());
+            cleared = true;
+        }
+    }
+    
+    /**
+     * Encodes the timestamp of a line, if it has one and it wasn't encoded
+     * already.
+     * 
+     * @param index Index of the line in the document.
+     * @param encoder Output encoder.
+     * @param out Output buffer.
+     */
+    private void encodeStamp(int index, CharsetEncoder encoder, ByteBuffer out) {
+        if ((stamps == null) || (index == stamped)) {
+            return;
+        }
+        
+        String time = stamps.format(first_line + index);
+        if (time != null) {
+            encoder.encode(CharBuffer.wrap("[" + time + "] "), out, false);
+        }
+        
+        stamped = index;
+    }
+    
+    /**
+     * Writes the output buffer to the file and empties it.
+     * 
+     * @param channel Output file.
+     * @param out Output buffer.
+     * @throws IOException If the file couldn't be written.
+     */
+    private static void write(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        
+        out.clear();
+    }
+    
+    /**
+     * Gets the file where the output is being saved.
+     * 
+     * @return Output file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Gets the number of characters that were saved so far.
+     * 
+     * @return Characters saved.
+     */
+    public long getCharsWritten() {
+        return this.chars_written;
+    }
+    
+    /**
+     * Gets the number of characters that will be saved.
+     * 
+     * @return Length of the output in characters.
+     */
+    public long getLength() {
+        return this.cut + this.tail.length();
+    }
+}
@@ -0,0 +1,212 @@
+package com.innoveworkshop.monicom;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free single-producer/single-consumer byte ring used to hand received
+ * data from the serial reader thread over to whoever consumes it.
+ * 
+ * Only one thread may call offer() and only one thread may call poll().
+ * 
+ * Alongside the data the queue keeps a smaller ring of arrival time marks,
+ * so that the consumer can find out when any given byte was received.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class ReceiveQueue {
+    private static final int MAX_MARKS = 4096;
+    
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private volatile int high_water;
+    private final long[] marks;
+    private final AtomicLong mark_head;
+    private final AtomicLong mark_tail;
+    private long arrival;
+    
+    /**
+     * Creates a new receive queue.
+     * 
+     * @param capacity Minimum capacity in bytes. Rounded up to a power of two.
+     */
+    public ReceiveQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        
+        this.ring = new byte[size];
+        this.mask = size - 1;
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        this.high_water = 0;
+        this.marks = new long[MAX_MARKS * 2];
+        this.mark_head = new AtomicLong(0);
+        this.mark_tail = new AtomicLong(0);
+        this.arrival = 0;
+    }
+    
+    /**
+     * Appends data to the queue along with the time it arrived. Called only
+     * from the producer thread.
+     * 
+     * @param src Source buffer.
+     * @param off Offset in the source buffer.
+     * @param len Number of bytes to append.
+     * @param nanos Arrival time of the data as given by System.nanoTime().
+     * @return Number of bytes that fit in the queue. Anything else is dropped.
+     */
+    public int offer(byte[] src, int off, int len, long nanos) {
+        long mt = mark_tail.get();
+        
+        // Mark where this chunk starts. Marks must be published before the data.
+        if ((mt - mark_head.get()) < MAX_MARKS) {
+            int i = (int)(mt % MAX_MARKS) * 2;
+            marks[i] = tail.get();
+            marks[i + 1] = nanos;
+            mark_tail.lazySet(mt + 1);
+        }
+        
+        return offer(src, off, len);
+    }
+    
+    /**
+     * Appends data to the queue. Called only from the producer thread.
+     * 
+     * @param src Source buffer.
+     * @param off Offset in the source buffer.
+     * @param len Number of bytes to append.
+     * @return Number of bytes that fit in the queue. Anything else is dropped.
+     */
+    public int offer(byte[] src, int off, int len) {
+        long t = tail.get();
+        int free = ring.length - (int)(t - head.get());
+        int count = Math.min(len, free);
+        
+        if (count > 0) {
+            int pos = (int)t & mask;
+            int first = Math.min(count, ring.length - pos);
+            
+            System.arraycopy(src, off, ring, pos, first);
+            System.arraycopy(src, off + first, ring, 0, count - first);
+            tail.lazySet(t + count);
+        }
+        
+        // Keep track of how full the queue got.
+        int used = (int)(t + count - head.get());
+        if (used > high_water) {
+            high_water = used;
+        }
+        
+        if (count < len) {
+            dropped.addAndGet(len - count);
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Takes data out of the queue. Called only from the consumer thread.
+     * 
+     * @param dst Destination buffer.
+     * @param off Offset in the destination buffer.
+     * @param max Maximum number of bytes to take.
+     * @return Number of bytes copied into the destination buffer.
+     */
+    public int poll(byte[] dst, int off, int max) {
+        long h = head.get();
+        int count = Math.min(max, (int)(tail.get() - h));
+        
+        if (count > 0) {
+            int pos = (int)h & mask;
+            int first = Math.min(count, ring.length - pos);
+            
+            System.arraycopy(ring, pos, dst, off, first);
+            System.arraycopy(ring, 0, dst, off + first, count - first);
+            head.lazySet(h + count);
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Gets the arrival time of a byte that was already polled. Called only
+     * from the consumer thread with ever increasing positions.
+     * 
+     * @param position Position of the byte in the stream.
+     * @return Arrival time as given by System.nanoTime() or 0 if unknown.
+     */
+    public long getArrivalTime(long position) {
+        long mh = mark_head.get();
+        long mt = mark_tail.get();
+        
+        // Go through the marks up to the one that covers this position.
+        while (mh < mt) {
+            int i = (int)(mh % MAX_MARKS) * 2;
+            if (marks[i] > position) {
+                break;
+            }
+            
+            arrival = marks[i + 1];
+            mh++;
+        }
+        
+        mark_head.lazySet(mh);
+        return arrival;
+    }
+    
+    /**
+     * Gets the position in the stream of the next byte to be polled.
+     * 
+     * @return Stream position.
+     */
+    public long position() {
+        return head.get();
+    }
+    
+    /**
+     * Gets the number of bytes waiting to be consumed.
+     * 
+     * @return Bytes in the queue.
+     */
+    public int size() {
+        return (int)(tail.get() - head.get());
+    }
+    
+    /**
+     * Gets the total capacity of the queue.
+     * 
+     * @return Capacity in bytes.
+     */
+    public int capacity() {
+        return ring.length;
+    }
+    
+    /**
+     * Gets the number of bytes that were dropped because the queue was full.
+     * 
+     * @return Dropped bytes.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+    
+    /**
+     * Gets the biggest number of bytes that were waiting in the queue at once.
+     * 
+     * @return High-water mark in bytes.
+     */
+    public int getHighWater() {
+        return this.high_water;
+    }
+    
+    /**
+     * Resets the high-water mark and the drop counter. Should only be called
+     * while nothing is being offered to the queue.
+     */
+    public void resetStatistics() {
+        this.high_water = size();
+        this.dropped.set(0);
+    }
+}
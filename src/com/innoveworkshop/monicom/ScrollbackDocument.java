@@ -0,0 +1,215 @@
+package com.innoveworkshop.monicom;
+
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+
+/**
+ * A plain text document with a bounded scrollback. Once the document grows
+ * past its line or size limit the oldest lines are dropped in chunks, so that
+ * the trimming cost is paid once in a while instead of on every append.
+ * 
+ * Trimming isn't constant time: removing from the start of the document moves
+ * everything that is left in its content buffer, so each trim costs as much
+ * as the size of the document. Since a trim frees 10% of the limit, that cost
+ * is amortized over the appends that fill it up again, which makes it
+ * constant per appended character on average.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class ScrollbackDocument extends PlainDocument {
+    public static final int DEFAULT_MAX_LINES = 100000;
+    public static final int DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+    
+    private int max_lines;
+    private int max_size;
+    private long trimmed_lines;
+    private long trimmed_chars;
+    private long clears;
+    private int trim_suspended;
+    
+    /**
+     * Creates a new scrollback document with the default limits.
+     */
+    public ScrollbackDocument() {
+        super();
+        this.max_lines = DEFAULT_MAX_LINES;
+        this.max_size = DEFAULT_MAX_SIZE;
+        this.trimmed_lines = 0;
+        this.trimmed_chars = 0;
+        this.clears = 0;
+        this.trim_suspended = 0;
+    }
+    
+    @Override
+    public void insertString(int offs, String str, AttributeSet a) throws BadLocationException {
+        super.insertString(offs, str, a);
+        trim();
+    }
+    
+    /**
+     * Drops the oldest lines if the document has grown past its limits. When
+     * trimming happens it goes down to 90% of the limit to leave some room
+     * for the following appends. Each trim moves the rest of the document, so
+     * its cost is only bounded when amortized over those appends.
+     */
+    public void trim() {
+        if (trim_suspended > 0) {
+            return;
+        }
+        
+        Element root = getDefaultRootElement();
+        int lines = root.getElementCount();
+        int drop = 0;
+        
+        // Check the line limit.
+        if ((max_lines > 0) && (lines > max_lines)) {
+            drop = lines - (max_lines - (max_lines / 10));
+        }
+        
+        // Check the size limit.
+        if ((max_size > 0) && (getLength() > max_size)) {
+            int cut = getLength() - (max_size - (max_size / 10));
+            drop = Math.max(drop, root.getElementIndex(cut) + 1);
+        }
+        
+        // Never drop the line that is currently being written to.
+        drop = Math.min(drop, lines - 1);
+        if (drop <= 0) {
+            return;
+        }
+        
+        // Update the counters while still holding the lock, so that readers
+        // always see them matching the contents of the document.
+        writeLock();
+        try {
+            int end = root.getElement(drop - 1).getEndOffset();
+            remove(0, end);
+            
+            trimmed_lines += drop;
+            trimmed_chars += end;
+        } catch (BadLocationException ex) {
+            Debug.println("TRIM_ERROR", ex.getMessage());
+        } finally {
+            writeUnlock();
+        }
+    }
+    
+    /**
+     * Removes everything from the document and resets the trimming counters.
+     */
+    public void clear() {
+        writeLock();
+        try {
+            remove(0, getLength());
+            
+            trimmed_lines = 0;
+            trimmed_chars = 0;
+            clears++;
+        } catch (BadLocationException ex) {
+            Debug.println("TRIM_ERROR", ex.getMessage());
+        } finally {
+            writeUnlock();
+        }
+    }
+    
+    /**
+     * Stops dropping lines from the scrollback for a while, so that the
+     * offsets of what is already in the document stay put. The document grows
+     * past its limits until trimming is resumed. Suspensions nest, so trimming
+     * only resumes once each one of them was resumed.
+     * 
+     * @param suspend Suspend trimming. Resuming the last suspension trims
+     *                right away.
+     */
+    public void setTrimSuspended(boolean suspend) {
+        if (suspend) {
+            trim_suspended++;
+        } else if (trim_suspended > 0) {
+            trim_suspended--;
+            if (trim_suspended == 0) {
+                trim();
+            }
+        }
+    }
+    
+    /**
+     * Sets the maximum number of lines kept in the scrollback.
+     * 
+     * @param lines Maximum number of lines. 0 for unlimited.
+     * @return True if the limit is valid.
+     */
+    public boolean setMaxLines(int lines) {
+        if (lines >= 0) {
+            this.max_lines = lines;
+            trim();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets the maximum number of lines kept in the scrollback.
+     * 
+     * @return Maximum number of lines. 0 if unlimited.
+     */
+    public int getMaxLines() {
+        return this.max_lines;
+    }
+    
+    /**
+     * Sets the maximum size of the scrollback.
+     * 
+     * @param size Maximum number of characters. 0 for unlimited.
+     * @return True if the limit is valid.
+     */
+    public boolean setMaxSize(int size) {
+        if (size >= 0) {
+            this.max_size = size;
+            trim();
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Gets the maximum size of the scrollback.
+     * 
+     * @return Maximum number of characters. 0 if unlimited.
+     */
+    public int getMaxSize() {
+        return this.max_size;
+    }
+    
+    /**
+     * Gets the total number of lines that were dropped from the scrollback.
+     * 
+     * @return Number of dropped lines.
+     */
+    public long getTrimmedLines() {
+        return this.trimmed_lines;
+    }
+    
+    /**
+     * Gets the total number of characters that were dropped from the
+     * scrollback.
+     * 
+     * @return Number of dropped characters.
+     */
+    public long getTrimmedChars() {
+        return this.trimmed_chars;
+    }
+    
+    /**
+     * Gets the number of times the document was cleared, which tells apart
+     * contents that came after a clear from what was there before it.
+     * 
+     * @return Number of clears.
+     */
+    public long getClearCount() {
+        return this.clears;
+    }
+}
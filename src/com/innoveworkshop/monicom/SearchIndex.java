@@ -0,0 +1,254 @@
+package com.innoveworkshop.monicom;
+
+import java.util.Arrays;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Keeps the places where a string shows up in a document and keeps them up
+ * to date as the document changes. Only the text that was appended since the
+ * last update gets scanned, straight out of the document's own storage in
+ * chunks, and the matches are kept in a primitive array.
+ * 
+ * Offsets are stored as absolute positions that count every character that
+ * was ever removed from the head of the document, so trimming the scrollback
+ * doesn't require shifting anything.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class SearchIndex implements DocumentListener {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
+    private final Document doc;
+    private final Segment segment;
+    private String text;
+    private char[] needle;
+    private boolean match_case;
+    private long[] offsets;
+    private int first;
+    private int size;
+    private long removed;
+    private long scanned;
+    
+    /**
+     * Creates a new search index for a document.
+     * 
+     * @param doc Document to be searched.
+     */
+    public SearchIndex(Document doc) {
+        this.doc = doc;
+        this.segment = new Segment();
+        this.text = "";
+        this.needle = new char[0];
+        this.match_case = false;
+        this.offsets = new long[1024];
+        this.first = 0;
+        this.size = 0;
+        this.removed = 0;
+        this.scanned = 0;
+        
+        doc.addDocumentListener(this);
+    }
+    
+    /**
+     * Sets what we're looking for. Changing it throws every match away.
+     * 
+     * @param text Text to be found.
+     * @param match_case Should the search be case sensitive?
+     */
+    public void setNeedle(String text, boolean match_case) {
+        if (text.equals(this.text) && (match_case == this.match_case)) {
+            return;
+        }
+        
+        this.text = text;
+        this.needle = match_case ? text.toCharArray() : text.toLowerCase().toCharArray();
+        this.match_case = match_case;
+        this.first = 0;
+        this.size = 0;
+        this.scanned = removed;
+    }
+    
+    /**
+     * Scans whatever was appended to the document since the last update.
+     */
+    public void update() {
+        int length = doc.getLength();
+        int n = needle.length;
+        if (n == 0) {
+            return;
+        }
+        
+        // Go back a bit in case a match was split by the last update.
+        int pos = (int)Math.max(0, (scanned - removed) - (n - 1));
+        
+        try {
+            while ((pos + n) <= length) {
+                int count = Math.min(CHUNK_SIZE + n - 1, length - pos);
+                doc.getText(pos, count, segment);
+                scan(segment, pos, count - n + 1);
+                
+                pos += count - n + 1;
+            }
+        } catch (BadLocationException ex) {
+            Debug.println("SEARCH_ERROR", ex.getMessage());
+        }
+        
+        scanned = removed + length;
+    }
+    
+    /**
+     * Looks for the needle in a chunk of the document.
+     * 
+     * @param seg Chunk of the document.
+     * @param offset Offset of the chunk in the document.
+     * @param starts Number of positions in the chunk where a match can start.
+     */
+    private void scan(Segment seg, int offset, int starts) {
+        char[] text = seg.array;
+        int base = seg.offset;
+        char head = needle[0];
+        
+        for (int i = 0; i < starts; i++) {
+            char c = text[base + i];
+            if (!match_case) {
+                c = Character.toLowerCase(c);
+            }
+            
+            if (c != head) {
+                continue;
+            }
+            
+            // Check the rest of it.
+            int j = 1;
+            while (j < needle.length) {
+                c = text[base + i + j];
+                if (!match_case) {
+                    c = Character.toLowerCase(c);
+                }
+                
+                if (c != needle[j]) {
+                    break;
+                }
+                
+                j++;
+            }
+            
+            if (j == needle.length) {
+                add(removed + offset + i);
+            }
+        }
+    }
+    
+    /**
+     * Adds a match to the end of the list. Matches that came before the last
+     * one are ignored since they were already found.
+     * 
+     * @param offset Absolute offset of the match.
+     */
+    private void add(long offset) {
+        if ((size > first) && (offset <= offsets[size - 1])) {
+            return;
+        }
+        
+        // Reclaim the space of the matches that were trimmed away first.
+        if (size == offsets.length) {
+            if (first > (offsets.length / 2)) {
+                System.arraycopy(offsets, first, offsets, 0, size - first);
+                size -= first;
+                first = 0;
+            } else {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+        }
+        
+        offsets[size++] = offset;
+    }
+    
+    /**
+     * Finds the first match that comes after a position of the document,
+     * wrapping around to the first match if there are none after it.
+     * 
+     * @param position Document offset to start looking from.
+     * @return Document offset of the match or -1 if there are no matches.
+     */
+    public int findNext(int position) {
+        if (size == first) {
+            return -1;
+        }
+        
+        int i = Arrays.binarySearch(offsets, first, size, removed + position);
+        i = (i < 0) ? -(i + 1) : i;
+        if (i == size) {
+            i = first;
+        }
+        
+        return (int)(offsets[i] - removed);
+    }
+    
+    /**
+     * Gets the number of matches currently in the document.
+     * 
+     * @return Number of matches.
+     */
+    public int getCount() {
+        return size - first;
+    }
+    
+    /**
+     * Gets the length of the text being looked for.
+     * 
+     * @return Needle length.
+     */
+    public int getNeedleLength() {
+        return this.needle.length;
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent evt) {
+        // Appends get picked up by the next update, anything else rescans.
+        if ((evt.getOffset() + evt.getLength()) != doc.getLength()) {
+            invalidateFrom(evt.getOffset());
+        }
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent evt) {
+        if (evt.getOffset() == 0) {
+            // The head of the document was trimmed.
+            removed += evt.getLength();
+            while ((first < size) && (offsets[first] < removed)) {
+                first++;
+            }
+            
+            if (scanned < removed) {
+                scanned = removed;
+            }
+        } else {
+            invalidateFrom(evt.getOffset());
+        }
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent evt) {
+    }
+    
+    /**
+     * Throws away the matches that touch a changed part of the document so
+     * that it gets scanned again.
+     * 
+     * @param offset Document offset where the change happened.
+     */
+    private void invalidateFrom(int offset) {
+        long limit = removed + offset - needle.length;
+        
+        while ((size > first) && (offsets[size - 1] > limit)) {
+            size--;
+        }
+        
+        scanned = Math.min(scanned, removed + offset);
+    }
+}
@@ -0,0 +1,500 @@
+package com.innoveworkshop.monicom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * An append-only capture of everything received during a session. Lines are
+ * read back through memory-mapped windows of the file and located using a
+ * sparse line-offset index, so the heap usage barely grows with the size of
+ * the session.
+ * 
+ * Data is written in large sequential chunks by a dedicated writer thread,
+ * using two buffers: while one is being written the other one keeps filling
+ * up, so the serial reader never has to wait for the disk unless it gets
+ * ahead of it by a whole buffer. The writer also flushes whatever is pending
+ * every FLUSH_INTERVAL milliseconds and forces it to the disk every
+ * SYNC_INTERVAL milliseconds.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class SessionCapture implements Runnable {
+    public static final int INDEX_STRIDE = 64;
+    public static final int MAX_LINE_LENGTH = 4096;
+    public static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    public static final long FLUSH_INTERVAL = 100;
+    public static final long SYNC_INTERVAL = 2000;
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final int MAX_WINDOWS = 8;
+    
+    private final File file;
+    private final FileChannel writer;
+    private final FileChannel reader;
+    private final Map<Long, MappedByteBuffer> windows;
+    private final Object lock;
+    private final Thread flusher;
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private ByteBuffer full;
+    private boolean closing;
+    private IOException error;
+    private Charset charset;
+    
+    private long[] index;
+    private int index_size;
+    private long newlines;
+    private long line_start;
+    private int max_line_length;
+    private volatile long length;
+    private long last_sync;
+    private volatile int high_water;
+    
+    /**
+     * Creates a new session capture backed by a temporary file.
+     * 
+     * @throws IOException If the capture file couldn't be created.
+     */
+    public SessionCapture() throws IOException {
+        this(File.createTempFile(Constants.APP_NAME + "-session-", ".cap"));
+        file.deleteOnExit();
+    }
+    
+    /**
+     * Creates a new session capture backed by a file. If a directory is given
+     * the capture file is created inside it, named after the current time.
+     * 
+     * @param file File or directory where the captured data will be stored.
+     * @throws IOException If the capture file couldn't be opened.
+     */
+    public SessionCapture(File file) throws IOException {
+        if (file.isDirectory()) {
+            file = new File(file, Constants.APP_NAME + "-" +
+                    new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".cap");
+        }
+        
+        this.file = file;
+        this.writer = new FileOutputStream(file).getChannel();
+        this.reader = new RandomAccessFile(file, "r").getChannel();
+        this.windows = new LinkedHashMap<Long, MappedByteBuffer>(MAX_WINDOWS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > MAX_WINDOWS;
+            }
+        };
+        
+        this.index = new long[1024];
+        this.index[0] = 0;
+        this.index_size = 1;
+        this.newlines = 0;
+        this.line_start = 0;
+        this.max_line_length = 0;
+        this.length = 0;
+        this.last_sync = System.currentTimeMillis();
+        this.high_water = 0;
+        this.charset = StandardCharsets.UTF_8;
+        
+        // Leave all the disk access to the writer thread.
+        this.lock = new Object();
+        this.pending = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.spare = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        this.full = null;
+        this.closing = false;
+        this.error = null;
+        this.flusher = new Thread(this, Constants.APP_NAME + "-capture");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+    
+    /**
+     * Appends received data to the capture. Should only be called from the
+     * serial reader thread. Only blocks if the writer thread is still busy
+     * with the other buffer when this one gets full.
+     * 
+     * @param data Received data.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes to append.
+     * @throws IOException If the writer thread failed to write to the file.
+     */
+    public void append(byte[] data, int off, int len) throws IOException {
+        synchronized (lock) {
+            if (error != null) {
+                throw error;
+            }
+            
+            while (len > 0) {
+                // Whatever arrives after closing has nowhere to go.
+                if (closing) {
+                    return;
+                }
+                
+                int count = Math.min(len, pending.remaining());
+                pending.put(data, off, count);
+                off += count;
+                len -= count;
+                
+                if (pending.position() > high_water) {
+                    high_water = pending.position();
+                }
+                
+                // Hand the buffer over to the writer as soon as it gets full.
+                if (!pending.hasRemaining()) {
+                    waitForSpare();
+                    if (spare != null) {
+                        swapBuffers();
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Waits until the writer thread is done with the other buffer or the
+     * capture is being closed. Must be called while holding the lock.
+     * 
+     * @throws IOException If the writer thread failed to write to the file.
+     */
+    private void waitForSpare() throws IOException {
+        boolean interrupted = false;
+        
+        // The disk will get back to us, so don't give up on the data.
+        while ((spare == null) && (error == null) && !closing) {
+            try {
+                lock.wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        if (error != null) {
+            throw error;
+        }
+    }
+    
+    /**
+     * Hands the pending buffer over to the writer thread and starts filling
+     * the spare one. Must be called while holding the lock with a spare
+     * buffer available.
+     */
+    private void swapBuffers() {
+        full = pending;
+        pending = spare;
+        spare = null;
+        lock.notifyAll();
+    }
+    
+    /**
+     * Writer thread loop. Writes the buffers that get handed over, or
+     * whatever is pending once FLUSH_INTERVAL goes by without one.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                ByteBuffer buf;
+                
+                // Wait for something to write.
+                synchronized (lock) {
+                    if ((full == null) && !closing) {
+                        lock.wait(FLUSH_INTERVAL);
+                    }
+                    
+                    if ((full == null) && (pending.position() > 0)) {
+                        swapBuffers();
+                    }
+                    
+                    if (full == null) {
+                        if (closing) {
+                            break;
+                        }
+                        
+                        sync(false);
+                        continue;
+                    }
+                    
+                    buf = full;
+                }
+                
+                // Write it and index it without holding up the reader.
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    writer.write(buf);
+                }
+                
+                indexLines(buf, buf.limit());
+                buf.clear();
+                
+                synchronized (lock) {
+                    full = null;
+                    spare = buf;
+                    lock.notifyAll();
+                }
+                
+                sync(false);
+            }
+            
+            sync(true);
+        } catch (IOException ex) {
+            Debug.println("CAPTURE_ERROR", ex.getMessage());
+            synchronized (lock) {
+                error = ex;
+                lock.notifyAll();
+            }
+        } catch (InterruptedException ex) {
+            Debug.println("CAPTURE_ERROR", "Writer thread interrupted.");
+        }
+    }
+    
+    /**
+     * Forces the written data to the disk if it has been a while since the
+     * last time. Should only be called from the writer thread.
+     * 
+     * @param now Force it regardless of when it was last done.
+     * @throws IOException If the data couldn't be forced to the disk.
+     */
+    private void sync(boolean now) throws IOException {
+        if (now || ((System.currentTimeMillis() - last_sync) >= SYNC_INTERVAL)) {
+            writer.force(false);
+            last_sync = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Updates the line index with data that was just written to the file.
+     * 
+     * @param data Written data.
+     * @param len Number of bytes written.
+     */
+    private synchronized void indexLines(ByteBuffer data, int len) {
+        long pos = length;
+        
+        for (int i = 0; i < len; i++, pos++) {
+            if (data.get(i) == '\n') {
+                max_line_length = (int)Math.max(max_line_length, pos - line_start);
+                line_start = pos + 1;
+                newlines++;
+                
+                // Keep the offset of every INDEX_STRIDE-th line.
+                if ((newlines % INDEX_STRIDE) == 0) {
+                    if (index_size == index.length) {
+                        index = Arrays.copyOf(index, index.length * 2);
+                    }
+                    
+                    index[index_size++] = line_start;
+                }
+            }
+        }
+        
+        length = pos;
+    }
+    
+    /**
+     * Reads a range of lines from the capture.
+     * 
+     * @param first Index of the first line to read.
+     * @param count Maximum number of lines to read.
+     * @param lines List where the lines will be added.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    public void readLines(long first, int count, List<String> lines) throws IOException {
+        long end;
+        long pos;
+        
+        // Find the closest indexed line.
+        synchronized (this) {
+            end = length;
+            if ((first < 0) || (first > newlines)) {
+                return;
+            }
+            
+            pos = index[(int)(first / INDEX_STRIDE)];
+        }
+        
+        // Skip to the requested line.
+        for (long i = (first / INDEX_STRIDE) * INDEX_STRIDE; i < first; i++) {
+            pos = indexOf((byte)'\n', pos, end) + 1;
+        }
+        
+        // Read the lines.
+        byte[] bytes = new byte[MAX_LINE_LENGTH];
+        while ((count-- > 0) && (pos <= end)) {
+            long eol = indexOf((byte)'\n', pos, end);
+            int len = read(pos, Math.min(eol, pos + MAX_LINE_LENGTH), bytes);
+            
+            // Get rid of the carriage return.
+            if ((len > 0) && (bytes[len - 1] == '\r')) {
+                len--;
+            }
+            
+            lines.add(new String(bytes, 0, len, charset));
+            if (eol == end) {
+                break;
+            }
+            
+            pos = eol + 1;
+        }
+    }
+    
+    /**
+     * Finds the next occurrence of a byte in the capture file.
+     * 
+     * @param value Byte to look for.
+     * @param pos Position to start looking from.
+     * @param end Position where to stop looking.
+     * @return Position of the byte or end if it wasn't found.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    private long indexOf(byte value, long pos, long end) throws IOException {
+        while (pos < end) {
+            long base = (pos / WINDOW_SIZE) * WINDOW_SIZE;
+            MappedByteBuffer buf = getWindow(base, end);
+            int limit = (int)Math.min(buf.limit(), end - base);
+            
+            for (int i = (int)(pos - base); i < limit; i++) {
+                if (buf.get(i) == value) {
+                    return base + i;
+                }
+            }
+            
+            pos = base + limit;
+        }
+        
+        return end;
+    }
+    
+    /**
+     * Reads a range of the capture file.
+     * 
+     * @param pos Start position.
+     * @param end End position.
+     * @param bytes Destination buffer.
+     * @return Number of bytes read.
+     * @throws IOException If the capture file couldn't be read.
+     */
+    private int read(long pos, long end, byte[] bytes) throws IOException {
+        int len = 0;
+        
+        while (pos < end) {
+            long base = (pos / WINDOW_SIZE) * WINDOW_SIZE;
+            MappedByteBuffer buf = getWindow(base, end);
+            int limit = (int)Math.min(buf.limit(), end - base);
+            
+            for (int i = (int)(pos - base); i < limit; i++) {
+                bytes[len++] = buf.get(i);
+            }
+            
+            pos = base + limit;
+        }
+        
+        return len;
+    }
+    
+    /**
+     * Gets a mapped window of the capture file that covers at least up to a
+     * given position.
+     * 
+     * @param base Start position of the window.
+     * @param end Position that the window needs to cover.
+     * @return Mapped window.
+     * @throws IOException If the capture file couldn't be mapped.
+     */
+    private MappedByteBuffer getWindow(long base, long end) throws IOException {
+        MappedByteBuffer buf = windows.get(base);
+        long needed = Math.min(WINDOW_SIZE, end - base);
+        
+        // Map the window again if the file grew past the previous mapping.
+        if ((buf == null) || (buf.limit() < needed)) {
+            buf = reader.map(FileChannel.MapMode.READ_ONLY, base,
+                    Math.min(WINDOW_SIZE, length - base));
+            windows.put(base, buf);
+        }
+        
+        return buf;
+    }
+    
+    /**
+     * Gets the number of lines in the capture.
+     * 
+     * @return Number of lines.
+     */
+    public synchronized long getLineCount() {
+        return newlines + 1;
+    }
+    
+    /**
+     * Gets the length of the longest line in the capture.
+     * 
+     * @return Longest line length.
+     */
+    public synchronized int getMaxLineLength() {
+        return (int)Math.min(MAX_LINE_LENGTH, Math.max(max_line_length, length - line_start));
+    }
+    
+    /**
+     * Gets the size of the capture.
+     * 
+     * @return Number of bytes captured.
+     */
+    public long getLength() {
+        return this.length;
+    }
+    
+    /**
+     * Gets the biggest amount of data that was pending to be written at once.
+     * 
+     * @return High-water mark of the write buffer in bytes.
+     */
+    public int getHighWater() {
+        return this.high_water;
+    }
+    
+    /**
+     * Sets the charset used to decode the lines read from the capture.
+     * 
+     * @param charset Session charset.
+     */
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+    
+    /**
+     * Gets the file backing the capture.
+     * 
+     * @return Capture file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+    
+    /**
+     * Writes everything that is pending and closes the capture file.
+     */
+    public void close() {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try {
+            writer.close();
+            reader.close();
+        } catch (IOException ex) {
+            Debug.println("CAPTURE_ERROR", ex.getMessage());
+        }
+    }
+}
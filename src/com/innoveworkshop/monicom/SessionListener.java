@@ -0,0 +1,30 @@
+package com.innoveworkshop.monicom;
+
+import java.io.IOException;
+
+/**
+ * Gets notified about things that happen to a serial session outside of the
+ * UI thread, like data going out or the connection failing in the middle of a
+ * read or write.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public interface SessionListener {
+    /**
+     * Called when the connection fails. May be called from any thread.
+     * 
+     * @param tag Debug tag of where the error happened.
+     * @param ex What went wrong.
+     */
+    public void connectionError(String tag, IOException ex);
+    
+    /**
+     * Called by the writer thread right after data was written to the port.
+     * 
+     * @param data Buffer holding the data that was sent.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes sent.
+     * @param nanos When it was sent as given by System.nanoTime().
+     */
+    public void dataTransmitted(byte[] data, int off, int len, long nanos);
+}
@@ -0,0 +1,394 @@
+package com.innoveworkshop.monicom;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A continuous log of everything received, split into files that are rolled
+ * over once they get too big or too old. Rolled files are compressed by a
+ * low priority background thread and the oldest ones get deleted once there
+ * are too many of them. Files left in the directory by earlier runs count
+ * towards that limit as well, so a setup that keeps getting restarted
+ * doesn't fill up the disk. A log that replaces one that was just closed
+ * only looks at the directory once the old one is done compressing, so the
+ * two never work on the same files.
+ * 
+ * The serial reader hands the data over through a bounded receive queue,
+ * which never blocks. If the disk can't keep up the excess is dropped and
+ * counted instead of stalling the reader.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class SessionLog implements Runnable {
+    public static final int QUEUE_CAPACITY = 4 * 1024 * 1024;
+    public static final int WRITE_SIZE = 256 * 1024;
+    public static final long POLL_INTERVAL = 50;
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    
+    private static ExecutorService last_compressor = null;
+    
+    private final File directory;
+    private final long max_size;
+    private final long max_age;
+    private final int max_files;
+    private final boolean compress;
+    private final ReceiveQueue queue;
+    private final Thread writer;
+    private final ExecutorService compressor;
+    private final Deque<File> rolled;
+    private final SimpleDateFormat format;
+    private volatile boolean running;
+    private FileChannel channel;
+    private volatile File current;
+    private long current_size;
+    private long opened_at;
+    private int sequence;
+    private volatile long bytes_written;
+    private volatile IOException error;
+    
+    /**
+     * Creates a new session log and starts writing it.
+     * 
+     * @param directory Directory where the log files will be kept.
+     * @param max_size Size in bytes after which a file gets rolled over. 0 for
+     *                 unlimited.
+     * @param max_age Time in milliseconds after which a file gets rolled
+     *                over. 0 for unlimited.
+     * @param max_files Number of rolled files to keep. 0 for unlimited.
+     * @param compress Compress the rolled files.
+     * @throws IOException If the first log file couldn't be created.
+     */
+    public SessionLog(File directory, long max_size, long max_age, int max_files,
+            boolean compress) throws IOException {
+        this.directory = directory;
+        this.max_size = max_size;
+        this.max_age = max_age;
+        this.max_files = max_files;
+        this.compress = compress;
+        this.queue = new ReceiveQueue(QUEUE_CAPACITY);
+        this.rolled = new ArrayDeque();
+        this.format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        this.sequence = 0;
+        this.bytes_written = 0;
+        this.error = null;
+        
+        // Everything that sorts before our first file was left behind by earlier runs.
+        openFile();
+        final String first = current.getName();
+        
+        // Compress in the background without competing with everything else.
+        this.compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, Constants.APP_NAME + "-log-compressor");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        final ExecutorService before;
+        synchronized (SessionLog.class) {
+            before = last_compressor;
+            last_compressor = compressor;
+        }
+        
+        compressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Let the log we replaced finish with its files first.
+                try {
+                    while ((before != null) && !before.awaitTermination(1, TimeUnit.MINUTES)) {
+                        Debug.println("LOG", "Waiting for the previous log to finish compressing.");
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                
+                for (File file : listPreviousFiles(first)) {
+                    rolled.addLast((compress && file.getName().endsWith(".log")) ?
+                            compressFile(file) : file);
+                }
+                
+                prune();
+            }
+        });
+        
+        this.running = true;
+        this.writer = new Thread(this, Constants.APP_NAME + "-log-writer");
+        this.writer.start();
+    }
+    
+    /**
+     * Lists the log files that are already in the directory, oldest first. A
+     * compressed file that still has its original next to it didn't finish
+     * being compressed, so it's deleted and the original is kept instead.
+     * 
+     * @param first Name of the first file of this log. It and everything after
+     *              it belong to us.
+     * @return Log files from earlier runs.
+     */
+    private File[] listPreviousFiles(final String first) {
+        final String prefix = Constants.APP_NAME + "-";
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && (name.compareTo(first) < 0) &&
+                        (name.endsWith(".log") || name.endsWith(".log.gz"));
+            }
+        });
+        
+        if (files == null) {
+            return new File[0];
+        }
+        
+        List<File> found = new ArrayList();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".gz") && new File(directory, name.substring(0,
+                    name.length() - 3)).exists()) {
+                file.delete();
+            } else {
+                found.add(file);
+            }
+        }
+        
+        // The names start with when the file was opened.
+        Collections.sort(found);
+        return found.toArray(new File[found.size()]);
+    }
+    
+    /**
+     * Queues received data to be logged. Should only be called from the
+     * serial reader thread and never blocks.
+     * 
+     * @param data Received data.
+     * @param len Number of valid bytes in the buffer.
+     */
+    public void offer(byte[] data, int len) {
+        queue.offer(data, 0, len);
+    }
+    
+    /**
+     * Writes whatever arrives to the current log file and rolls it over when
+     * it's time to.
+     */
+    @Override
+    public void run() {
+        byte[] chunk = new byte[WRITE_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        
+        while (running || (queue.size() > 0)) {
+            int len = queue.poll(chunk, 0, chunk.length);
+            
+            try {
+                if (len > 0) {
+                    buffer.clear().limit(len);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    
+                    current_size += len;
+                    bytes_written += len;
+                }
+                
+                // Roll the file over by size or by age.
+                if (((max_size > 0) && (current_size >= max_size)) ||
+                        ((max_age > 0) && (current_size > 0) &&
+                        ((System.currentTimeMillis() - opened_at) >= max_age))) {
+                    rollOver();
+                }
+            } catch (IOException ex) {
+                Debug.println("LOG_ERROR", ex.getMessage());
+                error = ex;
+                running = false;
+                break;
+            }
+            
+            // Nothing else to do for now.
+            if (len < chunk.length) {
+                LockSupport.parkNanos(POLL_INTERVAL * 1000000);
+            }
+        }
+        
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Debug.println("LOG_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Opens a new log file named after the current time.
+     * 
+     * @throws IOException If the file couldn't be created.
+     */
+    private void openFile() throws IOException {
+        current = new File(directory, String.format("%s-%s-%03d.log", Constants.APP_NAME,
+                format.format(new Date()), sequence++ % 1000));
+        channel = FileChannel.open(current.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        current_size = 0;
+        opened_at = System.currentTimeMillis();
+        
+        Debug.println("LOG", current.toString());
+    }
+    
+    /**
+     * Closes the current log file, hands it over to be compressed and opens a
+     * new one.
+     * 
+     * @throws IOException If the new file couldn't be created.
+     */
+    private void rollOver() throws IOException {
+        File done = current;
+        channel.close();
+        retire(done);
+        openFile();
+    }
+    
+    /**
+     * Hands a file that won't be written to anymore over to be compressed and
+     * counted towards the number of files to keep.
+     * 
+     * @param file Finished log file.
+     */
+    private void retire(final File file) {
+        compressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                rolled.addLast(compress ? compressFile(file) : file);
+                prune();
+            }
+        });
+    }
+    
+    /**
+     * Compresses a rolled file and deletes the original.
+     * 
+     * @param file Rolled log file.
+     * @return Compressed file or the original one if it couldn't be
+     *         compressed.
+     */
+    private static File compressFile(File file) {
+        File gz = new File(file.getPath() + ".gz");
+        byte[] buffer = new byte[GZIP_BUFFER_SIZE];
+        
+        try (InputStream in = new FileInputStream(file);
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(gz),
+                        GZIP_BUFFER_SIZE)) {
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+        } catch (IOException ex) {
+            Debug.println("LOG_ERROR", "Couldn't compress " + file + ": " + ex.getMessage());
+            gz.delete();
+            return file;
+        }
+        
+        file.delete();
+        return gz;
+    }
+    
+    /**
+     * Deletes the oldest rolled files if there are too many of them. Only
+     * called from the compressor thread.
+     */
+    private void prune() {
+        while ((max_files > 0) && (rolled.size() > max_files)) {
+            File old = rolled.removeFirst();
+            if (!old.delete()) {
+                Debug.println("LOG_ERROR", "Couldn't delete " + old);
+            }
+        }
+    }
+    
+    /**
+     * Stops logging, writing out whatever is still queued. The last file gets
+     * rolled over like the others, and every rolled file that is waiting to be
+     * compressed still gets compressed in the background, and a new log
+     * waits for that before it looks at the directory. Whatever doesn't get
+     * done before the application quits is picked up by the next run.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Debug.println("LOG_ERROR", "Interrupted while closing the log.");
+        }
+        
+        // Don't keep an empty file around, or one that couldn't be created.
+        if (current.exists() && (current_size > 0)) {
+            retire(current);
+        } else {
+            current.delete();
+        }
+        
+        compressor.shutdown();
+    }
+    
+    /**
+     * Checks if the log is still being written.
+     * 
+     * @return False if it was closed or failed.
+     */
+    public boolean isRunning() {
+        return this.running;
+    }
+    
+    /**
+     * Gets what made the log stop being written.
+     * 
+     * @return Write error or null if there wasn't one.
+     */
+    public IOException getError() {
+        return this.error;
+    }
+    
+    /**
+     * Gets the file currently being written to.
+     * 
+     * @return Current log file.
+     */
+    public File getCurrentFile() {
+        return this.current;
+    }
+    
+    /**
+     * Gets the total number of bytes that were logged.
+     * 
+     * @return Bytes written.
+     */
+    public long getBytesWritten() {
+        return this.bytes_written;
+    }
+    
+    /**
+     * Gets the number of bytes that were dropped because the disk couldn't
+     * keep up.
+     * 
+     * @return Bytes dropped.
+     */
+    public long getDroppedCount() {
+        return queue.getDroppedCount();
+    }
+}
@@ -0,0 +1,103 @@
+package com.innoveworkshop.monicom;
+
+import java.awt.*;
+import javax.swing.JComponent;
+import javax.swing.JTextArea;
+import javax.swing.UIManager;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+
+/**
+ * A row header for the monitor that shows the arrival time of each line.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class TimestampGutter extends JComponent implements DocumentListener {
+    private static final String SAMPLE = "00:00:00.000000";
+    
+    private final JTextArea monitor;
+    private final LineTimestamps stamps;
+    
+    /**
+     * Creates a new timestamp gutter.
+     * 
+     * @param monitor Monitor text area.
+     * @param stamps Line timestamps of the monitor.
+     */
+    public TimestampGutter(JTextArea monitor, LineTimestamps stamps) {
+        this.monitor = monitor;
+        this.stamps = stamps;
+        
+        setFont(monitor.getFont());
+        setForeground(UIManager.getColor("Label.disabledForeground"));
+        monitor.getDocument().addDocumentListener(this);
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        FontMetrics metrics = getFontMetrics(getFont());
+        return new Dimension(metrics.stringWidth(SAMPLE) + 10,
+                monitor.getPreferredSize().height);
+    }
+    
+    @Override
+    @SuppressWarnings("deprecation")
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        FontMetrics metrics = g.getFontMetrics(getFont());
+        Element root = monitor.getDocument().getDefaultRootElement();
+        long trimmed = getTrimmedLines();
+        
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        g.setColor(getForeground());
+        g.setFont(getFont());
+        
+        try {
+            // Only go through the lines that are visible.
+            int first = root.getElementIndex(monitor.viewToModel(new Point(0, clip.y)));
+            int last = root.getElementIndex(monitor.viewToModel(new Point(0, clip.y + clip.height)));
+            
+            for (int i = first; i <= last; i++) {
+                String time = stamps.format(trimmed + i);
+                if (time != null) {
+                    Rectangle r = monitor.modelToView(root.getElement(i).getStartOffset());
+                    g.drawString(time, 5, r.y + metrics.getAscent());
+                }
+            }
+        } catch (BadLocationException ex) {
+            Debug.println("GUTTER_ERROR", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Gets the number of lines that were dropped from the monitor.
+     * 
+     * @return Number of trimmed lines.
+     */
+    private long getTrimmedLines() {
+        if (monitor.getDocument() instanceof ScrollbackDocument) {
+            return ((ScrollbackDocument)monitor.getDocument()).getTrimmedLines();
+        }
+        
+        return 0;
+    }
+    
+    @Override
+    public void insertUpdate(DocumentEvent evt) {
+        revalidate();
+        repaint();
+    }
+    
+    @Override
+    public void removeUpdate(DocumentEvent evt) {
+        revalidate();
+        repaint();
+    }
+    
+    @Override
+    public void changedUpdate(DocumentEvent evt) {
+    }
+}
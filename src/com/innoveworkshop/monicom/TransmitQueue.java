@@ -0,0 +1,456 @@
+package com.innoveworkshop.monicom;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue of outgoing data with its own writer thread. Everything
+ * that was queued since the last write is coalesced into a single large
+ * write, so a slow port or hardware flow control never blocks the caller.
+ * 
+ * When pacing is enabled the data is written one character at a time
+ * instead, with a gap between characters and a (usually longer) one after
+ * each newline. The writer parks until just before each deadline and spins
+ * for the rest of it, which is good enough for sub-millisecond gaps.
+ * 
+ * @author Nathan Campos <nathan@innoveworkshop.com>
+ */
+public class TransmitQueue implements Runnable {
+    public static final int DEFAULT_CAPACITY = 256 * 1024;
+    public static final int WRITE_SIZE = 16 * 1024;
+    private static final long SPIN_THRESHOLD = 200000;
+    
+    private final OutputStream output;
+    private final SessionListener listener;
+    private final byte[] ring;
+    private final byte[] chunk;
+    private int head;
+    private int size;
+    private int in_flight;
+    private boolean closed;
+    private boolean waited;
+    private Thread thread;
+    private volatile long char_delay;
+    private volatile long line_delay;
+    
+    private volatile long bytes_sent;
+    private volatile long writes;
+    private int high_water;
+    private long rate_bytes;
+    private long rate_time;
+    private volatile long paced_gaps;
+    private volatile long jitter_sum;
+    private volatile long jitter_max;
+    
+    /**
+     * Creates a new transmit queue.
+     * 
+     * @param output Stream where the data will be written to.
+     * @param listener Who gets notified of what was sent and if the writes fail.
+     */
+    public TransmitQueue(OutputStream output, SessionListener listener) {
+        this.output = output;
+        this.listener = listener;
+        this.ring = new byte[DEFAULT_CAPACITY];
+        this.chunk = new byte[WRITE_SIZE];
+        this.head = 0;
+        this.size = 0;
+        this.in_flight = 0;
+        this.closed = false;
+        this.waited = false;
+        this.char_delay = 0;
+        this.line_delay = 0;
+        this.paced_gaps = 0;
+        this.jitter_sum = 0;
+        this.jitter_max = 0;
+        this.bytes_sent = 0;
+        this.writes = 0;
+        this.high_water = 0;
+        this.rate_bytes = 0;
+        this.rate_time = System.nanoTime();
+    }
+    
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        thread = new Thread(this, Constants.APP_NAME + "-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops the writer thread. Anything still queued is thrown away.
+     */
+    public synchronized void close() {
+        closed = true;
+        size = 0;
+        notifyAll();
+        
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+    
+    /**
+     * Queues data to be written without ever blocking.
+     * 
+     * @param data Data to be written.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes to write.
+     * @return False if the queue didn't have room for all of the data, in
+     *         which case nothing gets queued.
+     */
+    public synchronized boolean offer(byte[] data, int off, int len) {
+        if (closed || (len > (ring.length - size))) {
+            return false;
+        }
+        
+        put(data, off, len);
+        return true;
+    }
+    
+    /**
+     * Queues everything remaining in a buffer to be written, blocking until
+     * there's room for it. Data bigger than the queue gets queued in pieces
+     * as the writer makes room. Must never be called from the EDT.
+     * 
+     * @param src Buffer holding the data to be written.
+     * @return False if the queue was closed before everything was queued.
+     * @throws InterruptedException If interrupted while waiting for room.
+     */
+    public synchronized boolean write(ByteBuffer src) throws InterruptedException {
+        while (src.hasRemaining()) {
+            while (!closed && (size == ring.length)) {
+                wait();
+            }
+            
+            if (closed) {
+                return false;
+            }
+            
+            // Copy as much as fits, straight out of the source buffer.
+            int count = Math.min(src.remaining(), ring.length - size);
+            int tail = (head + size) % ring.length;
+            int first = Math.min(count, ring.length - tail);
+            
+            src.get(ring, tail, first);
+            src.get(ring, 0, count - first);
+            size += count;
+            
+            if (size > high_water) {
+                high_water = size;
+            }
+            
+            notifyAll();
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Blocks until everything that was queued got written to the port.
+     * 
+     * @return False if the queue was closed before it was drained.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized boolean drain() throws InterruptedException {
+        while (!closed && ((size > 0) || (in_flight > 0))) {
+            wait();
+        }
+        
+        return !closed;
+    }
+    
+    /**
+     * Copies data into the ring and wakes the writer. Must be called while
+     * holding the queue lock and with enough room in it.
+     * 
+     * @param data Data to be written.
+     * @param off Offset in the buffer.
+     * @param len Number of bytes to write.
+     */
+    private void put(byte[] data, int off, int len) {
+        int tail = (head + size) % ring.length;
+        int first = Math.min(len, ring.length - tail);
+        
+        System.arraycopy(data, off, ring, tail, first);
+        System.arraycopy(data, off + first, ring, 0, len - first);
+        size += len;
+        
+        if (size > high_water) {
+            high_water = size;
+        }
+        
+        notifyAll();
+    }
+    
+    /**
+     * Takes everything that is queued, up to a whole write, out of the ring.
+     * Blocks until there's something to write.
+     * 
+     * @return Number of bytes copied into the write chunk or -1 if closed.
+     * @throws InterruptedException If the writer thread was interrupted.
+     */
+    private synchronized int take() throws InterruptedException {
+        waited = false;
+        while (!closed && (size == 0)) {
+            waited = true;
+            wait();
+        }
+        
+        if (closed) {
+            return -1;
+        }
+        
+        int count = Math.min(size, chunk.length);
+        int first = Math.min(count, ring.length - head);
+        
+        System.arraycopy(ring, head, chunk, 0, first);
+        System.arraycopy(ring, 0, chunk, first, count - first);
+        head = (head + count) % ring.length;
+        size -= count;
+        in_flight = count;
+        notifyAll();
+        
+        return count;
+    }
+    
+    /**
+     * Lets whoever is draining the queue know that the chunk that was taken
+     * out of it has been written to the port.
+     */
+    private synchronized void chunkWritten() {
+        in_flight = 0;
+        notifyAll();
+    }
+    
+    /**
+     * Writer thread loop.
+     */
+    @Override
+    public void run() {
+        long deadline = 0;
+        
+        try {
+            int len;
+            while ((len = take()) > 0) {
+                if ((char_delay == 0) && (line_delay == 0)) {
+                    output.write(chunk, 0, len);
+                    output.flush();
+                    listener.dataTransmitted(chunk, 0, len, System.nanoTime());
+                    
+                    bytes_sent += len;
+                    writes++;
+                    chunkWritten();
+                    continue;
+                }
+                
+                // Don't count the time we spent with nothing to send as jitter.
+                if (waited) {
+                    deadline = 0;
+                }
+                
+                // Paced writes, one character at a time.
+                for (int i = 0; i < len; i++) {
+                    if (deadline > 0) {
+                        long late = parkUntil(deadline);
+                        
+                        paced_gaps++;
+                        jitter_sum += Math.abs(late);
+                        if (Math.abs(late) > jitter_max) {
+                            jitter_max = Math.abs(late);
+                        }
+                    }
+                    
+                    output.write(chunk[i]);
+                    output.flush();
+                    listener.dataTransmitted(chunk, i, 1, System.nanoTime());
+                    bytes_sent++;
+                    writes++;
+                    
+                    // Schedule the next character.
+                    long gap = char_delay;
+                    if ((chunk[i] == '\n') && (line_delay > 0)) {
+                        gap = line_delay;
+                    }
+                    
+                    deadline = (gap > 0) ? System.nanoTime() + (gap * 1000) : 0;
+                }
+                
+                chunkWritten();
+            }
+        } catch (InterruptedException ex) {
+            // Closed while waiting for data.
+        } catch (IOException ex) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+            }
+            
+            listener.connectionError("WRITE_ERROR", ex);
+        }
+        
+        Debug.println("WRITER_THREAD", "Writer thread finished.");
+    }
+    
+    /**
+     * Waits until a deadline by parking the thread for most of the time and
+     * spinning for the last bit of it.
+     * 
+     * @param deadline Deadline as given by System.nanoTime().
+     * @return How late we were in nanoseconds.
+     * @throws InterruptedException If the writer thread was interrupted.
+     */
+    private long parkUntil(long deadline) throws InterruptedException {
+        long remaining;
+        
+        // Park while there's plenty of time left.
+        while ((remaining = deadline - System.nanoTime()) > SPIN_THRESHOLD) {
+            LockSupport.parkNanos(remaining - SPIN_THRESHOLD);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        
+        // Spin for the rest of it.
+        long now;
+        while ((now = System.nanoTime()) < deadline) {
+            Thread.yield();
+        }
+        
+        return now - deadline;
+    }
+    
+    /**
+     * Sets the gap between the characters sent while pacing. Pacing is only
+     * enabled if this or the line delay are set.
+     * 
+     * @param delay Delay in microseconds. 0 for no delay.
+     */
+    public void setCharDelay(long delay) {
+        this.char_delay = Math.max(0, delay);
+    }
+    
+    /**
+     * Gets the gap between the characters sent while pacing.
+     * 
+     * @return Delay in microseconds.
+     */
+    public long getCharDelay() {
+        return this.char_delay;
+    }
+    
+    /**
+     * Sets the gap after each newline sent while pacing. If this isn't set the
+     * character delay is used.
+     * 
+     * @param delay Delay in microseconds. 0 for no delay.
+     */
+    public void setLineDelay(long delay) {
+        this.line_delay = Math.max(0, delay);
+    }
+    
+    /**
+     * Gets the gap after each newline sent while pacing.
+     * 
+     * @return Delay in microseconds.
+     */
+    public long getLineDelay() {
+        return this.line_delay;
+    }
+    
+    /**
+     * Gets the average difference between the requested and the measured gaps
+     * while pacing.
+     * 
+     * @return Average jitter in nanoseconds.
+     */
+    public long getAverageJitter() {
+        long gaps = paced_gaps;
+        if (gaps == 0) {
+            return 0;
+        }
+        
+        return jitter_sum / gaps;
+    }
+    
+    /**
+     * Gets the biggest difference between the requested and the measured gaps
+     * while pacing.
+     * 
+     * @return Maximum jitter in nanoseconds.
+     */
+    public long getMaxJitter() {
+        return this.jitter_max;
+    }
+    
+    /**
+     * Gets the number of paced gaps that were measured.
+     * 
+     * @return Number of gaps.
+     */
+    public long getPacedGapCount() {
+        return this.paced_gaps;
+    }
+    
+    /**
+     * Gets the number of bytes waiting to be written.
+     * 
+     * @return Queue depth in bytes.
+     */
+    public synchronized int getDepth() {
+        return this.size;
+    }
+    
+    /**
+     * Gets the biggest number of bytes that were waiting to be written at once.
+     * 
+     * @return High-water mark in bytes.
+     */
+    public synchronized int getHighWater() {
+        return this.high_water;
+    }
+    
+    /**
+     * Gets the total number of bytes written to the port.
+     * 
+     * @return Bytes written.
+     */
+    public long getBytesSent() {
+        return this.bytes_sent;
+    }
+    
+    /**
+     * Gets the number of writes issued to the port.
+     * 
+     * @return Number of writes.
+     */
+    public long getWriteCount() {
+        return this.writes;
+    }
+    
+    /**
+     * Gets the transmit rate since the last time this was called. Should only
+     * be called from a single thread.
+     * 
+     * @return Bytes per second.
+     */
+    public long getBytesPerSecond() {
+        long now = System.nanoTime();
+        long sent = bytes_sent;
+        long elapsed = now - rate_time;
+        long rate = 0;
+        
+        if (elapsed > 0) {
+            rate = ((sent - rate_bytes) * 1000000000L) / elapsed;
+        }
+        
+        rate_bytes = sent;
+        rate_time = now;
+        return rate;
+    }
+}